@@ -2,6 +2,7 @@ plugins {
 	java
 	alias(libs.plugins.quarkus)
 	alias(libs.plugins.owasp)
+	alias(libs.plugins.jmh)
 }
 
 val projectVersion: String by project
@@ -24,7 +25,7 @@ configurations {
 
 java {
 	toolchain {
-		languageVersion.set(JavaLanguageVersion.of(17))
+		languageVersion.set(JavaLanguageVersion.of(21))
 	}
 }
 
@@ -47,6 +48,10 @@ dependencies {
 		exclude(group = "org.bouncycastle", module = "bc-fips")
 	}
 	implementation(libs.vavr)
+
+	testImplementation(libs.junit.api)
+	testImplementation(libs.junit.params)
+	testRuntimeOnly(libs.junit.engine)
 }
 
 tasks.withType<Test> {
@@ -59,6 +64,16 @@ tasks.withType<JavaCompile> {
 	options.compilerArgs.add("-parameters")
 }
 
+jmh {
+	jmhVersion = libs.versions.jmh.get()
+	profilers = listOf("gc")
+	jvmArgs = listOf("-Xmx8g")
+	fork = 1
+	warmupIterations = 3
+	iterations = 5
+	resultFormat = "JSON"
+}
+
 dependencyCheck {
 	format = org.owasp.dependencycheck.reporting.ReportGenerator.Format.ALL.toString()
 	nvd.apiKey = nvdApiKey
@@ -0,0 +1,80 @@
+package net.tomjo.pulsarbookieutils;
+
+import org.apache.bookkeeper.client.api.LedgerMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classification of scanned ledgers: decoding the Pulsar custom metadata and resolving the topic of a ledger.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LedgerBenchmark {
+
+    /**
+     * Ledger metadata as read from the metadata store. A LedgerMetadata takes several times the memory of a Ledger, so
+     * 10M of them don't fit the benchmark heap and the largest data set is left out.
+     */
+    @State(Scope.Benchmark)
+    public static class Metadata {
+
+        @Param({"100000", "1000000"})
+        int metadataCount;
+
+        private LedgerMetadata[] metadata;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            metadata = new LedgerMetadata[metadataCount];
+            for (int i = 0; i < metadataCount; i++) {
+                metadata[i] = SyntheticLedgers.metadata(i, metadataCount);
+            }
+        }
+    }
+
+    /**
+     * Ledgers built the way a scan builds them, sharing their names and bookies.
+     */
+    @State(Scope.Benchmark)
+    public static class Ledgers {
+
+        @Param({"100000", "1000000", "10000000"})
+        int ledgerCount;
+
+        private Ledger[] ledgers;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            LedgerNames names = new LedgerNames();
+            ledgers = new Ledger[ledgerCount];
+            for (int i = 0; i < ledgerCount; i++) {
+                ledgers[i] = new Ledger(SyntheticLedgers.metadata(i, ledgerCount), names);
+            }
+        }
+    }
+
+    @Benchmark
+    public void createFromMetadata(Metadata state, Blackhole blackhole) {
+        LedgerNames names = new LedgerNames();
+        for (LedgerMetadata ledgerMetadata : state.metadata) {
+            blackhole.consume(new Ledger(ledgerMetadata, names));
+        }
+    }
+
+    @Benchmark
+    public void resolveLedgerTopic(Ledgers state, Blackhole blackhole) {
+        for (Ledger ledger : state.ledgers) {
+            blackhole.consume(ledger.getLedgerTopic());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package net.tomjo.pulsarbookieutils;
+
+import org.apache.bookkeeper.client.api.DigestType;
+import org.apache.bookkeeper.client.api.LedgerMetadata;
+import org.apache.bookkeeper.meta.LedgerMetadataBuilder;
+import org.apache.bookkeeper.net.BookieId;
+import org.apache.pulsar.common.naming.TopicName;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Deterministic ledgers resembling a Pulsar cluster: mostly managed ledgers, some cursor, schema and compacted topic
+ * ledgers and a few ledgers not created by Pulsar, spread over one topic per {@link #LEDGERS_PER_TOPIC} ledgers.
+ */
+public final class SyntheticLedgers {
+
+    public static final int LEDGERS_PER_TOPIC = 100;
+
+    private static final long BASE_CTIME = 1_700_000_000_000L;
+    private static final String[] BOOKIES = IntStream.range(0, 20)
+            .mapToObj(i -> "bookie-" + i + ".bookkeeper:3181")
+            .toArray(String[]::new);
+
+    private SyntheticLedgers() {
+    }
+
+    public static int topicCount(int ledgerCount) {
+        return Math.max(1, ledgerCount / LEDGERS_PER_TOPIC);
+    }
+
+    public static int topicIndex(long ledgerId, int ledgerCount) {
+        return (int) (ledgerId % topicCount(ledgerCount));
+    }
+
+    public static TopicName topic(int topicIndex) {
+        return TopicName.get("persistent://" + tenant(topicIndex) + "/" + namespace(topicIndex) + "/topic-" + topicIndex);
+    }
+
+    public static Ledger ledger(long ledgerId, int ledgerCount) {
+        int topicIndex = topicIndex(ledgerId, ledgerCount);
+        String[] bookies = {bookie(ledgerId), bookie(ledgerId + 1), bookie(ledgerId + 2)};
+        String managedLedgerName = null;
+        String compactedTopic = null;
+        String schemaId = null;
+        int kind = kind(ledgerId);
+        if (kind == 1) {
+            compactedTopic = topic(topicIndex).toString();
+        } else if (kind >= 2 && kind < 5) {
+            schemaId = schemaId(topicIndex);
+        } else if (kind >= 5) {
+            managedLedgerName = managedLedgerName(topicIndex);
+        }
+        return new Ledger(ledgerId, ctime(ledgerId), length(ledgerId), true, 3, 2, 2, bookies,
+                kind != 0, managedLedgerName, compactedTopic, schemaId);
+    }
+
+    public static LedgerMetadata metadata(long ledgerId, int ledgerCount) {
+        int topicIndex = topicIndex(ledgerId, ledgerCount);
+        int kind = kind(ledgerId);
+        Map<String, byte[]> customMetadata;
+        if (kind == 0) {
+            customMetadata = Map.of("owner", bytes("external"));
+        } else if (kind == 1) {
+            customMetadata = Map.of(Ledger.APPLICATION, bytes("pulsar"),
+                    "component", bytes("compacted-topic"),
+                    Ledger.COMPACTED_TOPIC, bytes(topic(topicIndex).toString()));
+        } else if (kind < 5) {
+            customMetadata = Map.of(Ledger.APPLICATION, bytes("pulsar"),
+                    "component", bytes("schema"),
+                    Ledger.SCHEMA_ID, bytes(schemaId(topicIndex)));
+        } else if (kind < 15) {
+            customMetadata = Map.of(Ledger.APPLICATION, bytes("pulsar"),
+                    "component", bytes("managed-ledger"),
+                    Ledger.MANAGED_LEDGER, bytes(managedLedgerName(topicIndex)),
+                    Ledger.MANAGED_CURSOR, bytes("subscription-" + (ledgerId % 3)));
+        } else {
+            customMetadata = Map.of(Ledger.APPLICATION, bytes("pulsar"),
+                    "component", bytes("managed-ledger"),
+                    Ledger.MANAGED_LEDGER, bytes(managedLedgerName(topicIndex)));
+        }
+        return LedgerMetadataBuilder.create()
+                .withId(ledgerId)
+                .withEnsembleSize(3)
+                .withWriteQuorumSize(2)
+                .withAckQuorumSize(2)
+                .newEnsembleEntry(0L, List.of(BookieId.parse(bookie(ledgerId)), BookieId.parse(bookie(ledgerId + 1)), BookieId.parse(bookie(ledgerId + 2))))
+                .withDigestType(DigestType.CRC32C)
+                .withPassword(new byte[0])
+                .withCreationTime(ctime(ledgerId))
+                .storingCreationTime(true)
+                .withCustomMetadata(customMetadata)
+                .withClosedState()
+                .withLastEntryId(1000L)
+                .withLength(length(ledgerId))
+                .build();
+    }
+
+    /**
+     * 0: not a Pulsar ledger, 1: compacted topic, 2-4: schema, 5-14: cursor, 15-99: managed ledger.
+     */
+    private static int kind(long ledgerId) {
+        return (int) (ledgerId % 100);
+    }
+
+    private static String tenant(int topicIndex) {
+        return "tenant-" + topicIndex % 10;
+    }
+
+    private static String namespace(int topicIndex) {
+        return "namespace-" + topicIndex % 100;
+    }
+
+    private static String managedLedgerName(int topicIndex) {
+        return tenant(topicIndex) + "/" + namespace(topicIndex) + "/persistent/topic-" + topicIndex;
+    }
+
+    private static String schemaId(int topicIndex) {
+        return tenant(topicIndex) + "/" + namespace(topicIndex) + "/topic-" + topicIndex;
+    }
+
+    private static String bookie(long index) {
+        return BOOKIES[(int) (index % BOOKIES.length)];
+    }
+
+    private static long ctime(long ledgerId) {
+        return BASE_CTIME + ledgerId * 1000L;
+    }
+
+    private static long length(long ledgerId) {
+        return (ledgerId % 1024) * 1024 * 1024;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
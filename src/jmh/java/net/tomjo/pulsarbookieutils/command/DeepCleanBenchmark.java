@@ -0,0 +1,58 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import net.tomjo.pulsarbookieutils.Ledger;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import net.tomjo.pulsarbookieutils.SyntheticLedgers;
+import org.apache.pulsar.common.naming.TopicName;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Grouping of scanned ledgers by topic in deep-clean, for a cleanup of half of the topics.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DeepCleanBenchmark {
+
+    @Param({"100000", "1000000", "10000000"})
+    int ledgerCount;
+
+    private Ledger[] ledgers;
+
+    private Set<TopicName> topicNames;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ledgers = new Ledger[ledgerCount];
+        for (int i = 0; i < ledgerCount; i++) {
+            ledgers[i] = SyntheticLedgers.ledger(i, ledgerCount);
+        }
+        topicNames = new HashSet<>();
+        for (int i = 0; i < SyntheticLedgers.topicCount(ledgerCount); i += 2) {
+            topicNames.add(SyntheticLedgers.topic(i));
+        }
+    }
+
+    @Benchmark
+    public Map<TopicName, LedgerIdSet> groupLedgersByTopic() {
+        Map<TopicName, LedgerIdSet> ledgerTopicMapping = new ConcurrentHashMap<>();
+        for (Ledger ledger : ledgers) {
+            DeepCleanCommand.addLedgerOfTopics(ledgerTopicMapping, topicNames, ledger);
+        }
+        return ledgerTopicMapping;
+    }
+}
@@ -0,0 +1,56 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import net.tomjo.pulsarbookieutils.SyntheticLedgers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Difference between the ledgers referenced by topics and the ledgers in the metadata store, of which about one in a
+ * hundred is missing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DetectMissingLedgersBenchmark {
+
+    private static final int MISSING_LEDGER_INTERVAL = 101;
+
+    @Param({"100000", "1000000", "10000000"})
+    int ledgerCount;
+
+    private List<LedgerIdSet> topicLedgers;
+
+    private LedgerIdSet existingLedgers;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        topicLedgers = new ArrayList<>();
+        for (int i = 0; i < SyntheticLedgers.topicCount(ledgerCount); i++) {
+            topicLedgers.add(new LedgerIdSet());
+        }
+        existingLedgers = new LedgerIdSet();
+        for (long ledgerId = 0; ledgerId < ledgerCount; ledgerId++) {
+            topicLedgers.get(SyntheticLedgers.topicIndex(ledgerId, ledgerCount)).add(ledgerId);
+            if (ledgerId % MISSING_LEDGER_INTERVAL != 0) {
+                existingLedgers.add(ledgerId);
+            }
+        }
+    }
+
+    @Benchmark
+    public LedgerIdSet findMissingLedgers() {
+        return DetectMissingLedgersCommand.findMissingLedgers(topicLedgers, existingLedgers);
+    }
+}
@@ -0,0 +1,93 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import net.tomjo.pulsarbookieutils.Ledger;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import net.tomjo.pulsarbookieutils.SyntheticLedgers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orphan classification of clean-orphan-ledgers and the audit on the scanned Pulsar ledgers and the ledgers their topics still use.
+ * About one in a hundred ledgers of a topic is no longer used by it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OrphanedLedgerFinderBenchmark {
+
+    private static final int UNUSED_LEDGER_INTERVAL = 101;
+
+    @Param({"100000", "1000000", "10000000"})
+    int ledgerCount;
+
+    private Map<Long, Ledger> pulsarLedgers;
+
+    private Map<Long, LedgerIdSet> pulsarLedgerAssociatedLedgersMapping;
+
+    private LedgerIdSet nonOrphanedLedgers;
+
+    private List<Ledger> orphansLinkedToATopic;
+
+    private List<Ledger> orphansNotLinkedToATopic;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        LedgerIdSet[] topicLedgers = new LedgerIdSet[SyntheticLedgers.topicCount(ledgerCount)];
+        for (int i = 0; i < topicLedgers.length; i++) {
+            topicLedgers[i] = new LedgerIdSet();
+        }
+        pulsarLedgers = new HashMap<>();
+        pulsarLedgerAssociatedLedgersMapping = new HashMap<>();
+        for (long ledgerId = 0; ledgerId < ledgerCount; ledgerId++) {
+            Ledger ledger = SyntheticLedgers.ledger(ledgerId, ledgerCount);
+            if (ledger.isPulsarLedger()) {
+                LedgerIdSet usedLedgers = topicLedgers[SyntheticLedgers.topicIndex(ledgerId, ledgerCount)];
+                if (ledgerId % UNUSED_LEDGER_INTERVAL != 0) {
+                    usedLedgers.add(ledgerId);
+                }
+                pulsarLedgers.put(ledgerId, ledger);
+                pulsarLedgerAssociatedLedgersMapping.put(ledgerId, usedLedgers);
+            }
+        }
+        nonOrphanedLedgers = OrphanedLedgerFinder.getNonOrphanedLedgers(pulsarLedgerAssociatedLedgersMapping);
+        orphansLinkedToATopic = OrphanedLedgerFinder.findOrphanedLedgersLinkedToATopic(pulsarLedgerAssociatedLedgersMapping, pulsarLedgers);
+        orphansNotLinkedToATopic = OrphanedLedgerFinder.findOrphanedLedgersNotLinkedToATopic(pulsarLedgers);
+    }
+
+    @Benchmark
+    public LedgerIdSet getNonOrphanedLedgers() {
+        return OrphanedLedgerFinder.getNonOrphanedLedgers(pulsarLedgerAssociatedLedgersMapping);
+    }
+
+    @Benchmark
+    public List<Ledger> findOrphanedLedgersLinkedToATopic() {
+        return OrphanedLedgerFinder.findOrphanedLedgersLinkedToATopic(pulsarLedgerAssociatedLedgersMapping, pulsarLedgers);
+    }
+
+    @Benchmark
+    public List<Ledger> findOrphanedLedgersNotLinkedToATopic() {
+        return OrphanedLedgerFinder.findOrphanedLedgersNotLinkedToATopic(pulsarLedgers);
+    }
+
+    @Benchmark
+    public Map<Ledger, String> selectOrphanedLedgers() {
+        // Only select a handful of ledgers, as clean-orphan-ledgers logs every selected ledger
+        Map<String, List<Ledger>> orphanCandidates = new LinkedHashMap<>();
+        orphanCandidates.put(OrphanedLedgerFinder.NOT_LINKED_TO_A_TOPIC, orphansNotLinkedToATopic);
+        orphanCandidates.put(OrphanedLedgerFinder.NOT_USED_BY_ITS_TOPIC, orphansLinkedToATopic);
+        return OrphanedLedgerFinder.selectOrphanedLedgers(nonOrphanedLedgers, ledger -> ledger.getLedgerId() < 1000, orphanCandidates);
+    }
+}
@@ -0,0 +1,48 @@
+package net.tomjo.pulsarbookieutils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bytes stored per bookie, approximated from ledger metadata. Every entry of a ledger is written to write quorum size
+ * bookies of its ensemble, so each bookie a ledger is striped over stores {@code length * writeQuorumSize / bookies} of
+ * it. Ledgers whose ensemble changed are assumed to be spread evenly over all bookies they ever used.
+ * <p>
+ * Thread-safe.
+ */
+public class BookieLoad {
+
+    private final Map<String, LongAdder> bytesPerBookie = new ConcurrentHashMap<>();
+
+    public void add(Ledger ledger) {
+        long bytes = bytesPerBookie(ledger);
+        ledger.getBookies().forEach(bookie -> bytesPerBookie.computeIfAbsent(bookie, b -> new LongAdder()).add(bytes));
+    }
+
+    public static long bytesPerBookie(Ledger ledger) {
+        int bookies = ledger.getBookies().size();
+        return bookies == 0 ? 0L : ledger.getLength() * Math.min(ledger.getWriteQuorumSize(), bookies) / bookies;
+    }
+
+    /**
+     * Bytes stored per bookie, sorted by bookie id.
+     */
+    public Map<String, Long> toMap() {
+        Map<String, Long> bytes = new TreeMap<>();
+        bytesPerBookie.forEach((bookie, adder) -> bytes.put(bookie, adder.sum()));
+        return bytes;
+    }
+
+    /**
+     * Bytes stored per bookie relative to the bookie storing the most, between 0 and 1.
+     */
+    public Map<String, Double> toRelativeMap() {
+        Map<String, Long> bytes = toMap();
+        long maxBytes = bytes.values().stream().mapToLong(Long::longValue).max().orElse(0L);
+        Map<String, Double> relativeBytes = new TreeMap<>();
+        bytes.forEach((bookie, b) -> relativeBytes.put(bookie, maxBytes == 0 ? 0d : (double) b / maxBytes));
+        return relativeBytes;
+    }
+}
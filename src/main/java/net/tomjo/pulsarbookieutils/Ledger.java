@@ -1,76 +1,188 @@
 package net.tomjo.pulsarbookieutils;
 
+import io.quarkus.logging.Log;
+import io.vavr.control.Try;
 import org.apache.bookkeeper.client.api.LedgerMetadata;
 import org.apache.pulsar.common.naming.TopicDomain;
 import org.apache.pulsar.common.naming.TopicName;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 public class Ledger {
 
     public static final String LEDGER_ROOT = "/ledgers";
 
+    public static final String APPLICATION = "application";
     public static final String MANAGED_LEDGER = "pulsar/managed-ledger";
     public static final String SCHEMA_ID = "pulsar/schemaId";
     public static final String MANAGED_CURSOR = "pulsar/cursor";
     public static final String COMPACTED_TOPIC = "pulsar/compactedTopic";
 
-    private final LedgerMetadata ledgerMetadata;
-    private final Map<String, String> pulsarMetadata;
+    private static final byte[] PULSAR_APPLICATION = "pulsar".getBytes(StandardCharsets.UTF_8);
+
+    private final long ledgerId;
+    private final long ctime;
+    private final long length;
+    private final boolean closed;
+    private final int ensembleSize;
+    private final int writeQuorumSize;
+    private final int ackQuorumSize;
+    private final String[] bookies;
+    private final boolean pulsarLedger;
+    private final String managedLedgerName;
+    private final String compactedTopic;
+    private final String schemaId;
+    private final TopicName topic;
 
     public Ledger(LedgerMetadata ledgerMetadata) {
-        this.ledgerMetadata = ledgerMetadata;
-        this.pulsarMetadata = ledgerMetadata.getCustomMetadata().entrySet().stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, (e) -> new String(e.getValue(), StandardCharsets.UTF_8)));
+        this(ledgerMetadata, LedgerNames.none());
+    }
+
+    public Ledger(LedgerMetadata ledgerMetadata, LedgerNames names) {
+        this.ledgerId = ledgerMetadata.getLedgerId();
+        this.ctime = ledgerMetadata.getCtime();
+        this.length = ledgerMetadata.getLength();
+        this.closed = ledgerMetadata.isClosed();
+        this.ensembleSize = ledgerMetadata.getEnsembleSize();
+        this.writeQuorumSize = ledgerMetadata.getWriteQuorumSize();
+        this.ackQuorumSize = ledgerMetadata.getAckQuorumSize();
+        this.bookies = ledgerMetadata.getAllEnsembles().values().stream()
+                .flatMap(List::stream)
+                .map(bookieId -> names.bookie(bookieId.toString()))
+                .distinct()
+                .toArray(String[]::new);
+        boolean pulsarApplication = false;
+        boolean managedCursor = false;
+        String managedLedgerName = null;
+        String compactedTopic = null;
+        String schemaId = null;
+        for (Map.Entry<String, byte[]> entry : ledgerMetadata.getCustomMetadata().entrySet()) {
+            switch (entry.getKey()) {
+                case APPLICATION -> pulsarApplication = Arrays.equals(PULSAR_APPLICATION, entry.getValue());
+                case MANAGED_CURSOR -> managedCursor = true;
+                case MANAGED_LEDGER -> managedLedgerName = names.pulsarName(entry.getValue());
+                case COMPACTED_TOPIC -> compactedTopic = names.pulsarName(entry.getValue());
+                case SCHEMA_ID -> schemaId = names.pulsarName(entry.getValue());
+                default -> {
+                }
+            }
+        }
+        this.pulsarLedger = pulsarApplication || managedCursor;
+        this.managedLedgerName = managedLedgerName;
+        this.compactedTopic = compactedTopic;
+        this.schemaId = schemaId;
+        this.topic = resolveTopic(ledgerId, managedLedgerName, compactedTopic, schemaId);
+    }
+
+    public Ledger(long ledgerId, long ctime, long length, boolean closed, int ensembleSize, int writeQuorumSize, int ackQuorumSize, String[] bookies,
+                  boolean pulsarLedger, String managedLedgerName, String compactedTopic, String schemaId) {
+        this.ledgerId = ledgerId;
+        this.ctime = ctime;
+        this.length = length;
+        this.closed = closed;
+        this.ensembleSize = ensembleSize;
+        this.writeQuorumSize = writeQuorumSize;
+        this.ackQuorumSize = ackQuorumSize;
+        this.bookies = bookies;
+        this.pulsarLedger = pulsarLedger;
+        this.managedLedgerName = managedLedgerName;
+        this.compactedTopic = compactedTopic;
+        this.schemaId = schemaId;
+        this.topic = resolveTopic(ledgerId, managedLedgerName, compactedTopic, schemaId);
+    }
+
+    private static TopicName resolveTopic(long ledgerId, String managedLedgerName, String compactedTopic, String schemaId) {
+        return Try.of(() -> {
+                    if (managedLedgerName != null) {
+                        return TopicName.get(TopicDomain.persistent.name() + "://" + managedLedgerName.replace("/persistent/", "/"));
+                    } else if (compactedTopic != null) {
+                        return TopicName.get(compactedTopic);
+                    } else if (schemaId != null) {
+                        return toSchemaTopic(schemaId);
+                    }
+                    return null;
+                })
+                .onFailure(e -> Log.debug("Could not resolve the topic of ledger " + ledgerId + ": " + e.getMessage()))
+                .getOrNull();
+    }
+
+    private static TopicName toSchemaTopic(String schemaId) {
+        return TopicName.get(TopicDomain.persistent.name() + "://" + schemaId);
     }
 
     public long getLedgerId() {
-        return this.ledgerMetadata.getLedgerId();
+        return this.ledgerId;
     }
 
     public long getLength() {
-        return ledgerMetadata.getLength();
+        return this.length;
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    public int getEnsembleSize() {
+        return this.ensembleSize;
     }
 
-    public Optional<String> getPulsarMetadata(String key) {
-        return Optional.ofNullable(pulsarMetadata.get(key));
+    public int getWriteQuorumSize() {
+        return this.writeQuorumSize;
+    }
+
+    public int getAckQuorumSize() {
+        return this.ackQuorumSize;
+    }
+
+    /**
+     * Distinct bookies over all ensembles of the ledger.
+     */
+    public List<String> getBookies() {
+        return List.of(this.bookies);
+    }
+
+    public Optional<String> getManagedLedgerName() {
+        return Optional.ofNullable(this.managedLedgerName);
+    }
+
+    public Optional<String> getCompactedTopic() {
+        return Optional.ofNullable(this.compactedTopic);
+    }
+
+    public Optional<String> getSchemaId() {
+        return Optional.ofNullable(this.schemaId);
     }
 
     public Optional<TopicName> getLedgerTopic() {
-        return getPulsarMetadata(MANAGED_LEDGER)
-                .map(mlName -> TopicName.get(TopicDomain.persistent.name() + "://" + mlName.replace("/persistent/", "/")))
-                .or(() -> getPulsarMetadata(COMPACTED_TOPIC)
-                        .map(TopicName::get)
-                        .or(() -> getPulsarMetadata(SCHEMA_ID)
-                                .map(schemaId -> TopicName.get(TopicDomain.persistent.name() + "://" + schemaId))));
+        return Optional.ofNullable(this.topic);
     }
 
     public Optional<TopicName> getSchemaLedgerTopic() {
-        return getPulsarMetadata(SCHEMA_ID)
-                                .map(schemaId -> TopicName.get(TopicDomain.persistent.name() + "://" + schemaId));
+        return getSchemaId().map(Ledger::toSchemaTopic);
     }
 
     public long getCtime() {
-        return this.ledgerMetadata.getCtime();
+        return this.ctime;
     }
 
     public boolean isSchemaLedger() {
-        return getPulsarMetadata(SCHEMA_ID).isPresent();
+        return this.schemaId != null;
     }
+
     public boolean isCompactedTopic() {
-        return getPulsarMetadata(COMPACTED_TOPIC).isPresent();
+        return this.compactedTopic != null;
     }
 
     public boolean isManagedLedger() {
-        return getPulsarMetadata(MANAGED_LEDGER).isPresent();
+        return this.managedLedgerName != null;
     }
 
     public boolean isPulsarLedger() {
-        return "pulsar".equals(this.pulsarMetadata.get("application")) || this.pulsarMetadata.containsKey(MANAGED_CURSOR);
+        return this.pulsarLedger;
     }
 
     @Override
@@ -83,7 +195,7 @@ public class Ledger {
 
     @Override
     public int hashCode() {
-        return Objects.hash(getLedgerId());
+        return Long.hashCode(getLedgerId());
     }
 
     @Override
@@ -93,14 +205,20 @@ public class Ledger {
                 " | ctime=" +
                 getCtime() +
                 " | topic=" +
-                getLedgerTopic().orElse(null) +
+                this.topic +
                 " | length=" +
                 getLength() +
+                " | closed=" +
+                isClosed() +
                 " | schemaLedger=" +
                 isSchemaLedger() +
                 " | pulsarLedger=" +
                 isPulsarLedger() +
-                " | meta=" +
-                pulsarMetadata;
+                " | managedLedger=" +
+                this.managedLedgerName +
+                " | compactedTopic=" +
+                this.compactedTopic +
+                " | schemaId=" +
+                this.schemaId;
     }
 }
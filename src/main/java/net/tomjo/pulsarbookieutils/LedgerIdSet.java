@@ -0,0 +1,356 @@
+package net.tomjo.pulsarbookieutils;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+
+/**
+ * Compressed set of ledger ids, split in chunks of 2^16 ids (roaring bitmap style). Sparse chunks are stored as sorted
+ * arrays, dense chunks as bitmaps, so mostly sequential BookKeeper ledger ids take a few bits each.
+ * <p>
+ * Not thread-safe.
+ */
+public class LedgerIdSet {
+
+    private static final int ARRAY_CONTAINER_MAX_SIZE = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private final TreeMap<Long, Container> containers = new TreeMap<>();
+
+    public LedgerIdSet() {
+    }
+
+    public static LedgerIdSet of(long... ledgerIds) {
+        LedgerIdSet ledgerIdSet = new LedgerIdSet();
+        for (long ledgerId : ledgerIds) {
+            ledgerIdSet.add(ledgerId);
+        }
+        return ledgerIdSet;
+    }
+
+    public static LedgerIdSet of(LongStream ledgerIds) {
+        LedgerIdSet ledgerIdSet = new LedgerIdSet();
+        ledgerIds.forEach(ledgerIdSet::add);
+        return ledgerIdSet;
+    }
+
+    public void add(long ledgerId) {
+        long key = ledgerId >>> 16;
+        Container container = containers.get(key);
+        if (container == null) {
+            containers.put(key, new ArrayContainer().add((char) ledgerId));
+        } else {
+            Container updated = container.add((char) ledgerId);
+            if (updated != container) {
+                containers.put(key, updated);
+            }
+        }
+    }
+
+    public boolean contains(long ledgerId) {
+        Container container = containers.get(ledgerId >>> 16);
+        return container != null && container.contains((char) ledgerId);
+    }
+
+    public void addAll(LedgerIdSet other) {
+        for (Map.Entry<Long, Container> entry : other.containers.entrySet()) {
+            containers.merge(entry.getKey(), entry.getValue().copy(), Container::or);
+        }
+    }
+
+    public void removeAll(LedgerIdSet other) {
+        for (Map.Entry<Long, Container> entry : other.containers.entrySet()) {
+            containers.computeIfPresent(entry.getKey(), (key, container) -> {
+                Container remaining = container.andNot(entry.getValue());
+                return remaining.cardinality() == 0 ? null : remaining;
+            });
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Container container : containers.values()) {
+            size += container.cardinality();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return containers.isEmpty();
+    }
+
+    public void forEach(LongConsumer consumer) {
+        containers.forEach((key, container) -> container.forEach(key << 16, consumer));
+    }
+
+    public PrimitiveIterator.OfLong iterator() {
+        return stream().iterator();
+    }
+
+    public LongStream stream() {
+        return containers.entrySet().stream()
+                .flatMapToLong(entry -> entry.getValue().stream(entry.getKey() << 16));
+    }
+
+    public LedgerIdSet copy() {
+        LedgerIdSet copy = new LedgerIdSet();
+        containers.forEach((key, container) -> copy.containers.put(key, container.copy()));
+        return copy;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LedgerIdSet that = (LedgerIdSet) o;
+        return size() == that.size() && Arrays.equals(stream().toArray(), that.stream().toArray());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(stream().toArray());
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "[", "]");
+        forEach(ledgerId -> joiner.add(Long.toString(ledgerId)));
+        return joiner.toString();
+    }
+
+    private interface Container {
+
+        Container add(char value);
+
+        boolean contains(char value);
+
+        int cardinality();
+
+        Container or(Container other);
+
+        Container andNot(Container other);
+
+        Container copy();
+
+        void forEach(long base, LongConsumer consumer);
+
+        LongStream stream(long base);
+    }
+
+    private static final class ArrayContainer implements Container {
+
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        public Container add(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (cardinality >= ARRAY_CONTAINER_MAX_SIZE) {
+                return toBitmap().add(value);
+            }
+            int insertionPoint = -index - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(values.length * 2, ARRAY_CONTAINER_MAX_SIZE));
+            }
+            System.arraycopy(values, insertionPoint, values, insertionPoint + 1, cardinality - insertionPoint);
+            values[insertionPoint] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public Container or(Container other) {
+            if (other instanceof ArrayContainer array) {
+                char[] merged = new char[cardinality + array.cardinality];
+                int i = 0, j = 0, k = 0;
+                while (i < cardinality && j < array.cardinality) {
+                    char a = values[i];
+                    char b = array.values[j];
+                    if (a < b) {
+                        merged[k++] = a;
+                        i++;
+                    } else if (a > b) {
+                        merged[k++] = b;
+                        j++;
+                    } else {
+                        merged[k++] = a;
+                        i++;
+                        j++;
+                    }
+                }
+                while (i < cardinality) {
+                    merged[k++] = values[i++];
+                }
+                while (j < array.cardinality) {
+                    merged[k++] = array.values[j++];
+                }
+                ArrayContainer result = new ArrayContainer(merged, k);
+                return k > ARRAY_CONTAINER_MAX_SIZE ? result.toBitmap() : result;
+            }
+            return other.or(this);
+        }
+
+        @Override
+        public Container andNot(Container other) {
+            char[] remaining = new char[cardinality];
+            int k = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (!other.contains(values[i])) {
+                    remaining[k++] = values[i];
+                }
+            }
+            return new ArrayContainer(remaining, k);
+        }
+
+        @Override
+        public Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(cardinality, 1)), cardinality);
+        }
+
+        @Override
+        public void forEach(long base, LongConsumer consumer) {
+            for (int i = 0; i < cardinality; i++) {
+                consumer.accept(base | values[i]);
+            }
+        }
+
+        @Override
+        public LongStream stream(long base) {
+            return LongStream.range(0, cardinality).map(i -> base | values[(int) i]);
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapContainer implements Container {
+
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer() {
+            this(new long[BITMAP_WORDS], 0);
+        }
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        public Container add(char value) {
+            long mask = 1L << value;
+            int index = value >>> 6;
+            if ((words[index] & mask) == 0) {
+                words[index] |= mask;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public Container or(Container other) {
+            BitmapContainer result = (BitmapContainer) copy();
+            if (other instanceof BitmapContainer bitmap) {
+                int cardinality = 0;
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    result.words[i] |= bitmap.words[i];
+                    cardinality += Long.bitCount(result.words[i]);
+                }
+                result.cardinality = cardinality;
+            } else {
+                other.forEach(0, value -> result.add((char) value));
+            }
+            return result;
+        }
+
+        @Override
+        public Container andNot(Container other) {
+            long[] remaining = Arrays.copyOf(words, BITMAP_WORDS);
+            if (other instanceof BitmapContainer bitmap) {
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    remaining[i] &= ~bitmap.words[i];
+                }
+            } else {
+                other.forEach(0, value -> remaining[(int) value >>> 6] &= ~(1L << value));
+            }
+            int cardinality = 0;
+            for (long word : remaining) {
+                cardinality += Long.bitCount(word);
+            }
+            BitmapContainer result = new BitmapContainer(remaining, cardinality);
+            return cardinality <= ARRAY_CONTAINER_MAX_SIZE ? result.toArray() : result;
+        }
+
+        @Override
+        public Container copy() {
+            return new BitmapContainer(Arrays.copyOf(words, BITMAP_WORDS), cardinality);
+        }
+
+        @Override
+        public void forEach(long base, LongConsumer consumer) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    consumer.accept(base | ((long) i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        public LongStream stream(long base) {
+            LongStream.Builder builder = LongStream.builder();
+            forEach(base, builder);
+            return builder.build();
+        }
+
+        ArrayContainer toArray() {
+            char[] values = new char[cardinality];
+            int[] k = {0};
+            forEach(0, value -> values[k[0]++] = (char) value);
+            return new ArrayContainer(values, cardinality);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package net.tomjo.pulsarbookieutils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns the managed ledger, compacted topic, schema and bookie names of the ledgers of a single scan. Thousands of
+ * ledgers share the same managed ledger, so each distinct name is decoded and kept only once. The names are released
+ * together with the instance, create one per scan rather than sharing one across scans.
+ * <p>
+ * Thread-safe.
+ */
+public class LedgerNames {
+
+    private static final LedgerNames NONE = new LedgerNames(false);
+
+    private final Map<ByteBuffer, String> pulsarNames;
+    private final Map<String, String> bookies;
+
+    public LedgerNames() {
+        this(true);
+    }
+
+    private LedgerNames(boolean interning) {
+        this.pulsarNames = interning ? new ConcurrentHashMap<>() : null;
+        this.bookies = interning ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * Names that are decoded for every ledger instead of being interned.
+     */
+    public static LedgerNames none() {
+        return NONE;
+    }
+
+    String pulsarName(byte[] value) {
+        if (pulsarNames == null) {
+            return new String(value, StandardCharsets.UTF_8);
+        }
+        String name = pulsarNames.get(ByteBuffer.wrap(value));
+        if (name == null) {
+            name = new String(value, StandardCharsets.UTF_8);
+            String existing = pulsarNames.putIfAbsent(ByteBuffer.wrap(value), name);
+            return existing == null ? name : existing;
+        }
+        return name;
+    }
+
+    String bookie(String bookie) {
+        if (bookies == null) {
+            return bookie;
+        }
+        String existing = bookies.putIfAbsent(bookie, bookie);
+        return existing == null ? bookie : existing;
+    }
+}
@@ -0,0 +1,44 @@
+package net.tomjo.pulsarbookieutils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static java.util.Comparator.comparingLong;
+
+/**
+ * The {@code limit} oldest ledgers by creation time out of all ledgers offered, kept in a heap with the youngest
+ * retained ledger on top, so memory stays bounded by the limit regardless of how many ledgers are offered.
+ * <p>
+ * Thread-safe.
+ */
+public class OldestLedgers {
+
+    private static final Comparator<Ledger> OLDEST_FIRST = comparingLong(Ledger::getCtime).thenComparingLong(Ledger::getLedgerId);
+
+    private final int limit;
+    private final PriorityQueue<Ledger> youngestFirst = new PriorityQueue<>(OLDEST_FIRST.reversed());
+
+    public OldestLedgers(int limit) {
+        this.limit = limit;
+    }
+
+    public synchronized void offer(Ledger ledger) {
+        if (youngestFirst.size() < limit) {
+            youngestFirst.add(ledger);
+        } else if (limit > 0 && OLDEST_FIRST.compare(ledger, youngestFirst.peek()) < 0) {
+            youngestFirst.poll();
+            youngestFirst.add(ledger);
+        }
+    }
+
+    /**
+     * The retained ledgers, oldest first.
+     */
+    public synchronized List<Ledger> toList() {
+        List<Ledger> ledgers = new ArrayList<>(youngestFirst);
+        ledgers.sort(OLDEST_FIRST);
+        return ledgers;
+    }
+}
@@ -0,0 +1,12 @@
+package net.tomjo.pulsarbookieutils.audit;
+
+/**
+ * One analysis of an audit. All analyzers of an audit share the same {@link AuditInput} and run concurrently, so they
+ * should only read from it.
+ */
+public interface AuditAnalyzer {
+
+    String name();
+
+    AuditSection analyze(AuditInput input);
+}
@@ -0,0 +1,27 @@
+package net.tomjo.pulsarbookieutils.audit;
+
+import net.tomjo.pulsarbookieutils.Ledger;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import net.tomjo.pulsarbookieutils.service.OrphanedLedgerFinder;
+import net.tomjo.pulsarbookieutils.service.RetentionResolver;
+import org.apache.pulsar.common.policies.data.PersistentTopicInternalStats;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Cluster state collected once for all analyzers of an audit. Rather than every scanned ledger it only holds what the
+ * analyzers need: {@code orphanCandidates} are the orphan candidates, as selected by
+ * {@link OrphanedLedgerFinder#orphanCandidates}, among the Pulsar ledgers of topics within the audited resource and
+ * {@code unlinkedOrphanCandidates} those among the Pulsar ledgers that can't be linked to any topic.
+ * {@code ledgerSizes} sums the lengths of the Pulsar ledgers of the resource per namespace and {@code oldestLedgers}
+ * keeps the oldest of them. {@code existingLedgers} are the ids of all ledgers listed in the metadata store.
+ * {@code topicStats} holds the internal stats of the topics within the resource and of the topics of the ledgers, empty
+ * when the topic doesn't exist. Topics whose stats couldn't be requested are left out. The
+ * {@code orphanedLedgerFinder} serves the ledgers used by topics from those stats.
+ */
+public record AuditInput(String resource, long nowMillis, Map<Long, Ledger> orphanCandidates, Map<Long, Ledger> unlinkedOrphanCandidates,
+                         Map<String, Long> ledgerSizes, OldestLedgers oldestLedgers,
+                         LedgerIdSet existingLedgers, Map<String, Optional<PersistentTopicInternalStats>> topicStats,
+                         OrphanedLedgerFinder orphanedLedgerFinder, RetentionResolver retentionResolver) {
+}
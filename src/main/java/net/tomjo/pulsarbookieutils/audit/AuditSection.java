@@ -0,0 +1,9 @@
+package net.tomjo.pulsarbookieutils.audit;
+
+import java.util.List;
+
+/**
+ * Findings of one analyzer: a one line summary and a line per finding.
+ */
+public record AuditSection(String analyzer, String summary, List<String> findings) {
+}
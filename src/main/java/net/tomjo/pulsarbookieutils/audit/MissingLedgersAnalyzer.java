@@ -0,0 +1,36 @@
+package net.tomjo.pulsarbookieutils.audit;
+
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import net.tomjo.pulsarbookieutils.service.PulsarResourcesService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Ledgers used by topics according to their internal stats that don't exist in the metadata store.
+ */
+public class MissingLedgersAnalyzer implements AuditAnalyzer {
+
+    @Override
+    public String name() {
+        return "missing";
+    }
+
+    @Override
+    public AuditSection analyze(AuditInput input) {
+        List<String> findings = new ArrayList<>();
+        LedgerIdSet missingLedgers = new LedgerIdSet();
+        new TreeMap<>(input.topicStats()).forEach((topic, stats) -> stats.map(PulsarResourcesService::getUsedLedgers)
+                .map(usedLedgers -> {
+                    usedLedgers.removeAll(input.existingLedgers());
+                    return usedLedgers;
+                })
+                .filter(topicMissingLedgers -> !topicMissingLedgers.isEmpty())
+                .ifPresent(topicMissingLedgers -> {
+                    findings.add("Topic " + topic + " uses missing ledgers " + topicMissingLedgers);
+                    missingLedgers.addAll(topicMissingLedgers);
+                }));
+        return new AuditSection(name(), missingLedgers.size() + " missing ledgers used by " + findings.size() + " topics", findings);
+    }
+}
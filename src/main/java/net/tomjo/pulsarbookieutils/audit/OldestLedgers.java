@@ -0,0 +1,57 @@
+package net.tomjo.pulsarbookieutils.audit;
+
+import net.tomjo.pulsarbookieutils.Ledger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static java.util.Comparator.comparingLong;
+
+/**
+ * The oldest of the offered ledgers by creation time and ledger id, bounded to a capacity so a scan keeps a fixed number
+ * of ledgers however many it offers. Safe for concurrent use.
+ */
+public class OldestLedgers {
+
+    private static final Comparator<Ledger> OLDEST_FIRST = comparingLong(Ledger::getCtime).thenComparingLong(Ledger::getLedgerId);
+
+    private final int capacity;
+    private final PriorityQueue<Ledger> youngestFirst;
+    private long offered;
+
+    public OldestLedgers(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity should be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.youngestFirst = new PriorityQueue<>(Math.min(capacity, 1024), OLDEST_FIRST.reversed());
+    }
+
+    public synchronized void offer(Ledger ledger) {
+        offered++;
+        if (youngestFirst.size() < capacity) {
+            youngestFirst.add(ledger);
+        } else if (OLDEST_FIRST.compare(ledger, youngestFirst.peek()) < 0) {
+            youngestFirst.poll();
+            youngestFirst.add(ledger);
+        }
+    }
+
+    /**
+     * The kept ledgers, oldest first.
+     */
+    public synchronized List<Ledger> oldestFirst() {
+        List<Ledger> ledgers = new ArrayList<>(youngestFirst);
+        ledgers.sort(OLDEST_FIRST);
+        return ledgers;
+    }
+
+    /**
+     * Whether younger ledgers were dropped because the capacity was reached.
+     */
+    public synchronized boolean isTruncated() {
+        return offered > capacity;
+    }
+}
@@ -0,0 +1,52 @@
+package net.tomjo.pulsarbookieutils.audit;
+
+import net.tomjo.pulsarbookieutils.Ledger;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import net.tomjo.pulsarbookieutils.service.OrphanedLedgerFinder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Pulsar ledgers of the audited resource that clean-orphan-ledgers would delete, with the reason they are orphaned.
+ */
+public class OrphanedLedgersAnalyzer implements AuditAnalyzer {
+
+    private final long minimumAgeMillis;
+
+    public OrphanedLedgersAnalyzer(long minimumAgeMillis) {
+        this.minimumAgeMillis = minimumAgeMillis;
+    }
+
+    @Override
+    public String name() {
+        return "orphans";
+    }
+
+    @Override
+    public AuditSection analyze(AuditInput input) {
+        return analyze(name(), input, input.orphanCandidates(), "orphaned ledgers");
+    }
+
+    /**
+     * Classifies the orphan candidates the way clean-orphan-ledgers does, reporting the orphans in order of ledger id.
+     * The candidates were selected during the scan with the same minimum age.
+     */
+    AuditSection analyze(String name, AuditInput input, Map<Long, Ledger> candidates, String description) {
+        Predicate<Ledger> isOldEnough = ledger -> input.nowMillis() > ledger.getCtime() + minimumAgeMillis;
+        OrphanedLedgerFinder orphanedLedgerFinder = input.orphanedLedgerFinder();
+        Map<Long, LedgerIdSet> usedLedgers = orphanedLedgerFinder.findUsedLedgers(candidates);
+        Map<Long, String> findingsByLedger = new TreeMap<>();
+        long orphanedBytes = 0L;
+        for (Map.Entry<Ledger, String> orphan : orphanedLedgerFinder.findOrphanedLedgers(candidates, usedLedgers, isOldEnough).entrySet()) {
+            Ledger ledger = orphan.getKey();
+            findingsByLedger.put(ledger.getLedgerId(), "Orphaned ledger " + ledger.getLedgerId() + " (" + orphan.getValue() + "): " + ledger);
+            orphanedBytes += ledger.getLength();
+        }
+        List<String> findings = new ArrayList<>(findingsByLedger.values());
+        return new AuditSection(name, findings.size() + " " + description + " of " + orphanedBytes + " bytes", findings);
+    }
+}
@@ -0,0 +1,37 @@
+package net.tomjo.pulsarbookieutils.audit;
+
+import org.apache.pulsar.common.naming.TopicName;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Storage size of the audited resource per namespace, both according to the internal stats of its topics and to the
+ * lengths in the metadata of its ledgers. A large difference points at ledgers not accounted for by the brokers.
+ */
+public class StorageSizeAnalyzer implements AuditAnalyzer {
+
+    @Override
+    public String name() {
+        return "size";
+    }
+
+    @Override
+    public AuditSection analyze(AuditInput input) {
+        Map<String, Long> topicStatsSizes = new TreeMap<>();
+        Map<String, Long> ledgerSizes = new TreeMap<>(input.ledgerSizes());
+        input.topicStats().forEach((topic, stats) -> stats.ifPresent(s -> topicStatsSizes.merge(TopicName.get(topic).getNamespace(), s.totalSize, Long::sum)));
+
+        List<String> findings = new ArrayList<>();
+        Map<String, Long> namespaces = new TreeMap<>(topicStatsSizes);
+        ledgerSizes.keySet().forEach(namespace -> namespaces.putIfAbsent(namespace, 0L));
+        namespaces.keySet().forEach(namespace -> findings.add("Storage size for namespace " + namespace + ": " + topicStatsSizes.getOrDefault(namespace, 0L)
+                + " bytes according to topic stats, " + ledgerSizes.getOrDefault(namespace, 0L) + " bytes according to ledger metadata"));
+        long topicStatsSize = topicStatsSizes.values().stream().mapToLong(Long::longValue).sum();
+        long ledgerSize = ledgerSizes.values().stream().mapToLong(Long::longValue).sum();
+        return new AuditSection(name(), "Storage size for " + input.resource() + ": " + topicStatsSize + " bytes according to topic stats, "
+                + ledgerSize + " bytes according to ledger metadata", findings);
+    }
+}
@@ -0,0 +1,57 @@
+package net.tomjo.pulsarbookieutils.audit;
+
+import net.tomjo.pulsarbookieutils.Ledger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The oldest ledgers expired according to the retention policy of their topic or namespace, as trim-ledgers would
+ * select them by amount. Ledgers whose retention can't be resolved are skipped. Only the {@link #checkedLedgers}
+ * oldest ledgers of the resource are collected, so fewer candidates are reported when more of those are retained.
+ */
+public class TrimCandidatesAnalyzer implements AuditAnalyzer {
+
+    private static final int CHECKED_LEDGERS_PER_CANDIDATE = 10;
+
+    private final int amount;
+
+    public TrimCandidatesAnalyzer(int amount) {
+        this.amount = amount;
+    }
+
+    @Override
+    public String name() {
+        return "trim";
+    }
+
+    @Override
+    public AuditSection analyze(AuditInput input) {
+        List<String> findings = new ArrayList<>();
+        long expiredBytes = 0L;
+        List<Ledger> oldestFirst = input.oldestLedgers().oldestFirst();
+        for (Ledger ledger : oldestFirst) {
+            if (findings.size() >= amount) {
+                break;
+            }
+            boolean expired = input.retentionResolver().isExpired(ledger.getLedgerTopic().orElseThrow(), ledger.getCtime(), input.nowMillis())
+                    .getOrElse(false);
+            if (expired) {
+                findings.add("Trim candidate: " + ledger);
+                expiredBytes += ledger.getLength();
+            }
+        }
+        String summary = findings.size() + " expired ledgers of " + expiredBytes + " bytes eligible for trimming";
+        if (findings.size() < amount && input.oldestLedgers().isTruncated()) {
+            summary += " among the " + oldestFirst.size() + " oldest ledgers";
+        }
+        return new AuditSection(name(), summary, findings);
+    }
+
+    /**
+     * Amount of oldest ledgers to collect for checking the retention of, for the given amount of trim candidates.
+     */
+    public static int checkedLedgers(int amount) {
+        return (int) Math.min(Math.max(amount, 1) * (long) CHECKED_LEDGERS_PER_CANDIDATE, Integer.MAX_VALUE);
+    }
+}
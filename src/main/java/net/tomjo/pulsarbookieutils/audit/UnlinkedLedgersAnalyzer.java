@@ -0,0 +1,24 @@
+package net.tomjo.pulsarbookieutils.audit;
+
+/**
+ * Orphaned Pulsar ledgers that can't be linked to any topic. These don't belong to the audited resource, so they are
+ * reported for the whole cluster, separately from the orphans of the resource.
+ */
+public class UnlinkedLedgersAnalyzer implements AuditAnalyzer {
+
+    private final OrphanedLedgersAnalyzer orphanedLedgersAnalyzer;
+
+    public UnlinkedLedgersAnalyzer(long minimumAgeMillis) {
+        this.orphanedLedgersAnalyzer = new OrphanedLedgersAnalyzer(minimumAgeMillis);
+    }
+
+    @Override
+    public String name() {
+        return "unlinked";
+    }
+
+    @Override
+    public AuditSection analyze(AuditInput input) {
+        return orphanedLedgersAnalyzer.analyze(name(), input, input.unlinkedOrphanCandidates(), "orphaned ledgers not linked to a topic cluster-wide");
+    }
+}
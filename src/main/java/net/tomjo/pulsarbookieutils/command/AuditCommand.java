@@ -0,0 +1,294 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import io.quarkus.logging.Log;
+import io.vavr.concurrent.Future;
+import net.tomjo.pulsarbookieutils.Ledger;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import net.tomjo.pulsarbookieutils.audit.AuditAnalyzer;
+import net.tomjo.pulsarbookieutils.audit.AuditInput;
+import net.tomjo.pulsarbookieutils.audit.AuditSection;
+import net.tomjo.pulsarbookieutils.audit.MissingLedgersAnalyzer;
+import net.tomjo.pulsarbookieutils.audit.OldestLedgers;
+import net.tomjo.pulsarbookieutils.audit.OrphanedLedgersAnalyzer;
+import net.tomjo.pulsarbookieutils.audit.StorageSizeAnalyzer;
+import net.tomjo.pulsarbookieutils.audit.TrimCandidatesAnalyzer;
+import net.tomjo.pulsarbookieutils.audit.UnlinkedLedgersAnalyzer;
+import net.tomjo.pulsarbookieutils.service.BoundedTaskScope;
+import net.tomjo.pulsarbookieutils.service.LedgerMetadataService;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
+import net.tomjo.pulsarbookieutils.service.OrphanedLedgerFinder;
+import net.tomjo.pulsarbookieutils.service.PulsarResourcesService;
+import net.tomjo.pulsarbookieutils.service.RateGovernor;
+import net.tomjo.pulsarbookieutils.service.RetentionResolver;
+import net.tomjo.pulsarbookieutils.service.TopicNotFoundException;
+import net.tomjo.pulsarbookieutils.service.UsedLedgersProvider;
+import org.apache.pulsar.common.naming.TopicName;
+import org.apache.pulsar.common.policies.data.PersistentTopicInternalStats;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import picocli.CommandLine.Spec;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import static net.tomjo.pulsarbookieutils.Util.isNamespace;
+import static net.tomjo.pulsarbookieutils.Util.isTopic;
+
+@Command(name = "audit", description = "Report orphaned and missing ledgers, storage size and trim candidates of tenant, namespace or topic from a single scan of ledger metadata and topic internal stats.")
+public class AuditCommand implements Runnable, ServiceConsumer {
+
+    private static final long DAY_IN_MILLIS = 86400000L;
+
+    @Spec
+    CommandSpec spec;
+
+    @Option(
+            names = {"-p", "--pulsar-admin"},
+            description = "Pulsar admin endpoint",
+            required = true
+    )
+    String pulsarAdminHost;
+    @Option(
+            names = {"--auth-plugin"},
+            description = "Pulsar auth plugin"
+    )
+    String authPlugin;
+
+    @Option(
+            names = {"--auth-params"},
+            description = "Pulsar auth params"
+    )
+    String authParams;
+
+    @Option(
+            names = {"--tls-trust-certs-file-path"},
+            description = "Path to certificate to be trusted for TLS connection"
+    )
+    String tlsTrustCertsFilePath;
+
+    @Option(
+            names = {"--admin-concurrency"},
+            description = "Maximum number of concurrent Pulsar admin requests. Default 16"
+    )
+    int adminConcurrency = PulsarResourcesService.DEFAULT_ADMIN_CONCURRENCY;
+
+    @Option(
+            names = {"-z", "--zookeeper"},
+            description = "Zookeeper host",
+            required = true
+    )
+    String zookeeperHost;
+
+    @Option(
+            names = {"-zt", "--zookeeper-timeout"},
+            description = "Zookeeper session timeout in milliseconds"
+    )
+    int zookeeperTimeout = 30000;
+
+    @Option(
+            names = {"--scan-concurrency"},
+            description = "Maximum number of concurrent ledger metadata reads while scanning. Default 100"
+    )
+    int scanConcurrency = LedgerMetadataService.DEFAULT_SCAN_CONCURRENCY;
+
+    @Option(
+            names = {"--snapshot-file"},
+            description = "Ledger metadata snapshot file. Closed ledgers are read from the snapshot instead of the metadata store, the snapshot is updated after each scan"
+    )
+    Path snapshotFile;
+
+    @Option(
+            names = {"--analyzers"},
+            split = ",",
+            description = "Analyses to run: orphans, unlinked, missing, size, trim. Default all"
+    )
+    List<String> analyzerNames;
+
+    @Option(
+            names = {"--min-orphan-age"},
+            description = {"Minimum orphan ledger age in days. Default 10 days"}
+    )
+    long minimumOrphanAge = 10;
+
+    @Option(
+            names = {"--trim-amount"},
+            description = {"Amount of expired ledgers to report as trim candidates. Default 10"}
+    )
+    int trimAmount = 10;
+
+    @Parameters(index = "0", description = "The resource to audit.")
+    String resource;
+
+    @Mixin
+    RateLimitOptions rateLimitOptions;
+
+    @Mixin
+    MetricsOptions metricsOptions;
+
+    private final OperationMetrics operationMetrics = new OperationMetrics();
+
+    private ServiceProvider serviceProvider = ServiceProvider.direct();
+
+    private final Clock clock;
+
+    private PulsarResourcesService pulsarResourcesService;
+
+    private LedgerMetadataService ledgerMetadataService;
+
+    public AuditCommand(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public void useServiceProvider(ServiceProvider serviceProvider) {
+        this.serviceProvider = serviceProvider;
+    }
+
+    @Override
+    public void run() {
+        List<AuditAnalyzer> analyzers = createAnalyzers();
+        Map<String, Object> pulsarConfig = new HashMap<>();
+        if (tlsTrustCertsFilePath != null) {
+            pulsarConfig.put("tlsTrustCertsFilePath", tlsTrustCertsFilePath);
+        }
+        RateGovernor rateGovernor = rateLimitOptions.createRateGovernor();
+        try {
+            this.pulsarResourcesService = serviceProvider.pulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig, adminConcurrency, rateGovernor, operationMetrics).get();
+            this.ledgerMetadataService = serviceProvider.ledgerMetadataService(zookeeperHost, zookeeperTimeout, scanConcurrency, LedgerMetadataService.DEFAULT_DELETE_CONCURRENCY, snapshotFile, rateGovernor, operationMetrics).get();
+            AuditInput input = collectAuditInput();
+            List<AuditSection> sections = operationMetrics.timePhase("analyze", () -> analyze(analyzers, input));
+            sections.forEach(section -> {
+                Log.info("[" + section.analyzer() + "] " + section.summary());
+                section.findings().forEach(finding -> Log.info("[" + section.analyzer() + "] " + finding));
+            });
+        } finally {
+            serviceProvider.release(this.pulsarResourcesService);
+            serviceProvider.release(this.ledgerMetadataService);
+            metricsOptions.writeSummary(operationMetrics);
+        }
+    }
+
+    private List<AuditAnalyzer> createAnalyzers() {
+        Map<String, AuditAnalyzer> available = new LinkedHashMap<>();
+        List.of(new OrphanedLedgersAnalyzer(minimumOrphanAge * DAY_IN_MILLIS), new UnlinkedLedgersAnalyzer(minimumOrphanAge * DAY_IN_MILLIS), new MissingLedgersAnalyzer(), new StorageSizeAnalyzer(), new TrimCandidatesAnalyzer(trimAmount))
+                .forEach(analyzer -> available.put(analyzer.name(), analyzer));
+        if (analyzerNames == null) {
+            return List.copyOf(available.values());
+        }
+        return analyzerNames.stream()
+                .distinct()
+                .map(name -> Optional.ofNullable(available.get(name))
+                        .orElseThrow(() -> new CommandLine.ParameterException(spec.commandLine(), "Unknown analyzer " + name + ", expected one of " + available.keySet())))
+                .toList();
+    }
+
+    /**
+     * Scans the ledger metadata while listing the topics of the resource, requesting the internal stats of every topic
+     * listed or linked to a scanned ledger of the resource once. The ledgers are listed once all stats are in, so
+     * ledgers created during the scan and already used by a topic aren't reported missing. Only the orphan candidates,
+     * the ledger sizes per namespace and the oldest ledgers are kept from the scan.
+     */
+    private AuditInput collectAuditInput() {
+        long nowMillis = clock.millis();
+        Predicate<TopicName> inResource = resourcePredicate();
+        Predicate<Ledger> isOldEnough = ledger -> nowMillis > ledger.getCtime() + minimumOrphanAge * DAY_IN_MILLIS;
+        Predicate<Ledger> isOrphanCandidate = OrphanedLedgerFinder.orphanCandidates(isOldEnough);
+        Predicate<Ledger> isUnlinkedOrphanCandidate = OrphanedLedgerFinder.orphanCandidates(isOldEnough);
+        Map<Long, Ledger> orphanCandidates = new ConcurrentHashMap<>();
+        Map<Long, Ledger> unlinkedOrphanCandidates = new ConcurrentHashMap<>();
+        Map<String, Long> ledgerSizes = new ConcurrentHashMap<>();
+        OldestLedgers oldestLedgers = new OldestLedgers(TrimCandidatesAnalyzer.checkedLedgers(trimAmount));
+        Map<String, Future<PersistentTopicInternalStats>> statsRequests = new ConcurrentHashMap<>();
+
+        Future<Void> listing = pulsarResourcesService.streamTopics(resource, topics -> topics.forEach(topic -> requestInternalStats(statsRequests, topic)));
+        operationMetrics.runPhase("scan-ledgers", () -> ledgerMetadataService.scanLedgers(ledger -> {
+                    if (ledger.isPulsarLedger()) {
+                        ledger.getLedgerTopic().ifPresentOrElse(topic -> {
+                            if (inResource.test(topic)) {
+                                if (isOrphanCandidate.test(ledger)) {
+                                    orphanCandidates.put(ledger.getLedgerId(), ledger);
+                                }
+                                ledgerSizes.merge(topic.getNamespace(), ledger.getLength(), Long::sum);
+                                oldestLedgers.offer(ledger);
+                                requestInternalStats(statsRequests, topic.toString());
+                            }
+                        }, () -> {
+                            if (isUnlinkedOrphanCandidate.test(ledger)) {
+                                unlinkedOrphanCandidates.put(ledger.getLedgerId(), ledger);
+                            }
+                        });
+                    }
+                })
+                .get()
+                .get());
+
+        Map<String, Optional<PersistentTopicInternalStats>> topicStats = new HashMap<>();
+        operationMetrics.runPhase("get-topic-stats", () -> {
+            listing.await();
+            statsRequests.values().forEach(Future::await);
+            statsRequests.forEach((topic, stats) -> {
+                if (stats.isSuccess()) {
+                    topicStats.put(topic, Optional.of(stats.get()));
+                } else if (PulsarResourcesService.isNotFound(stats.getCause().get())) {
+                    topicStats.put(topic, Optional.empty());
+                } else {
+                    Log.warn("Could not get internal stats of topic " + topic + ", requesting its ledgers again when needed: " + stats.getCause().get().getMessage());
+                }
+            });
+        });
+        LedgerIdSet existingLedgers = operationMetrics.timePhase("list-ledgers", () -> ledgerMetadataService.listLedgers().get().get());
+        Map<String, Optional<LedgerIdSet>> topicUsedLedgers = new HashMap<>();
+        topicStats.forEach((topic, stats) -> topicUsedLedgers.put(topic, stats.map(PulsarResourcesService::getUsedLedgers)));
+        return new AuditInput(resource, nowMillis, orphanCandidates, unlinkedOrphanCandidates, ledgerSizes, oldestLedgers, existingLedgers, topicStats,
+                new OrphanedLedgerFinder(collectedUsedLedgersProvider(topicUsedLedgers), ledgerMetadataService),
+                new RetentionResolver(pulsarResourcesService));
+    }
+
+    /**
+     * Serves the ledgers used by topics from the collected internal stats. Those of any other topic, such as the first
+     * partition of a partitioned topic, or of a topic whose stats couldn't be requested are requested from the brokers.
+     */
+    private UsedLedgersProvider collectedUsedLedgersProvider(Map<String, Optional<LedgerIdSet>> topicUsedLedgers) {
+        return topic -> Optional.ofNullable(topicUsedLedgers.get(topic))
+                .map(usedLedgers -> usedLedgers.map(Future::successful).orElseGet(() -> Future.failed(new TopicNotFoundException(topic))))
+                .orElseGet(() -> pulsarResourcesService.getLedgersUsedByTopic(topic));
+    }
+
+    private void requestInternalStats(Map<String, Future<PersistentTopicInternalStats>> statsRequests, String topic) {
+        statsRequests.computeIfAbsent(topic, pulsarResourcesService::getInternalStats);
+    }
+
+    private Predicate<TopicName> resourcePredicate() {
+        if (isTopic(resource)) {
+            String partitionedTopicName = TopicName.get(resource).getPartitionedTopicName();
+            return topic -> topic.getPartitionedTopicName().equals(partitionedTopicName);
+        } else if (isNamespace(resource)) {
+            return topic -> topic.getNamespace().equals(resource);
+        }
+        return topic -> topic.getTenant().equals(resource);
+    }
+
+    private List<AuditSection> analyze(List<AuditAnalyzer> analyzers, AuditInput input) {
+        AuditSection[] sections = new AuditSection[analyzers.size()];
+        try (BoundedTaskScope scope = new BoundedTaskScope(analyzers.size())) {
+            for (int i = 0; i < analyzers.size(); i++) {
+                AuditAnalyzer analyzer = analyzers.get(i);
+                int index = i;
+                scope.fork(() -> sections[index] = analyzer.analyze(input));
+            }
+            scope.join();
+        }
+        return List.of(sections);
+    }
+}
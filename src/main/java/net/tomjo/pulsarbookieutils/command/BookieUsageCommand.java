@@ -0,0 +1,130 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import io.quarkus.logging.Log;
+import net.tomjo.pulsarbookieutils.BookieLoad;
+import net.tomjo.pulsarbookieutils.Ledger;
+import net.tomjo.pulsarbookieutils.service.LedgerMetadataService;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
+import net.tomjo.pulsarbookieutils.service.RateGovernor;
+import org.apache.pulsar.common.naming.TopicName;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
+import picocli.CommandLine.Option;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+@Command(name = "bookie-usage", description = "Report the bytes stored per bookie, estimated from the ledger metadata in a single scan without any Pulsar admin requests.")
+public class BookieUsageCommand implements Runnable, ServiceConsumer {
+
+    private static final String UNKNOWN = "(unknown)";
+
+    @Option(
+            names = {"-z", "--zookeeper"},
+            description = "Zookeeper host",
+            required = true
+    )
+    String zookeeperHost;
+
+    @Option(
+            names = {"-zt", "--zookeeper-timeout"},
+            description = "Zookeeper session timeout in milliseconds"
+    )
+    int zookeeperTimeout = 30000;
+
+    @Option(
+            names = {"--scan-concurrency"},
+            description = "Maximum number of concurrent ledger metadata reads while scanning. Default 100"
+    )
+    int scanConcurrency = LedgerMetadataService.DEFAULT_SCAN_CONCURRENCY;
+
+    @Option(
+            names = {"--breakdown"},
+            description = "Also log the bytes stored per bookie for each tenant and namespace"
+    )
+    boolean breakdown = false;
+
+    @Mixin
+    RateLimitOptions rateLimitOptions;
+
+    @Mixin
+    MetricsOptions metricsOptions;
+
+    private final OperationMetrics operationMetrics = new OperationMetrics();
+
+    private ServiceProvider serviceProvider = ServiceProvider.direct();
+
+    private LedgerMetadataService ledgerMetadataService;
+
+    public BookieUsageCommand() {
+    }
+
+    @Override
+    public void useServiceProvider(ServiceProvider serviceProvider) {
+        this.serviceProvider = serviceProvider;
+    }
+
+    @Override
+    public void run() {
+        RateGovernor rateGovernor = rateLimitOptions.createRateGovernor();
+        try {
+            this.ledgerMetadataService = serviceProvider.ledgerMetadataService(zookeeperHost, zookeeperTimeout, scanConcurrency, LedgerMetadataService.DEFAULT_DELETE_CONCURRENCY, null, rateGovernor, operationMetrics).get();
+            printBookieUsage();
+        } finally {
+            serviceProvider.release(this.ledgerMetadataService);
+            metricsOptions.writeSummary(operationMetrics);
+        }
+    }
+
+    private void printBookieUsage() {
+        BookieLoad bookieLoad = new BookieLoad();
+        Map<String, BookieLoad> tenantLoads = new ConcurrentHashMap<>();
+        Map<String, BookieLoad> namespaceLoads = new ConcurrentHashMap<>();
+        LongAdder ledgerCount = new LongAdder();
+        LongAdder ledgerBytes = new LongAdder();
+        operationMetrics.runPhase("scan-ledgers", () -> ledgerMetadataService.scanLedgers(ledger -> {
+                    ledgerCount.increment();
+                    ledgerBytes.add(ledger.getLength());
+                    bookieLoad.add(ledger);
+                    if (breakdown) {
+                        tenantLoads.computeIfAbsent(tenantOf(ledger), t -> new BookieLoad()).add(ledger);
+                        namespaceLoads.computeIfAbsent(namespaceOf(ledger), n -> new BookieLoad()).add(ledger);
+                    }
+                })
+                .get()
+                .get());
+
+        Map<String, Long> bytesPerBookie = bookieLoad.toMap();
+        long storedBytes = bytesPerBookie.values().stream().mapToLong(Long::longValue).sum();
+        Log.info("Scanned " + ledgerCount.sum() + " ledgers of " + ledgerBytes.sum() + " bytes, stored as " + storedBytes + " bytes on " + bytesPerBookie.size() + " bookies");
+        if (bytesPerBookie.isEmpty()) {
+            return;
+        }
+        double averageBytes = (double) storedBytes / bytesPerBookie.size();
+        bytesPerBookie.forEach((bookie, bytes) -> Log.info("Bookie " + bookie + ": " + bytes + " bytes (" + percentOf(bytes, averageBytes) + "% of average)"));
+        Map.Entry<String, Long> mostLoaded = bytesPerBookie.entrySet().stream().max(Map.Entry.comparingByValue()).orElseThrow();
+        Map.Entry<String, Long> leastLoaded = bytesPerBookie.entrySet().stream().min(Map.Entry.comparingByValue()).orElseThrow();
+        Log.info("Most loaded bookie " + mostLoaded.getKey() + " stores " + percentOf(mostLoaded.getValue(), averageBytes) + "% of average, least loaded bookie "
+                + leastLoaded.getKey() + " " + percentOf(leastLoaded.getValue(), averageBytes) + "%");
+        if (breakdown) {
+            new TreeMap<>(tenantLoads).forEach((tenant, load) -> load.toMap()
+                    .forEach((bookie, bytes) -> Log.info("Bookie " + bookie + ", tenant " + tenant + ": " + bytes + " bytes")));
+            new TreeMap<>(namespaceLoads).forEach((namespace, load) -> load.toMap()
+                    .forEach((bookie, bytes) -> Log.info("Bookie " + bookie + ", namespace " + namespace + ": " + bytes + " bytes")));
+        }
+    }
+
+    private static String tenantOf(Ledger ledger) {
+        return ledger.getLedgerTopic().map(TopicName::getTenant).orElse(UNKNOWN);
+    }
+
+    private static String namespaceOf(Ledger ledger) {
+        return ledger.getLedgerTopic().map(TopicName::getNamespace).orElse(UNKNOWN);
+    }
+
+    private static long percentOf(long bytes, double averageBytes) {
+        return Math.round(bytes * 100 / averageBytes);
+    }
+}
@@ -1,31 +1,29 @@
 package net.tomjo.pulsarbookieutils.command;
 
 import io.quarkus.logging.Log;
-import io.vavr.collection.Stream;
-import io.vavr.concurrent.Future;
-import io.vavr.control.Try;
 import net.tomjo.pulsarbookieutils.Ledger;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import net.tomjo.pulsarbookieutils.service.LedgerDeletionResult;
 import net.tomjo.pulsarbookieutils.service.LedgerMetadataService;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
+import net.tomjo.pulsarbookieutils.service.OrphanedLedgerFinder;
 import net.tomjo.pulsarbookieutils.service.PulsarResourcesService;
-import org.apache.pulsar.client.admin.PulsarAdminException;
-import org.apache.pulsar.common.naming.TopicName;
+import net.tomjo.pulsarbookieutils.service.RateGovernor;
+import net.tomjo.pulsarbookieutils.service.UsedLedgersProvider;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Option;
 
+import java.nio.file.Path;
 import java.time.Clock;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.function.Function;
-
-import static java.util.stream.Collectors.toMap;
-import static java.util.stream.Collectors.toSet;
-import static net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods.createPulsarResourcesService;
-import static net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods.createZookeeperLedgerMetadataService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 @Command(name = "clean-orphan-ledgers", description = "Cleans up 'orphan' ledgers (ledgers in BookKeeper but not in ZooKeeper). Minimal age to be considered orphaned is configurable.")
-public class CleanOrphanLedgersCommand implements Runnable {
+public class CleanOrphanLedgersCommand implements Runnable, ServiceConsumer {
 
     private static final long DAY_IN_MILLIS = 86400000L;
 
@@ -67,6 +65,30 @@ public class CleanOrphanLedgersCommand implements Runnable {
     )
     int zookeeperTimeout = 30000;
 
+    @Option(
+            names = {"--scan-concurrency"},
+            description = "Maximum number of concurrent ledger metadata reads while scanning. Default 100"
+    )
+    int scanConcurrency = LedgerMetadataService.DEFAULT_SCAN_CONCURRENCY;
+
+    @Option(
+            names = {"--delete-concurrency"},
+            description = "Maximum number of concurrent ledger deletions. Default 50"
+    )
+    int deleteConcurrency = LedgerMetadataService.DEFAULT_DELETE_CONCURRENCY;
+
+    @Option(
+            names = {"--snapshot-file"},
+            description = "Ledger metadata snapshot file. Closed ledgers are read from the snapshot instead of the metadata store, the snapshot is updated after each scan"
+    )
+    Path snapshotFile;
+
+    @Option(
+            names = {"--index-metadata-paths"},
+            description = "Load all managed ledger and schema paths from the metadata store up front, instead of checking their existence per ledger"
+    )
+    boolean indexMetadataPaths = false;
+
     @Option(
             names = {"--min-orphan-age"},
             description = {"Minimum orphan ledger age in days. Default 10 days"}
@@ -79,161 +101,105 @@ public class CleanOrphanLedgersCommand implements Runnable {
     )
     boolean dryRun = false;
 
+    @Mixin
+    RateLimitOptions rateLimitOptions;
+
+    @Mixin
+    MetricsOptions metricsOptions;
+
+    @Mixin
+    UsedLedgersOptions usedLedgersOptions;
+
+    @Mixin
+    PlanOptions planOptions;
+
+    private final OperationMetrics operationMetrics = new OperationMetrics();
+
+    private ServiceProvider serviceProvider = ServiceProvider.direct();
+
     private final Clock clock;
     private PulsarResourcesService pulsarResourcesService;
 
     private LedgerMetadataService ledgerMetadataService;
 
+    private UsedLedgersProvider usedLedgersProvider;
+
     public CleanOrphanLedgersCommand(Clock clock) {
         this.clock = clock;
     }
 
 
+    @Override
+    public void useServiceProvider(ServiceProvider serviceProvider) {
+        this.serviceProvider = serviceProvider;
+    }
+
     @Override
     public void run() {
+        planOptions.validate();
         Map<String, Object> pulsarConfig = new HashMap<>();
         if (tlsTrustCertsFilePath != null) {
             pulsarConfig.put("tlsTrustCertsFilePath", tlsTrustCertsFilePath);
         }
+        RateGovernor rateGovernor = rateLimitOptions.createRateGovernor();
         try {
-            this.pulsarResourcesService = createPulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig).get();
-            this.ledgerMetadataService = createZookeeperLedgerMetadataService(zookeeperHost, zookeeperTimeout).get();
+            this.ledgerMetadataService = serviceProvider.ledgerMetadataService(zookeeperHost, zookeeperTimeout, scanConcurrency, deleteConcurrency, snapshotFile, rateGovernor, operationMetrics).get();
+            if (planOptions.appliesPlan()) {
+                planOptions.applyPlan(ledgerMetadataService, operationMetrics, "", clock.millis(), dryRun, false);
+                return;
+            }
+            this.pulsarResourcesService = serviceProvider.pulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig, PulsarResourcesService.DEFAULT_ADMIN_CONCURRENCY, rateGovernor, operationMetrics).get();
+            this.usedLedgersProvider = usedLedgersOptions.createUsedLedgersProvider(pulsarResourcesService, ledgerMetadataService);
             cleanOrphanedLedgers();
         } finally {
-            Try.run(this.pulsarResourcesService::close);
-            Try.run(this.ledgerMetadataService::close);
+            serviceProvider.release(this.pulsarResourcesService);
+            serviceProvider.release(this.ledgerMetadataService);
+            metricsOptions.writeSummary(operationMetrics);
         }
     }
 
     private void cleanOrphanedLedgers() {
-        Map<Long, Ledger> pulsarLedgers = findPulsarLedgers();
-        Map<Long, Set<Long>> pulsarLedgerAssociatedLedgersMapping = findUsedLedgersAccordingToInternalTopicStats(pulsarLedgers);
-        Set<Long> nonOrphanedLedgers = getNonOrphanedLedgers(pulsarLedgerAssociatedLedgersMapping);
-
-        List<Ledger> orphanedLedgersDueToMissingTopic = findOrphanedLedgersDueToMissingTopic(pulsarLedgerAssociatedLedgersMapping, pulsarLedgers);
-        List<Ledger> orphanedLedgersNotLinkedToATopic = findOrphanedLedgersNotLinkedToATopic(pulsarLedgers);
-        List<Ledger> orphanedLedgersLinkedToATopic = findOrphanedLedgersLinkedToATopic(pulsarLedgerAssociatedLedgersMapping, pulsarLedgers);
-        List<Ledger> orphanedLedgersDueToMissingInMetadataStore = findOrphanedLedgersDueToMissingInMetadataStore(pulsarLedgers);
-
-        Stream.concat(orphanedLedgersDueToMissingTopic,
-                        orphanedLedgersNotLinkedToATopic,
-                        orphanedLedgersLinkedToATopic,
-                        orphanedLedgersDueToMissingInMetadataStore)
-                .distinct()
-                .filter(l -> !nonOrphanedLedgers.contains(l.getLedgerId()))
-                .map(this::deleteOrphanedLedgerIfAgeThresholdMet)
-                .forEach(Future::get);
-    }
-
-    private static List<Ledger> findOrphanedLedgersLinkedToATopic(Map<Long, Set<Long>> pulsarLedgerAssociatedLedgersMapping, Map<Long, Ledger> pulsarLedgers) {
-        return pulsarLedgerAssociatedLedgersMapping.entrySet().stream()
-                .filter(e -> !e.getValue().contains(e.getKey()))
-                .map(Map.Entry::getKey)
-                .map(pulsarLedgers::get)
-                .toList();
-    }
-
-    private List<Ledger> findOrphanedLedgersDueToMissingTopic(Map<Long, Set<Long>> pulsarLedgerAssociatedLedgersMapping, Map<Long, Ledger> pulsarLedgers) {
-        return pulsarLedgerAssociatedLedgersMapping.entrySet()
-                .stream()
-                .filter(e -> e.getValue().isEmpty())
-                .map(Map.Entry::getKey)
-                .map(pulsarLedgers::get)
-                .filter(this::isLedgerTopicNotFound)
-                .filter(this::isOrphanedLedgerWithTopicMissing)
-                .toList();
-    }
-
-    private List<Ledger> findOrphanedLedgersDueToMissingInMetadataStore(Map<Long, Ledger> pulsarLedgers) {
-        return pulsarLedgers.values()
-                .stream()
-                .filter(ledger -> ledger.isSchemaLedger() || ledger.isManagedLedger() || ledger.isCompactedTopic())
-                .filter(ledger -> !ledgerMetadataService.existsInMetaStore(ledger).get())
-                .toList();
-    }
-
-    private static List<Ledger> findOrphanedLedgersNotLinkedToATopic(Map<Long, Ledger> pulsarLedgers) {
-        return pulsarLedgers.values()
-                .stream()
-                .filter(ledger -> !(ledger.isSchemaLedger() || ledger.isManagedLedger() || ledger.isCompactedTopic()))
-                .toList();
-    }
-
-    private boolean isLedgerTopicNotFound(Ledger ledger) {
-        return pulsarResourcesService.getLedgersUsedByTopic(ledger.getLedgerTopic().orElseThrow().toString())
-                .map(l -> false)
-                .recover(e -> e.getCause() instanceof PulsarAdminException.NotFoundException)
-                .getOrElse(false);
-    }
-
-    private static Set<Long> getNonOrphanedLedgers(Map<Long, Set<Long>> pulsarLedgerAssociatedLedgersMapping) {
-        return pulsarLedgerAssociatedLedgersMapping.values()
-                .stream()
-                .flatMap(Set::stream)
-                .collect(toSet());
+        if (indexMetadataPaths) {
+            operationMetrics.runPhase("index-metadata-paths", () -> ledgerMetadataService.indexMetadataPaths().get());
+        }
+        OrphanedLedgerFinder orphanedLedgerFinder = new OrphanedLedgerFinder(usedLedgersProvider, ledgerMetadataService);
+        Map<Long, Ledger> pulsarLedgers = operationMetrics.timePhase("scan-ledgers", this::findPulsarLedgers);
+        Map<Long, LedgerIdSet> pulsarLedgerAssociatedLedgersMapping = operationMetrics.timePhase("get-topic-ledgers", () -> orphanedLedgerFinder.findUsedLedgers(pulsarLedgers));
+        Map<Ledger, String> orphanedLedgersWithReason = operationMetrics.timePhase("find-orphans",
+                () -> orphanedLedgerFinder.findOrphanedLedgers(pulsarLedgers, pulsarLedgerAssociatedLedgersMapping, this::isLedgerOldEnough));
+
+        LedgerIdSet orphanedLedgers = new LedgerIdSet();
+        orphanedLedgersWithReason.forEach((ledger, reason) -> {
+            Log.info("Found orphaned ledger " + ledger.getLedgerId() + " (" + reason + "): " + ledger);
+            orphanedLedgers.add(ledger.getLedgerId());
+        });
+        if (planOptions.writesPlan()) {
+            planOptions.writePlan("", clock.millis(), orphanedLedgers.stream().toArray(), List.of());
+        } else if (!dryRun) {
+            operationMetrics.runPhase("delete-ledgers", () -> deleteOrphanedLedgers(orphanedLedgers));
+        }
     }
 
+    /**
+     * Scanned Pulsar ledgers that are {@link OrphanedLedgerFinder#orphanCandidates(Predicate) orphan candidates}.
+     */
     private Map<Long, Ledger> findPulsarLedgers() {
-        return ledgerMetadataService.listLedgerMetadataIncludingMissing().get().get()
-                .values().stream()
-                .map(Ledger::new)
-                .filter(Ledger::isPulsarLedger)
-                .collect(toMap(Ledger::getLedgerId, Function.identity()));
-    }
-
-    private boolean isOrphanedLedgerWithTopicMissing(Ledger ledger) {
-        return !ledger.isSchemaLedger() || isOrphanedSchemaLedgerLoggingException(ledger);
-    }
-
-    private Map<Long, Set<Long>> findUsedLedgersAccordingToInternalTopicStats(Map<Long, Ledger> ledgers) {
-        return ledgers.values()
-                .stream()
-                .filter(ledger -> ledger.isSchemaLedger() || ledger.isManagedLedger() || ledger.isCompactedTopic())
-                .filter(l -> ledgerMetadataService.existsInMetaStore(l).get())
-                .collect(toMap(Ledger::getLedgerId, l -> l.getLedgerTopic()
-                        .map(topicName -> topicName.getPartition(0).toString())
-                        .map(pulsarResourcesService::getLedgersUsedByTopic)
-                        .map(f -> f.getOrElse(Set.of()))
-                        .orElse(Set.of())));
-    }
-
-    private boolean isOrphanedSchemaLedgerLoggingException(Ledger ledger) {
-        return isOrphanedSchemaLedger(ledger)
-                .recover(ex -> {
-                    Log.error("Could not read ledgers used by topic " + ledger.getSchemaLedgerTopic().orElseThrow() + " related to ledger " + ledger.getLedgerId() + ": " + ex.getMessage(), ex);
-                    return false;
+        Map<Long, Ledger> pulsarLedgers = new ConcurrentHashMap<>();
+        Predicate<Ledger> isOrphanCandidate = OrphanedLedgerFinder.orphanCandidates(this::isLedgerOldEnough);
+        ledgerMetadataService.scanLedgers(ledger -> {
+                    if (ledger.isPulsarLedger() && isOrphanCandidate.test(ledger)) {
+                        pulsarLedgers.put(ledger.getLedgerId(), ledger);
+                    }
                 })
+                .get()
                 .get();
+        return pulsarLedgers;
     }
 
-    private Try<Boolean> isOrphanedSchemaLedger(Ledger ledger) {
-        if (ledger.isSchemaLedger()) {
-            TopicName schemaLedgerTopic = ledger.getSchemaLedgerTopic().orElseThrow();
-            return pulsarResourcesService.getLedgersUsedByTopic(schemaLedgerTopic.getPartition(0).toString())
-                    .toTry()
-                    .map(ledgers -> !ledgers.contains(ledger.getLedgerId()))
-                    .recoverWith(e -> {
-                        if (e.getCause() instanceof PulsarAdminException.NotFoundException) {
-                            return Try.of(() -> true);
-                        } else {
-                            return Try.failure(e);
-                        }
-                    });
-        }
-        return Try.of(() -> false);
-
-    }
-
-    private Future<Void> deleteOrphanedLedgerIfAgeThresholdMet(Ledger ledger) {
-        if (isLedgerOldEnough(ledger)) {
-            Log.info("Found orphaned ledger " + ledger.getLedgerId() + ": " + ledger);
-            if (!dryRun) {
-                return ledgerMetadataService.deleteLedger(ledger.getLedgerId())
-                        .onSuccess(v -> Log.info("Deleted ledger " + ledger.getLedgerId()))
-                        .onFailure(ex -> Log.error("Could not delete ledger " + ledger.getLedgerId() + ": " + ex.getMessage()));
-            }
-        }
-        return Future.successful(null);
+    private void deleteOrphanedLedgers(LedgerIdSet orphanedLedgers) {
+        LedgerDeletionResult result = ledgerMetadataService.deleteLedgers(orphanedLedgers.stream()).get();
+        result.deletedLedgers().forEach(ledgerId -> Log.info("Deleted ledger " + ledgerId));
+        result.failedLedgers().forEach((ledgerId, ex) -> Log.error("Could not delete ledger " + ledgerId + ": " + ex.getMessage()));
     }
 
     private boolean isLedgerOldEnough(Ledger ledger) {
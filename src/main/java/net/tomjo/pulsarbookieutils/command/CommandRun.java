@@ -0,0 +1,113 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import java.time.Instant;
+
+/**
+ * A command executed by the {@code serve} command, either on its schedule or when triggered over HTTP.
+ */
+class CommandRun {
+
+    private static final String AUTH_PARAMS = "--auth-params";
+
+    enum Status {
+        QUEUED,
+        RUNNING,
+        SUCCEEDED,
+        FAILED
+    }
+
+    private final long id;
+    private final String[] arguments;
+    private final String trigger;
+    private final Instant queuedAt;
+    private Status status = Status.QUEUED;
+    private Instant startedAt;
+    private Instant finishedAt;
+    private int exitCode;
+    private String output = "";
+
+    CommandRun(long id, String[] arguments, String trigger, Instant queuedAt) {
+        this.id = id;
+        this.arguments = arguments;
+        this.trigger = trigger;
+        this.queuedAt = queuedAt;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    String[] getArguments() {
+        return arguments.clone();
+    }
+
+    synchronized boolean isFinished() {
+        return status == Status.SUCCEEDED || status == Status.FAILED;
+    }
+
+    synchronized void start(Instant startedAt) {
+        this.status = Status.RUNNING;
+        this.startedAt = startedAt;
+    }
+
+    synchronized void finish(Instant finishedAt, int exitCode, String output) {
+        this.status = exitCode == 0 ? Status.SUCCEEDED : Status.FAILED;
+        this.finishedAt = finishedAt;
+        this.exitCode = exitCode;
+        this.output = output;
+    }
+
+    synchronized String toJson(boolean includeOutput) {
+        StringBuilder json = new StringBuilder()
+                .append("{\"id\": ").append(id)
+                .append(", \"command\": ").append(quote(maskSecrets(arguments)))
+                .append(", \"trigger\": ").append(quote(trigger))
+                .append(", \"status\": ").append(quote(status.name()))
+                .append(", \"queuedAt\": ").append(quote(queuedAt.toString()))
+                .append(", \"startedAt\": ").append(startedAt == null ? "null" : quote(startedAt.toString()))
+                .append(", \"finishedAt\": ").append(finishedAt == null ? "null" : quote(finishedAt.toString()));
+        if (isFinished()) {
+            json.append(", \"exitCode\": ").append(exitCode);
+        }
+        if (includeOutput) {
+            json.append(", \"output\": ").append(quote(output));
+        }
+        return json.append("}").toString();
+    }
+
+    /**
+     * Command line with the Pulsar auth params, which typically hold a token, left out.
+     */
+    private static String maskSecrets(String[] arguments) {
+        String[] masked = arguments.clone();
+        for (int i = 0; i < masked.length; i++) {
+            if (masked[i].startsWith(AUTH_PARAMS + "=")) {
+                masked[i] = AUTH_PARAMS + "=***";
+            } else if (masked[i].equals(AUTH_PARAMS) && i + 1 < masked.length) {
+                masked[++i] = "***";
+            }
+        }
+        return String.join(" ", masked);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                case '\n' -> quoted.append("\\n");
+                case '\r' -> quoted.append("\\r");
+                case '\t' -> quoted.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append("\"").toString();
+    }
+}
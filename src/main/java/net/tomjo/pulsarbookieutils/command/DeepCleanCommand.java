@@ -2,29 +2,39 @@ package net.tomjo.pulsarbookieutils.command;
 
 import io.quarkus.logging.Log;
 import io.vavr.concurrent.Future;
-import io.vavr.control.Try;
 import net.tomjo.pulsarbookieutils.Ledger;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
 import net.tomjo.pulsarbookieutils.Util;
+import net.tomjo.pulsarbookieutils.service.LedgerDeletionResult;
 import net.tomjo.pulsarbookieutils.service.LedgerMetadataService;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
 import net.tomjo.pulsarbookieutils.service.PulsarResourcesService;
+import net.tomjo.pulsarbookieutils.service.RateGovernor;
 import org.apache.pulsar.common.naming.TopicDomain;
 import org.apache.pulsar.common.naming.TopicName;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
+import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.Spec;
 
+import java.nio.file.Path;
+import java.time.Clock;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 import static net.tomjo.pulsarbookieutils.service.LedgerMetadataService.*;
-import static net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods.createPulsarResourcesService;
-import static net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods.createZookeeperLedgerMetadataService;
 
 @Command(name = "deep-clean", description = "Deletes all data associated with topic (topic, ledgers, cursors, ...) from BookKeeper and ZooKeeper.")
-public class DeepCleanCommand implements Runnable {
+public class DeepCleanCommand implements Runnable, ServiceConsumer {
 
     public static final List<String> METADATA_SCAN_PATHS = List.of(SCHEMAS, NAMESPACES, MANAGED_LEDGERS, BUNDLE_DATA);
+
+    @Spec
+    CommandSpec spec;
+
     @Option(
             names = {"-p", "--pulsar-admin"},
             description = "Pulsar admin endpoint",
@@ -48,6 +58,12 @@ public class DeepCleanCommand implements Runnable {
             description = "Path to certificate to be trusted for TLS connection"
     )
     String tlsTrustCertsFilePath;
+
+    @Option(
+            names = {"--admin-concurrency"},
+            description = "Maximum number of concurrent Pulsar admin requests. Default 16"
+    )
+    int adminConcurrency = PulsarResourcesService.DEFAULT_ADMIN_CONCURRENCY;
     @Option(
             names = {"-z", "--zookeeper"},
             description = "Zookeeper host",
@@ -61,6 +77,24 @@ public class DeepCleanCommand implements Runnable {
     )
     int zookeeperTimeout = 30000;
 
+    @Option(
+            names = {"--scan-concurrency"},
+            description = "Maximum number of concurrent ledger metadata reads while scanning. Default 100"
+    )
+    int scanConcurrency = LedgerMetadataService.DEFAULT_SCAN_CONCURRENCY;
+
+    @Option(
+            names = {"--delete-concurrency"},
+            description = "Maximum number of concurrent ledger deletions. Default 50"
+    )
+    int deleteConcurrency = LedgerMetadataService.DEFAULT_DELETE_CONCURRENCY;
+
+    @Option(
+            names = {"--snapshot-file"},
+            description = "Ledger metadata snapshot file. Closed ledgers are read from the snapshot instead of the metadata store, the snapshot is updated after each scan"
+    )
+    Path snapshotFile;
+
 
     @Option(
             names = {"-d", "--dry-run"},
@@ -78,19 +112,40 @@ public class DeepCleanCommand implements Runnable {
     String resource;
 
 
+    @Mixin
+    RateLimitOptions rateLimitOptions;
+
+    @Mixin
+    MetricsOptions metricsOptions;
+
+    @Mixin
+    PlanOptions planOptions;
+
+    private final OperationMetrics operationMetrics = new OperationMetrics();
+
+    private ServiceProvider serviceProvider = ServiceProvider.direct();
+
+    private final Clock clock;
+
     private PulsarResourcesService pulsarResourcesService;
 
     private LedgerMetadataService ledgerMetadataService;
 
-    public DeepCleanCommand() {
+    public DeepCleanCommand(Clock clock) {
+        this.clock = clock;
     }
 
 
+    @Override
+    public void useServiceProvider(ServiceProvider serviceProvider) {
+        this.serviceProvider = serviceProvider;
+    }
+
     @Override
     public void run() {
+        planOptions.validate();
         if (Util.isTopic(resource)) {
-            Log.error("Resource should be a tenant or a namespace");
-            System.exit(1);
+            throw new CommandLine.ParameterException(spec.commandLine(), "Resource should be a tenant or a namespace");
         }
         resource = this.resource.replace(TopicDomain.persistent.name() + "://", "");
 
@@ -98,74 +153,83 @@ public class DeepCleanCommand implements Runnable {
         if (tlsTrustCertsFilePath != null) {
             pulsarConfig.put("tlsTrustCertsFilePath", tlsTrustCertsFilePath);
         }
+        RateGovernor rateGovernor = rateLimitOptions.createRateGovernor();
         try {
-            this.pulsarResourcesService = createPulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig).get();
-            this.ledgerMetadataService = createZookeeperLedgerMetadataService(zookeeperHost, zookeeperTimeout).get();
-            cleanLedgers();
-            cleanMetadata();
+            this.ledgerMetadataService = serviceProvider.ledgerMetadataService(zookeeperHost, zookeeperTimeout, scanConcurrency, deleteConcurrency, snapshotFile, rateGovernor, operationMetrics).get();
+            if (planOptions.appliesPlan()) {
+                planOptions.applyPlan(ledgerMetadataService, operationMetrics, resource, clock.millis(), dryRun, force);
+                return;
+            }
+            this.pulsarResourcesService = serviceProvider.pulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig, adminConcurrency, rateGovernor, operationMetrics).get();
+            if (planOptions.writesPlan()) {
+                writePlan();
+            } else {
+                cleanLedgers();
+                cleanMetadata();
+            }
         } finally {
-            Try.run(this.pulsarResourcesService::close);
-            Try.run(this.ledgerMetadataService::close);
+            serviceProvider.release(this.pulsarResourcesService);
+            serviceProvider.release(this.ledgerMetadataService);
+            metricsOptions.writeSummary(operationMetrics);
         }
     }
 
-    private void cleanLedgers() {
-        CopyOnWriteArrayList<Long> ledgersToDelete = new CopyOnWriteArrayList<>();
-        Map<TopicName, List<Ledger>> ledgerTopicMapping = ledgerMetadataService.listLedgerMetadata()
-                .map(Future::get)
-                .map(ledgerMetadata -> ledgerMetadata.values()
-                        .stream()
-                        .map(Ledger::new)
-                        .filter(Ledger::isPulsarLedger)
-                        .collect(HashMap::new,
-                                (Map<TopicName, List<Ledger>> m, Ledger v) -> m.merge(v.getLedgerTopic().orElse(null), List.of(v), (l1, l2) -> Stream.concat(l1.stream(), l2.stream()).toList()),
-                                Map::putAll))
-                .get();
-
-        List<String> topics = pulsarResourcesService.listTopics(resource);
-        topics.forEach(topic -> {
-            ledgersToDelete.addAll(pulsarResourcesService.getLedgersUsedByTopic(topic).get());
-            ledgersToDelete.addAll(getLedgersAssociatedWithTopic(ledgerTopicMapping, topic));
-        });
-        if (ledgersToDelete.isEmpty()) {
-            Log.info("No ledgers found for " + resource);
-        } else {
-            Log.info("Detected ledgers: " + ledgersToDelete);
-        }
+    /**
+     * Writes the ledgers and metadata paths of the resource to a plan. Unlike a direct clean, the metadata paths are
+     * scanned before any ledger is deleted.
+     */
+    private void writePlan() {
+        LedgerIdSet ledgersToDelete = findLedgersToDelete();
+        List<String> metadataPathsToDelete = operationMetrics.timePhase("scan-metadata", this::scanMetadata);
+        Log.info("Detected metadata paths: " + metadataPathsToDelete);
+        planOptions.writePlan(resource, clock.millis(), ledgersToDelete.stream().toArray(), metadataPathsToDelete);
+    }
 
+    private void cleanLedgers() {
+        LedgerIdSet ledgersToDelete = findLedgersToDelete();
         if (!dryRun) {
-            List<Long> failedToDeleteLedgers = deleteLedgersReturningFailedToDeleteLedgers(ledgersToDelete);
+            List<Long> failedToDeleteLedgers = operationMetrics.timePhase("delete-ledgers", () -> deleteLedgersReturningFailedToDeleteLedgers(ledgersToDelete));
             Log.info("Deleted " + (ledgersToDelete.size() - failedToDeleteLedgers.size()) + " ledgers");
             if (!failedToDeleteLedgers.isEmpty()) {
                 Log.error("Failed to delete ledgers: " + failedToDeleteLedgers);
                 if (!force) {
-                    System.exit(1);
+                    throw new IllegalStateException("Not deleting metadata of " + resource + ", " + failedToDeleteLedgers.size() + " ledgers could not be deleted");
                 }
             }
         }
     }
 
-    private List<Long> deleteLedgersReturningFailedToDeleteLedgers(CopyOnWriteArrayList<Long> ledgersToDelete) {
-        List<Long> failedToDeleteLedgers = new ArrayList<>();
-        ledgersToDelete.stream()
-                .map(ledger -> ledgerMetadataService.deleteLedger(ledger)
-                        .onFailure(e -> {
-                            Log.error("Could not delete ledger or ledger metadata", e);
-                            failedToDeleteLedgers.add(ledger);
-                        }))
-                .forEach(Future::get);
-        return failedToDeleteLedgers;
+    private LedgerIdSet findLedgersToDelete() {
+        LedgerIdSet ledgersToDelete = new LedgerIdSet();
+        List<String> topics = operationMetrics.timePhase("list-topics", () -> pulsarResourcesService.listTopics(resource));
+        Map<TopicName, LedgerIdSet> ledgerTopicMapping = operationMetrics.timePhase("scan-ledgers", () -> findLedgersAssociatedWithTopics(topics));
+        operationMetrics.runPhase("get-topic-ledgers", () -> topics.forEach(topic -> {
+            ledgersToDelete.addAll(pulsarResourcesService.getLedgersUsedByTopic(topic).get());
+            ledgersToDelete.addAll(ledgerTopicMapping.getOrDefault(TopicName.get(topic), new LedgerIdSet()));
+        }));
+        if (ledgersToDelete.isEmpty()) {
+            Log.info("No ledgers found for " + resource);
+        } else {
+            Log.info("Detected ledgers: " + ledgersToDelete);
+        }
+        return ledgersToDelete;
+    }
+
+    private List<Long> deleteLedgersReturningFailedToDeleteLedgers(LedgerIdSet ledgersToDelete) {
+        LedgerDeletionResult result = ledgerMetadataService.deleteLedgers(ledgersToDelete.stream()).get();
+        result.failedLedgers().forEach((ledger, e) -> Log.error("Could not delete ledger or ledger metadata " + ledger, e));
+        return List.copyOf(result.failedLedgers().keySet());
     }
 
     private void cleanMetadata() {
-        List<String> metadataPathsToDelete = scanMetadata();
+        List<String> metadataPathsToDelete = operationMetrics.timePhase("scan-metadata", this::scanMetadata);
         if (metadataPathsToDelete.isEmpty()) {
             Log.info("No metadata paths found for " + resource);
         } else {
             Log.info("Detected metadata paths: " + metadataPathsToDelete);
         }
         if (!dryRun) {
-            List<String> failedToDeleteMetadataPaths = deleteMetadataPathsRecursiveReturningFailedToDeleteMetadataPaths(metadataPathsToDelete);
+            List<String> failedToDeleteMetadataPaths = operationMetrics.timePhase("delete-metadata", () -> deleteMetadataPathsRecursiveReturningFailedToDeleteMetadataPaths(metadataPathsToDelete));
             Log.info("Deleted metadata paths: " + getDeletedMetadataPaths(metadataPathsToDelete, failedToDeleteMetadataPaths));
             if (!failedToDeleteMetadataPaths.isEmpty()) {
                 Log.warn("Failed to delete metadata paths: " + failedToDeleteMetadataPaths);
@@ -174,14 +238,16 @@ public class DeepCleanCommand implements Runnable {
     }
 
     private List<String> deleteMetadataPathsRecursiveReturningFailedToDeleteMetadataPaths(List<String> metadataPathsToDelete) {
+        Map<String, Future<Void>> deletions = new LinkedHashMap<>();
+        metadataPathsToDelete.forEach(path -> deletions.put(path, ledgerMetadataService.deletePathRecursive(path)));
         List<String> failedToDeleteMetadataPaths = new ArrayList<>();
-        metadataPathsToDelete.stream()
-                .map(path -> ledgerMetadataService.deletePathRecursive(path)
-                        .onFailure(e -> {
-                            Log.error("Could not delete metadata path" + path, e);
-                            failedToDeleteMetadataPaths.add(path);
-                        }))
-                .forEach(Future::get);
+        deletions.forEach((path, deletion) -> {
+            deletion.await();
+            if (deletion.isFailure()) {
+                Log.error("Could not delete metadata path " + path, deletion.getCause().get());
+                failedToDeleteMetadataPaths.add(path);
+            }
+        });
         return failedToDeleteMetadataPaths;
     }
 
@@ -210,11 +276,27 @@ public class DeepCleanCommand implements Runnable {
                 .toList();
     }
 
-    private List<Long> getLedgersAssociatedWithTopic(Map<TopicName, List<Ledger>> ledgerTopicMapping, String topic) {
-        return ledgerTopicMapping.get(TopicName.get(topic))
-                .stream()
-                .map(Ledger::getLedgerId)
-                .toList();
+    private Map<TopicName, LedgerIdSet> findLedgersAssociatedWithTopics(List<String> topics) {
+        Set<TopicName> topicNames = topics.stream()
+                .map(TopicName::get)
+                .collect(Collectors.toSet());
+        Map<TopicName, LedgerIdSet> ledgerTopicMapping = new ConcurrentHashMap<>();
+        ledgerMetadataService.scanLedgers(ledger -> addLedgerOfTopics(ledgerTopicMapping, topicNames, ledger))
+                .get()
+                .get();
+        return ledgerTopicMapping;
+    }
+
+    static void addLedgerOfTopics(Map<TopicName, LedgerIdSet> ledgerTopicMapping, Set<TopicName> topicNames, Ledger ledger) {
+        if (ledger.isPulsarLedger()) {
+            ledger.getLedgerTopic()
+                    .filter(topicNames::contains)
+                    .ifPresent(topicName -> ledgerTopicMapping.compute(topicName, (t, ledgerIds) -> {
+                        LedgerIdSet topicLedgerIds = ledgerIds == null ? new LedgerIdSet() : ledgerIds;
+                        topicLedgerIds.add(ledger.getLedgerId());
+                        return topicLedgerIds;
+                    }));
+        }
     }
 
 }
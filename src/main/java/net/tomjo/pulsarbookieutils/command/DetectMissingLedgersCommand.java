@@ -2,20 +2,21 @@ package net.tomjo.pulsarbookieutils.command;
 
 import io.quarkus.logging.Log;
 import io.vavr.concurrent.Future;
-import io.vavr.control.Try;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
 import net.tomjo.pulsarbookieutils.service.LedgerMetadataService;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
 import net.tomjo.pulsarbookieutils.service.PulsarResourcesService;
+import net.tomjo.pulsarbookieutils.service.RateGovernor;
+import net.tomjo.pulsarbookieutils.service.UsedLedgersProvider;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
 import java.util.*;
 
-import static net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods.createPulsarResourcesService;
-import static net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods.createZookeeperLedgerMetadataService;
-
 @Command(name = "detect-missing-ledgers", description = "Detects missing ledgers associated with topic/namespace/tenant.")
-public class DetectMissingLedgersCommand implements Runnable {
+public class DetectMissingLedgersCommand implements Runnable, ServiceConsumer {
     @Option(
             names = {"-p", "--pulsar-admin"},
             description = "Pulsar admin endpoint",
@@ -39,6 +40,12 @@ public class DetectMissingLedgersCommand implements Runnable {
             description = "Path to certificate to be trusted for TLS connection"
     )
     String tlsTrustCertsFilePath;
+
+    @Option(
+            names = {"--admin-concurrency"},
+            description = "Maximum number of concurrent Pulsar admin requests. Default 16"
+    )
+    int adminConcurrency = PulsarResourcesService.DEFAULT_ADMIN_CONCURRENCY;
     @Option(
             names = {"-z", "--zookeeper"},
             description = "Zookeeper host",
@@ -56,37 +63,73 @@ public class DetectMissingLedgersCommand implements Runnable {
     @Parameters(index = "0", description = "The resource to detect missing ledgers for.")
     String resource;
 
+    @Mixin
+    RateLimitOptions rateLimitOptions;
+
+    @Mixin
+    MetricsOptions metricsOptions;
+
+    @Mixin
+    UsedLedgersOptions usedLedgersOptions;
+
+    private final OperationMetrics operationMetrics = new OperationMetrics();
+
+    private ServiceProvider serviceProvider = ServiceProvider.direct();
+
     private PulsarResourcesService pulsarResourcesService;
 
     private LedgerMetadataService ledgerMetadataService;
 
+    private UsedLedgersProvider usedLedgersProvider;
+
     public DetectMissingLedgersCommand() {
     }
 
+    @Override
+    public void useServiceProvider(ServiceProvider serviceProvider) {
+        this.serviceProvider = serviceProvider;
+    }
+
     @Override
     public void run() {
         Map<String, Object> pulsarConfig = new HashMap<>();
         if (tlsTrustCertsFilePath != null) {
             pulsarConfig.put("tlsTrustCertsFilePath", tlsTrustCertsFilePath);
         }
+        RateGovernor rateGovernor = rateLimitOptions.createRateGovernor();
         try {
-            this.pulsarResourcesService = createPulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig).get();
-            this.ledgerMetadataService = createZookeeperLedgerMetadataService(zookeeperHost, zookeeperTimeout).get();
+            this.pulsarResourcesService = serviceProvider.pulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig, adminConcurrency, rateGovernor, operationMetrics).get();
+            this.ledgerMetadataService = serviceProvider.ledgerMetadataService(zookeeperHost, zookeeperTimeout, LedgerMetadataService.DEFAULT_SCAN_CONCURRENCY, LedgerMetadataService.DEFAULT_DELETE_CONCURRENCY, null, rateGovernor, operationMetrics).get();
+            this.usedLedgersProvider = usedLedgersOptions.createUsedLedgersProvider(pulsarResourcesService, ledgerMetadataService);
             detectMissingLedgers();
         } finally {
-            Try.run(this.pulsarResourcesService::close);
-            Try.run(this.ledgerMetadataService::close);
+            serviceProvider.release(this.pulsarResourcesService);
+            serviceProvider.release(this.ledgerMetadataService);
+            metricsOptions.writeSummary(operationMetrics);
         }
     }
 
     private void detectMissingLedgers() {
-        List<Long> topicLedgers = new LinkedList<>();
-        List<String> topics = pulsarResourcesService.listTopics(resource);
-        topics.stream()
-                .map(pulsarResourcesService::getLedgersUsedByTopic)
-                .map(f -> f.andThen(ledgers -> topicLedgers.addAll(ledgers.get())))
-                .forEach(Future::await);
-        topicLedgers.removeAll(ledgerMetadataService.listLedgers().get().get());
-        Log.info("Detected missing ledger in the topics " + Arrays.toString(topics.toArray()) + ": " + Arrays.toString(topicLedgers.toArray()));
+        List<String> topics = Collections.synchronizedList(new ArrayList<>());
+        List<Future<LedgerIdSet>> topicLedgerFutures = Collections.synchronizedList(new ArrayList<>());
+        List<LedgerIdSet> topicLedgers = operationMetrics.timePhase("collect-topic-ledgers", () -> {
+            pulsarResourcesService.streamTopics(resource, namespaceTopics -> namespaceTopics.forEach(topic -> {
+                        topics.add(topic);
+                        topicLedgerFutures.add(usedLedgersProvider.getLedgersUsedByTopic(topic));
+                    }))
+                    .await();
+            return topicLedgerFutures.stream()
+                    .map(f -> f.getOrElse(LedgerIdSet::new))
+                    .toList();
+        });
+        LedgerIdSet existingLedgers = operationMetrics.timePhase("list-ledgers", () -> ledgerMetadataService.listLedgers().get().get());
+        Log.info("Detected missing ledger in the topics " + Arrays.toString(topics.toArray()) + ": " + findMissingLedgers(topicLedgers, existingLedgers));
+    }
+
+    static LedgerIdSet findMissingLedgers(List<LedgerIdSet> topicLedgers, LedgerIdSet existingLedgers) {
+        LedgerIdSet missingLedgers = new LedgerIdSet();
+        topicLedgers.forEach(missingLedgers::addAll);
+        missingLedgers.removeAll(existingLedgers);
+        return missingLedgers;
     }
 }
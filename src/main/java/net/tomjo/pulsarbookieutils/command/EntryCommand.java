@@ -4,6 +4,6 @@ import io.quarkus.picocli.runtime.annotations.TopCommand;
 import picocli.CommandLine;
 
 @TopCommand
-@CommandLine.Command(name = "pulsar-bookie-utils", mixinStandardHelpOptions = true, subcommands = {CleanOrphanLedgersCommand.class, DeepCleanCommand.class, DetectMissingLedgersCommand.class, GetStorageSizeCommand.class, LoadInactiveTopicsCommand.class, TrimLedgersCommand.class})
+@CommandLine.Command(name = "pulsar-bookie-utils", mixinStandardHelpOptions = true, subcommands = {AuditCommand.class, BookieUsageCommand.class, CleanOrphanLedgersCommand.class, DeepCleanCommand.class, DetectMissingLedgersCommand.class, GenerateFixtureCommand.class, GetStorageSizeCommand.class, LoadInactiveTopicsCommand.class, ServeCommand.class, TrimLedgersCommand.class})
 public class EntryCommand {
 }
@@ -0,0 +1,159 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import io.vavr.control.Try;
+import net.tomjo.pulsarbookieutils.service.FixtureGenerator;
+import net.tomjo.pulsarbookieutils.service.FixtureSpec;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
+import net.tomjo.pulsarbookieutils.service.RateGovernor;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Spec;
+
+import java.time.Clock;
+
+import static net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods.createZookeeperFixtureGenerator;
+
+@Command(name = "generate-fixture", description = "Populate a (local) ZooKeeper with synthetic Pulsar ledgers, managed ledgers, cursors and schemas to load-test the other commands. Never run this against a production cluster.")
+public class GenerateFixtureCommand implements Runnable {
+    private static final long DAY_IN_MILLIS = 86400000L;
+
+    @Spec
+    CommandSpec spec;
+
+    @Option(
+            names = {"-z", "--zookeeper"},
+            description = "Zookeeper host",
+            required = true
+    )
+    String zookeeperHost;
+
+    @Option(
+            names = {"-zt", "--zookeeper-timeout"},
+            description = "Zookeeper session timeout in milliseconds"
+    )
+    int zookeeperTimeout = 30000;
+
+    @Option(
+            names = {"--ledgers"},
+            description = "Amount of ledgers to generate, including the missing ones. Default 100000"
+    )
+    long ledgerCount = 100000;
+
+    @Option(
+            names = {"--first-ledger-id"},
+            description = "Id of the first generated ledger, the others follow consecutively. Default 0"
+    )
+    long firstLedgerId = 0;
+
+    @Option(
+            names = {"--ledgers-per-topic"},
+            description = "Ledgers per topic: a schema, cursor and compacted topic ledger and data ledgers for the rest. Default 100"
+    )
+    int ledgersPerTopic = 100;
+
+    @Option(
+            names = {"--tenants"},
+            description = "Amount of tenants the topics are spread over. Default 4"
+    )
+    int tenants = 4;
+
+    @Option(
+            names = {"--namespaces"},
+            description = "Amount of namespaces per tenant the topics are spread over. Default 10"
+    )
+    int namespaces = 10;
+
+    @Option(
+            names = {"--bookies"},
+            description = "Amount of (fictional) bookies the ledger ensembles are spread over. Default 10"
+    )
+    int bookies = 10;
+
+    @Option(
+            names = {"--ledger-size"},
+            description = "Average ledger size in bytes. Default 67108864"
+    )
+    long ledgerSize = 64L * 1024 * 1024;
+
+    @Option(
+            names = {"--orphaned-ratio"},
+            description = "Fraction of ledgers not referenced by their topic. Default 0.01"
+    )
+    double orphanedRatio = 0.01;
+
+    @Option(
+            names = {"--missing-ratio"},
+            description = "Fraction of ledgers referenced by their topic but not created. Default 0.01"
+    )
+    double missingRatio = 0.01;
+
+    @Option(
+            names = {"--expired-ratio"},
+            description = "Fraction of ledgers older than the expired age. Default 0.2"
+    )
+    double expiredRatio = 0.2;
+
+    @Option(
+            names = {"--expired-age"},
+            description = "Minimum age of expired ledgers in days, other ledgers are at most half as old. Default 30 days"
+    )
+    int expiredAgeDays = 30;
+
+    @Option(
+            names = {"--seed"},
+            description = "Seed of the generator, the same seed and options generate the same fixture. Default 0"
+    )
+    long seed = 0;
+
+    @Option(
+            names = {"--concurrency"},
+            description = "Maximum number of concurrent metadata store writes. Default 100"
+    )
+    int concurrency = FixtureGenerator.DEFAULT_CONCURRENCY;
+
+    @Mixin
+    RateLimitOptions rateLimitOptions;
+
+    @Mixin
+    MetricsOptions metricsOptions;
+
+    private final OperationMetrics operationMetrics = new OperationMetrics();
+
+    private final Clock clock;
+
+    private FixtureGenerator fixtureGenerator;
+
+    public GenerateFixtureCommand(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public void run() {
+        validateOptions();
+        RateGovernor rateGovernor = rateLimitOptions.createRateGovernor();
+        try {
+            this.fixtureGenerator = createZookeeperFixtureGenerator(zookeeperHost, zookeeperTimeout, concurrency, rateGovernor, operationMetrics).get();
+            FixtureSpec fixtureSpec = new FixtureSpec(firstLedgerId, ledgerCount, ledgersPerTopic, tenants, namespaces, bookies, ledgerSize,
+                    orphanedRatio, missingRatio, expiredRatio, expiredAgeDays * DAY_IN_MILLIS, seed, clock.millis());
+            operationMetrics.runPhase("generate-fixture", () -> fixtureGenerator.generate(fixtureSpec).get());
+        } finally {
+            Try.run(this.fixtureGenerator::close);
+            metricsOptions.writeSummary(operationMetrics);
+        }
+    }
+
+    private void validateOptions() {
+        if (ledgerCount < 1 || ledgersPerTopic < 1 || tenants < 1 || namespaces < 1 || ledgerSize < 1 || expiredAgeDays < 1 || concurrency < 1) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Amounts, sizes, ages and concurrency should be at least 1");
+        }
+        if (bookies < 3) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "At least 3 bookies are needed to form an ensemble");
+        }
+        if (orphanedRatio < 0 || missingRatio < 0 || expiredRatio < 0 || orphanedRatio + missingRatio > 1 || expiredRatio > 1) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Ratios should be between 0 and 1, the orphaned and missing ratio combined at most 1");
+        }
+    }
+}
@@ -1,21 +1,24 @@
 package net.tomjo.pulsarbookieutils.command;
 
 import io.quarkus.logging.Log;
-import io.vavr.control.Try;
+import io.vavr.concurrent.Future;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
 import net.tomjo.pulsarbookieutils.service.PulsarResourcesService;
-import org.apache.pulsar.client.admin.PulsarAdminException;
+import net.tomjo.pulsarbookieutils.service.RateGovernor;
+import org.apache.pulsar.common.naming.TopicName;
+import org.apache.pulsar.common.policies.data.TopicStats;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-
-import static net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods.createPulsarResourcesService;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Command(name = "get-storage-size", description = "Get aggregated storage size of tenant, namespace or topic")
-public class GetStorageSizeCommand implements Runnable {
+public class GetStorageSizeCommand implements Runnable, ServiceConsumer {
 
     @Option(
             names = {"-p", "--pulsar-admin"},
@@ -41,45 +44,102 @@ public class GetStorageSizeCommand implements Runnable {
     )
     String tlsTrustCertsFilePath;
 
+    @Option(
+            names = {"--admin-concurrency"},
+            description = "Maximum number of concurrent Pulsar admin requests. Default 16"
+    )
+    int adminConcurrency = PulsarResourcesService.DEFAULT_ADMIN_CONCURRENCY;
+
+    @Option(
+            names = {"--retries"},
+            description = "Amount of times to retry a failed topic stats request. Default 2"
+    )
+    int retries = 2;
+
+    @Option(
+            names = {"--request-timeout"},
+            description = "Timeout of a single topic stats request in milliseconds. Default 30000"
+    )
+    long requestTimeout = 30000L;
+
+    @Option(
+            names = {"--breakdown"},
+            description = "Also log the storage size per namespace and per topic, grouping partitions of partitioned topics"
+    )
+    boolean breakdown = false;
+
     @Parameters(index = "0", description = "The resource whose storage size to get.")
     String resource;
 
+    @Mixin
+    RateLimitOptions rateLimitOptions;
+
+    @Mixin
+    MetricsOptions metricsOptions;
+
+    private final OperationMetrics operationMetrics = new OperationMetrics();
+
+    private ServiceProvider serviceProvider = ServiceProvider.direct();
+
     private PulsarResourcesService pulsarResourcesService;
 
     public GetStorageSizeCommand() {
     }
 
+    @Override
+    public void useServiceProvider(ServiceProvider serviceProvider) {
+        this.serviceProvider = serviceProvider;
+    }
+
     @Override
     public void run() {
         Map<String, Object> pulsarConfig = new HashMap<>();
         if (tlsTrustCertsFilePath != null) {
             pulsarConfig.put("tlsTrustCertsFilePath", tlsTrustCertsFilePath);
         }
+        RateGovernor rateGovernor = rateLimitOptions.createRateGovernor();
         try {
-            this.pulsarResourcesService = createPulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig).get();
+            this.pulsarResourcesService = serviceProvider.pulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig, adminConcurrency, rateGovernor, operationMetrics).get();
             printStorageSize();
         } finally {
-            Try.run(this.pulsarResourcesService::close);
+            serviceProvider.release(this.pulsarResourcesService);
+            metricsOptions.writeSummary(operationMetrics);
         }
     }
 
     private void printStorageSize() {
-        List<String> topics = pulsarResourcesService.listTopics(resource);
-        long storageSize = topics.stream()
-                .mapToLong(topic -> Try.of(() -> getStorageSize(topic))
-                        .recover(this::countInaccessibleSizeAsZero)
-                        .get())
-                .sum();
+        Map<String, Future<Long>> topicStorageSizes = new ConcurrentHashMap<>();
+        operationMetrics.runPhase("get-topic-stats", () -> {
+            pulsarResourcesService.streamTopics(resource, topics -> topics.forEach(topic -> topicStorageSizes.put(topic, getStorageSize(topic))))
+                    .await();
+            topicStorageSizes.values().forEach(Future::await);
+        });
+        Map<String, Long> namespaceStorageSizes = new TreeMap<>();
+        Map<String, Long> partitionedTopicStorageSizes = new TreeMap<>();
+        long storageSize = 0;
+        for (Map.Entry<String, Future<Long>> topicStorageSize : topicStorageSizes.entrySet()) {
+            long size = topicStorageSize.getValue().get();
+            TopicName topicName = TopicName.get(topicStorageSize.getKey());
+            namespaceStorageSizes.merge(topicName.getNamespace(), size, Long::sum);
+            partitionedTopicStorageSizes.merge(topicName.getPartitionedTopicName(), size, Long::sum);
+            storageSize += size;
+        }
+        if (breakdown) {
+            namespaceStorageSizes.forEach((namespace, size) -> Log.info("Storage size for namespace " + namespace + ": " + size + " bytes"));
+            partitionedTopicStorageSizes.forEach((topic, size) -> Log.info("Storage size for topic " + topic + ": " + size + " bytes"));
+        }
         Log.info("Storage size for " + resource + ": " + storageSize + " bytes");
     }
 
-    private long countInaccessibleSizeAsZero(Throwable e) {
-        Log.error("Error getting storage size for topic " + resource + ", counting it as 0: " + e.getMessage(), e);
-        return 0L;
+    private Future<Long> getStorageSize(String topic) {
+        return pulsarResourcesService.getTopicStats(topic, retries, requestTimeout)
+                .map(TopicStats::getStorageSize)
+                .recover(e -> countInaccessibleSizeAsZero(topic, e));
     }
 
-    private long getStorageSize(String topic) throws PulsarAdminException {
-        return pulsarResourcesService.topics().getStats(topic).getStorageSize();
+    private long countInaccessibleSizeAsZero(String topic, Throwable e) {
+        Log.error("Error getting storage size for topic " + topic + ", counting it as 0: " + e.getMessage(), e);
+        return 0L;
     }
 
 }
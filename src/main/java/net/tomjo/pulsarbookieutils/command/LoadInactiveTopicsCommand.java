@@ -2,26 +2,28 @@ package net.tomjo.pulsarbookieutils.command;
 
 import io.quarkus.logging.Log;
 import io.vavr.control.Try;
+import net.tomjo.pulsarbookieutils.service.BoundedTaskScope;
 import net.tomjo.pulsarbookieutils.service.LedgerMetadataService;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
 import net.tomjo.pulsarbookieutils.service.PulsarResourcesService;
-import org.apache.pulsar.client.admin.PulsarAdminException;
+import net.tomjo.pulsarbookieutils.service.RateGovernor;
 import org.apache.pulsar.common.naming.TopicName;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Option;
 
 import java.time.Clock;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static net.tomjo.pulsarbookieutils.service.LedgerMetadataService.MANAGED_LEDGERS;
 import static net.tomjo.pulsarbookieutils.service.LedgerMetadataService.METADATASTORE_TIMEOUT_MS;
-import static net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods.createPulsarResourcesService;
-import static net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods.createZookeeperLedgerMetadataService;
 
 @Command(name = "load-inactive-topics", description = "Load inactive topics older than threshold for namespace - this can be used to trigger their retention policy, triggering cleanup")
-public class LoadInactiveTopicsCommand implements Runnable {
+public class LoadInactiveTopicsCommand implements Runnable, ServiceConsumer {
     private static final long DAY_IN_MILLIS = 86400000L;
     @Option(
             names = {"-p", "--pulsar-admin"},
@@ -75,6 +77,19 @@ public class LoadInactiveTopicsCommand implements Runnable {
     )
     boolean dryRun = false;
 
+    @Mixin
+    RateLimitOptions rateLimitOptions;
+
+    @Mixin
+    MetricsOptions metricsOptions;
+
+    @Mixin
+    VirtualThreadOptions virtualThreadOptions;
+
+    private final OperationMetrics operationMetrics = new OperationMetrics();
+
+    private ServiceProvider serviceProvider = ServiceProvider.direct();
+
     private final Clock clock;
     private PulsarResourcesService pulsarResourcesService;
 
@@ -84,29 +99,48 @@ public class LoadInactiveTopicsCommand implements Runnable {
         this.clock = clock;
     }
 
+    @Override
+    public void useServiceProvider(ServiceProvider serviceProvider) {
+        this.serviceProvider = serviceProvider;
+    }
+
     @Override
     public void run() {
         Map<String, Object> pulsarConfig = new HashMap<>();
         if (tlsTrustCertsFilePath != null) {
             pulsarConfig.put("tlsTrustCertsFilePath", tlsTrustCertsFilePath);
         }
+        RateGovernor rateGovernor = rateLimitOptions.createRateGovernor();
         try {
-            this.pulsarResourcesService = createPulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig).get();
-            this.ledgerMetadataService = createZookeeperLedgerMetadataService(zookeeperHost, zookeeperTimeout).get();
+            this.pulsarResourcesService = serviceProvider.pulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig, PulsarResourcesService.DEFAULT_ADMIN_CONCURRENCY, rateGovernor, operationMetrics).get();
+            this.ledgerMetadataService = serviceProvider.ledgerMetadataService(zookeeperHost, zookeeperTimeout, LedgerMetadataService.DEFAULT_SCAN_CONCURRENCY, LedgerMetadataService.DEFAULT_DELETE_CONCURRENCY, null, rateGovernor, operationMetrics).get();
             loadInactiveTopics();
         } finally {
-            Try.run(this.pulsarResourcesService::close);
-            Try.run(this.ledgerMetadataService::close);
+            serviceProvider.release(this.pulsarResourcesService);
+            serviceProvider.release(this.ledgerMetadataService);
+            metricsOptions.writeSummary(operationMetrics);
         }
     }
 
     private void loadInactiveTopics() {
-        Try.of(() -> pulsarResourcesService.namespaces().getTopics(namespace))
-                .get().stream()
-                .filter(topic -> Try.of(() -> isTopicInactive(topic, inactiveDaysThreshold * DAY_IN_MILLIS)).get())
-                .peek(topic -> Log.info("Loading inactive topic: " + topic))
-                .filter(topic -> !dryRun)
-                .forEach(topic -> Try.run(() -> loadTopic(topic)).get());
+        List<String> topics = operationMetrics.timePhase("list-topics", () -> pulsarResourcesService.listTopics(namespace));
+        operationMetrics.runPhase("load-inactive-topics", () -> {
+            try (BoundedTaskScope scope = virtualThreadOptions.createTaskScope()) {
+                topics.forEach(topic -> scope.fork(() -> loadTopicIfInactive(topic)));
+                scope.join();
+            }
+        });
+    }
+
+    private boolean loadTopicIfInactive(String topic) {
+        boolean inactive = Try.of(() -> isTopicInactive(topic, inactiveDaysThreshold * DAY_IN_MILLIS)).get();
+        if (inactive) {
+            Log.info("Loading inactive topic: " + topic);
+            if (!dryRun) {
+                Try.run(() -> loadTopic(topic)).get();
+            }
+        }
+        return inactive;
     }
 
     private boolean isTopicInactive(String topic, long inactiveMillisThreshold) {
@@ -123,7 +157,7 @@ public class LoadInactiveTopicsCommand implements Runnable {
         return false;
     }
 
-    private void loadTopic(String topic) throws PulsarAdminException {
-        pulsarResourcesService.topics().getLastMessageId(topic);
+    private void loadTopic(String topic) {
+        pulsarResourcesService.loadTopic(topic).get();
     }
 }
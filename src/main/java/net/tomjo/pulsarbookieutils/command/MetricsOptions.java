@@ -0,0 +1,50 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import io.quarkus.logging.Log;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Spec;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class MetricsOptions {
+
+    enum Format {
+        json,
+        prometheus
+    }
+
+    @Spec(Spec.Target.MIXEE)
+    CommandSpec command;
+
+    @Option(
+            names = {"--metrics-file"},
+            description = "Write operation counts, latencies and phase durations to this file when the command ends"
+    )
+    Path metricsFile;
+
+    @Option(
+            names = {"--metrics-format"},
+            description = "Format of the metrics file: ${COMPLETION-CANDIDATES}. Default json"
+    )
+    Format metricsFormat = Format.json;
+
+    void writeSummary(OperationMetrics operationMetrics) {
+        if (metricsFile == null) {
+            return;
+        }
+        try (Writer writer = Files.newBufferedWriter(metricsFile)) {
+            if (metricsFormat == Format.prometheus) {
+                operationMetrics.writePrometheus(writer, command.name());
+            } else {
+                operationMetrics.writeJson(writer, command.name());
+            }
+        } catch (IOException e) {
+            Log.error("Could not write metrics to " + metricsFile + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import io.quarkus.logging.Log;
+import net.tomjo.pulsarbookieutils.service.DeletionPlan;
+import net.tomjo.pulsarbookieutils.service.DeletionPlanExecutor;
+import net.tomjo.pulsarbookieutils.service.DeletionPlanResult;
+import net.tomjo.pulsarbookieutils.service.LedgerMetadataService;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
+import picocli.CommandLine;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Spec;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+public class PlanOptions {
+
+    private static final long HOUR_IN_MILLIS = 3600000L;
+
+    @Spec(Spec.Target.MIXEE)
+    CommandSpec command;
+
+    @Option(
+            names = {"--plan-out"},
+            description = "Write the ledgers and metadata paths to delete to this plan file instead of deleting them"
+    )
+    Path planOut;
+
+    @Option(
+            names = {"--plan-in"},
+            description = "Skip the scan and delete what is listed in this plan file, written earlier by --plan-out. Progress is journaled next to the plan, so an interrupted run resumes where it stopped and a finished plan is not applied again"
+    )
+    Path planIn;
+
+    @Option(
+            names = {"--plan-max-age"},
+            description = "Maximum age in hours of a plan applied by --plan-in, older plans are refused as what they list may be in use again. Default 24 hours"
+    )
+    long planMaxAgeHours = 24;
+
+    void validate() {
+        if (planOut != null && planIn != null) {
+            throw new CommandLine.ParameterException(command.commandLine(), "--plan-out and --plan-in are mutually exclusive");
+        }
+        if (planMaxAgeHours < 0) {
+            throw new CommandLine.ParameterException(command.commandLine(), "--plan-max-age should not be negative");
+        }
+    }
+
+    boolean writesPlan() {
+        return planOut != null;
+    }
+
+    boolean appliesPlan() {
+        return planIn != null;
+    }
+
+    void writePlan(String resource, long nowMillis, long[] ledgerIds, List<String> metadataPaths) {
+        DeletionPlan plan = new DeletionPlan(command.name(), resource, nowMillis, ledgerIds, metadataPaths);
+        try {
+            plan.write(planOut);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Log.info("Wrote plan to delete " + ledgerIds.length + " ledgers and " + metadataPaths.size() + " metadata paths to " + planOut);
+    }
+
+    /**
+     * Applies the plan given by --plan-in, which must have been written by the same command for the same resource at
+     * most --plan-max-age ago. A dry run lists what the plan deletes.
+     */
+    void applyPlan(LedgerMetadataService ledgerMetadataService, OperationMetrics operationMetrics, String resource, long nowMillis, boolean dryRun, boolean force) {
+        DeletionPlan plan;
+        try {
+            plan = DeletionPlan.read(planIn);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!plan.command().equals(command.name()) || !plan.resource().equals(resource)) {
+            throw new CommandLine.ParameterException(command.commandLine(), "Plan " + planIn + " was written by " + plan.command() + " " + plan.resource() + " and can't be applied by " + command.name() + " " + resource);
+        }
+        long ageMillis = nowMillis - plan.createdMillis();
+        if (ageMillis > planMaxAgeHours * HOUR_IN_MILLIS) {
+            throw new CommandLine.ParameterException(command.commandLine(), "Plan " + planIn + " was written " + ageMillis / HOUR_IN_MILLIS + " hours ago, more than the maximum of " + planMaxAgeHours
+                    + " hours given by --plan-max-age. Scan again to write a new plan");
+        }
+        Log.info("Plan " + planIn + " deletes " + plan.ledgerIds().length + " ledgers and " + plan.metadataPaths().size() + " metadata paths");
+        if (dryRun) {
+            Arrays.stream(plan.ledgerIds()).forEach(ledgerId -> Log.info("Plan deletes ledger " + ledgerId));
+            plan.metadataPaths().forEach(path -> Log.info("Plan deletes metadata path " + path));
+            return;
+        }
+        DeletionPlanResult result = operationMetrics.timePhase("apply-plan", () -> {
+            try {
+                return new DeletionPlanExecutor(ledgerMetadataService).apply(plan, DeletionPlanExecutor.journalFile(planIn), force);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        result.deletedLedgers().forEach(ledgerId -> Log.info("Deleted ledger " + ledgerId));
+        result.failedLedgers().forEach((ledgerId, ex) -> Log.error("Could not delete ledger " + ledgerId + ": " + ex.getMessage(), ex));
+        result.deletedMetadataPaths().forEach(path -> Log.info("Deleted metadata path " + path));
+        result.failedMetadataPaths().forEach((path, ex) -> Log.error("Could not delete metadata path " + path + ": " + ex.getMessage(), ex));
+        Log.info("Applied plan " + planIn + ": " + result.skippedItems() + " items skipped as already deleted, " + (result.failedLedgers().size() + result.failedMetadataPaths().size()) + " failed");
+    }
+}
@@ -0,0 +1,29 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import net.tomjo.pulsarbookieutils.service.RateGovernor;
+import picocli.CommandLine.Option;
+
+public class RateLimitOptions {
+
+    @Option(
+            names = {"--metadata-read-rate"},
+            description = "Maximum metadata store reads per second. Default 0 (unlimited)"
+    )
+    double metadataReadRate = 0;
+
+    @Option(
+            names = {"--metadata-write-rate"},
+            description = "Maximum metadata store writes per second. Default 0 (unlimited)"
+    )
+    double metadataWriteRate = 0;
+
+    @Option(
+            names = {"--admin-rate"},
+            description = "Maximum Pulsar admin requests per second. Default 0 (unlimited)"
+    )
+    double adminRate = 0;
+
+    RateGovernor createRateGovernor() {
+        return new RateGovernor(metadataReadRate, metadataWriteRate, adminRate);
+    }
+}
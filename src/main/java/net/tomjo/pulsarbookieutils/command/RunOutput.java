@@ -0,0 +1,148 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Captures what the commands run by {@code serve} log and print, so the output of a run can be requested over HTTP.
+ * <p>
+ * While installed, the log records of the application are captured from INFO on, regardless of the configured log
+ * level. Records at or above the configured level are still passed on to the console as before. Only one run is
+ * captured at a time, which matches the runs being executed one at a time.
+ */
+class RunOutput extends Handler {
+
+    private static final String CATEGORY = "net.tomjo.pulsarbookieutils";
+    private static final int MAX_OUTPUT_CHARS = 1024 * 1024;
+
+    private final SimpleFormatter messageFormatter = new SimpleFormatter();
+    // Loggers are only weakly referenced by the log manager, hold on to it so its configuration sticks
+    private final Logger logger;
+    private final Level originalLevel;
+    private final boolean originalUseParentHandlers;
+    private final Level consoleLevel;
+    private StringBuilder output;
+    private boolean truncated;
+
+    private RunOutput(Logger logger) {
+        this.logger = logger;
+        this.originalLevel = logger.getLevel();
+        this.originalUseParentHandlers = logger.getUseParentHandlers();
+        this.consoleLevel = effectiveLevel(logger);
+    }
+
+    static RunOutput install() {
+        RunOutput runOutput = new RunOutput(Logger.getLogger(CATEGORY));
+        runOutput.logger.addHandler(runOutput);
+        runOutput.logger.setUseParentHandlers(false);
+        if (runOutput.consoleLevel.intValue() > Level.INFO.intValue()) {
+            runOutput.logger.setLevel(Level.INFO);
+        }
+        return runOutput;
+    }
+
+    /**
+     * Starts capturing the output of a new run, dropping what is left of the previous one.
+     */
+    synchronized void begin() {
+        output = new StringBuilder();
+        truncated = false;
+    }
+
+    /**
+     * Stops capturing and returns the output captured since {@link #begin()}.
+     */
+    synchronized String end() {
+        String captured = output == null ? "" : output.toString();
+        output = null;
+        return captured;
+    }
+
+    /**
+     * Writer for what a command prints, captured together with its log records.
+     */
+    PrintWriter writer() {
+        return new PrintWriter(new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+                capture(new String(buffer, offset, length));
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }, true);
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (record.getLevel().intValue() >= consoleLevel.intValue()) {
+            for (Logger parent = logger.getParent(); parent != null; parent = parent.getUseParentHandlers() ? parent.getParent() : null) {
+                for (Handler handler : parent.getHandlers()) {
+                    handler.publish(record);
+                }
+            }
+        }
+        if (record.getLevel().intValue() < Level.INFO.intValue()) {
+            return;
+        }
+        StringBuilder line = new StringBuilder()
+                .append(record.getInstant())
+                .append(' ')
+                .append(record.getLevel().getName())
+                .append(' ')
+                .append(messageFormatter.formatMessage(record))
+                .append(System.lineSeparator());
+        if (record.getThrown() != null) {
+            line.append(record.getThrown()).append(System.lineSeparator());
+        }
+        capture(line.toString());
+    }
+
+    private synchronized void capture(String text) {
+        if (output == null || truncated) {
+            return;
+        }
+        if (output.length() + text.length() > MAX_OUTPUT_CHARS) {
+            output.append(text, 0, MAX_OUTPUT_CHARS - output.length())
+                    .append(System.lineSeparator())
+                    .append("[output truncated at ").append(MAX_OUTPUT_CHARS).append(" characters]")
+                    .append(System.lineSeparator());
+            truncated = true;
+        } else {
+            output.append(text);
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Uninstalls the handler, restoring the logging configuration.
+     */
+    @Override
+    public void close() {
+        logger.removeHandler(this);
+        logger.setUseParentHandlers(originalUseParentHandlers);
+        logger.setLevel(originalLevel);
+    }
+
+    private static Level effectiveLevel(Logger logger) {
+        for (Logger current = logger; current != null; current = current.getParent()) {
+            if (current.getLevel() != null) {
+                return current.getLevel();
+            }
+        }
+        return Level.INFO;
+    }
+}
@@ -0,0 +1,412 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.Quarkus;
+import io.vavr.control.Try;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Spec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+@Command(name = "serve", description = "Keep Pulsar admin and ZooKeeper connections open between runs of the other commands, running them on a schedule or when triggered over HTTP")
+public class ServeCommand implements Runnable {
+
+    private static final String RUNS_PATH = "/runs";
+
+    private static final String BEARER = "Bearer ";
+
+    @Spec
+    CommandSpec spec;
+
+    @Option(
+            names = {"--bind"},
+            description = "Address the HTTP endpoint listens on. Default 127.0.0.1"
+    )
+    String bindAddress = "127.0.0.1";
+
+    @Option(
+            names = {"--port"},
+            description = "Port the HTTP endpoint listens on. Default 8089"
+    )
+    int port = 8089;
+
+    @Option(
+            names = {"--schedule"},
+            description = "Run a command at a fixed interval, as '<ISO-8601 interval> <command> [options]', e.g. 'PT4H clean-orphan-ledgers -p ... -z ...'. Can be repeated"
+    )
+    List<String> schedules = new ArrayList<>();
+
+    @Option(
+            names = {"--token-file"},
+            description = "File holding a token that HTTP requests should pass as 'Authorization: Bearer <token>'. Required when binding to a non-loopback address"
+    )
+    Path tokenFile;
+
+    @Option(
+            names = {"--allow-command"},
+            split = ",",
+            defaultValue = "audit,bookie-usage,detect-missing-ledgers,get-storage-size",
+            description = "Commands that can be run over HTTP, scheduled runs aren't restricted. Default the read-only commands: ${DEFAULT-VALUE}"
+    )
+    List<String> allowedCommands;
+
+    @Option(
+            names = {"--history"},
+            description = "Amount of finished runs to keep. Default 100"
+    )
+    int history = 100;
+
+    @Mixin
+    RateLimitOptions rateLimitOptions;
+
+    private final OperationMetrics operationMetrics = new OperationMetrics();
+
+    private final Clock clock;
+
+    private final CommandLine.IFactory factory;
+
+    private final AtomicLong runIds = new AtomicLong();
+
+    private final Map<Long, CommandRun> runs = new LinkedHashMap<>();
+
+    private ExecutorService runExecutor;
+
+    private ScheduledExecutorService scheduler;
+
+    private WarmServiceProvider serviceProvider;
+
+    private RunOutput runOutput;
+
+    private byte[] token;
+
+    public ServeCommand(Clock clock, CommandLine.IFactory factory) {
+        this.clock = clock;
+        this.factory = factory;
+    }
+
+    @Override
+    public void run() {
+        List<Map.Entry<Duration, String[]>> parsedSchedules = schedules.stream()
+                .map(this::parseSchedule)
+                .toList();
+        this.token = readToken();
+        this.serviceProvider = new WarmServiceProvider(rateLimitOptions.createRateGovernor(), operationMetrics);
+        // Runs are executed one at a time, commands deleting data shouldn't interfere with each other
+        this.runExecutor = Executors.newSingleThreadExecutor();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.runOutput = RunOutput.install();
+        HttpServer server = null;
+        try {
+            server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+            server.createContext(RUNS_PATH, exchange -> respond(exchange, authenticated(this::handleRuns)));
+            server.createContext("/metrics", exchange -> respond(exchange, authenticated(this::handleMetrics)));
+            server.start();
+            Log.info("Listening on http://" + bindAddress + ":" + port + ", commands allowed over HTTP: " + allowedCommands);
+            parsedSchedules.forEach(schedule -> schedule(schedule.getKey(), schedule.getValue()));
+            Quarkus.waitForExit();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not listen on " + bindAddress + ":" + port, e);
+        } finally {
+            if (server != null) {
+                server.stop(0);
+            }
+            scheduler.shutdownNow();
+            runExecutor.shutdown();
+            Try.run(() -> runExecutor.awaitTermination(1, TimeUnit.MINUTES));
+            serviceProvider.close();
+            runOutput.close();
+        }
+    }
+
+    /**
+     * The token HTTP requests should pass, null if none is configured. Without a token, only a loopback address may be
+     * bound.
+     */
+    private byte[] readToken() {
+        if (tokenFile == null) {
+            boolean loopback = Try.of(() -> InetAddress.getByName(bindAddress).isLoopbackAddress())
+                    .getOrElseThrow(e -> new CommandLine.ParameterException(spec.commandLine(), "Invalid bind address " + bindAddress + ": " + e.getMessage()));
+            if (!loopback) {
+                throw new CommandLine.ParameterException(spec.commandLine(), "--token-file is required when binding to the non-loopback address " + bindAddress);
+            }
+            return null;
+        }
+        String configuredToken = Try.of(() -> Files.readString(tokenFile).trim())
+                .getOrElseThrow(e -> new CommandLine.ParameterException(spec.commandLine(), "Could not read token file " + tokenFile + ": " + e.getMessage()));
+        if (configuredToken.isEmpty()) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Token file " + tokenFile + " is empty");
+        }
+        return configuredToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Map.Entry<Duration, String[]> parseSchedule(String schedule) {
+        String[] parts = schedule.trim().split("\\s+", 2);
+        try {
+            Duration interval = Duration.parse(parts[0]);
+            if (parts.length < 2 || interval.isNegative() || interval.isZero()) {
+                throw new CommandLine.ParameterException(spec.commandLine(), "Schedule should be a positive interval followed by a command: " + schedule);
+            }
+            String[] arguments = parseArguments(parts[1]);
+            if (arguments.length == 0 || arguments[0].equals(spec.name())) {
+                throw new CommandLine.ParameterException(spec.commandLine(), "Schedule should run a command other than " + spec.name() + ": " + schedule);
+            }
+            return Map.entry(interval, arguments);
+        } catch (DateTimeParseException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Invalid interval in schedule " + schedule + ": " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Invalid command in schedule " + schedule + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the command every interval, starting now. A run is skipped while the previous run of the schedule hasn't
+     * finished yet.
+     */
+    private void schedule(Duration interval, String[] arguments) {
+        AtomicReference<CommandRun> lastRun = new AtomicReference<>();
+        scheduler.scheduleAtFixedRate(() -> {
+            CommandRun previous = lastRun.get();
+            if (previous != null && !previous.isFinished()) {
+                Log.warn("Skipping scheduled run of " + arguments[0] + ", run " + previous.getId() + " hasn't finished yet");
+                return;
+            }
+            lastRun.set(submit(arguments, "schedule"));
+        }, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+        Log.info("Scheduled " + arguments[0] + " every " + interval);
+    }
+
+    private CommandRun submit(String[] arguments, String trigger) {
+        CommandRun run = new CommandRun(runIds.incrementAndGet(), arguments, trigger, clock.instant());
+        synchronized (runs) {
+            runs.put(run.getId(), run);
+            trimHistory();
+        }
+        runExecutor.execute(() -> execute(run));
+        return run;
+    }
+
+    private void execute(CommandRun run) {
+        Log.info("Starting run " + run.getId() + ": " + run.getArguments()[0]);
+        run.start(clock.instant());
+        runOutput.begin();
+        int exitCode = CommandLine.ExitCode.SOFTWARE;
+        try {
+            PrintWriter writer = runOutput.writer();
+            exitCode = new CommandLine(new EntryCommand(), new ServiceProviderFactory(factory, serviceProvider))
+                    .setOut(writer)
+                    .setErr(writer)
+                    .execute(run.getArguments());
+        } finally {
+            serviceProvider.endRun();
+            run.finish(clock.instant(), exitCode, runOutput.end());
+        }
+        Log.info("Finished run " + run.getId() + " with exit code " + exitCode);
+        if (exitCode != 0) {
+            serviceProvider.reset();
+        }
+    }
+
+    private void trimHistory() {
+        long finished = runs.values().stream().filter(CommandRun::isFinished).count();
+        Iterator<CommandRun> iterator = runs.values().iterator();
+        while (finished > history && iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+                finished--;
+            }
+        }
+    }
+
+    private Response handleRuns(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath().replaceAll("/+$", "");
+        if (path.equals(RUNS_PATH)) {
+            if (exchange.getRequestMethod().equals("GET")) {
+                synchronized (runs) {
+                    return Response.json(200, runs.values().stream()
+                            .map(run -> run.toJson(false))
+                            .collect(Collectors.joining(",\n  ", "[\n  ", "\n]\n")));
+                }
+            } else if (exchange.getRequestMethod().equals("POST")) {
+                String[] arguments;
+                try {
+                    arguments = parseArguments(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                } catch (IllegalArgumentException e) {
+                    return Response.text(400, e.getMessage() + "\n");
+                }
+                if (arguments.length == 0 || arguments[0].equals(spec.name())) {
+                    return Response.text(400, "Request body should be a command with its options\n");
+                }
+                if (!allowedCommands.contains(arguments[0])) {
+                    return Response.text(403, "Command " + arguments[0] + " is not allowed over HTTP, see --allow-command\n");
+                }
+                return Response.json(202, submit(arguments, "http").toJson(false) + "\n");
+            }
+            return Response.text(405, "Method not allowed\n");
+        }
+        CommandRun run = Try.of(() -> Long.parseLong(path.substring(RUNS_PATH.length() + 1)))
+                .map(id -> {
+                    synchronized (runs) {
+                        return runs.get(id);
+                    }
+                })
+                .getOrNull();
+        if (run == null) {
+            return Response.text(404, "Run not found\n");
+        }
+        return Response.json(200, run.toJson(true) + "\n");
+    }
+
+    private Response handleMetrics(HttpExchange exchange) throws IOException {
+        StringWriter metrics = new StringWriter();
+        operationMetrics.writePrometheus(metrics, spec.name());
+        return new Response(200, "text/plain; version=0.0.4", metrics.toString());
+    }
+
+    /**
+     * Rejects requests without the configured token.
+     */
+    private Handler authenticated(Handler handler) {
+        return exchange -> {
+            if (token == null) {
+                return handler.handle(exchange);
+            }
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            byte[] presented = authorization != null && authorization.startsWith(BEARER)
+                    ? authorization.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8)
+                    : new byte[0];
+            if (!MessageDigest.isEqual(token, presented)) {
+                return Response.text(401, "Missing or invalid bearer token\n");
+            }
+            return handler.handle(exchange);
+        };
+    }
+
+    private static void respond(HttpExchange exchange, Handler handler) throws IOException {
+        Response response;
+        try {
+            response = handler.handle(exchange);
+        } catch (RuntimeException e) {
+            Log.error("Could not handle " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + ": " + e.getMessage(), e);
+            response = Response.text(500, e.getMessage() + "\n");
+        }
+        byte[] body = response.body().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", response.contentType());
+        exchange.sendResponseHeaders(response.status(), body.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(body);
+        }
+    }
+
+    /**
+     * Splits a command line into arguments on whitespace. Single and double quotes keep whitespace within an argument, a
+     * backslash outside single quotes takes the next character literally.
+     */
+    private static String[] parseArguments(String commandLine) {
+        List<String> arguments = new ArrayList<>();
+        StringBuilder argument = new StringBuilder();
+        boolean inArgument = false;
+        char quote = 0;
+        for (int i = 0; i < commandLine.length(); i++) {
+            char c = commandLine.charAt(i);
+            if (quote == '\'') {
+                if (c == '\'') {
+                    quote = 0;
+                } else {
+                    argument.append(c);
+                }
+            } else if (c == '\\') {
+                if (++i == commandLine.length()) {
+                    throw new IllegalArgumentException("Command line ends with an unescaped backslash");
+                }
+                argument.append(commandLine.charAt(i));
+                inArgument = true;
+            } else if (quote == '"') {
+                if (c == '"') {
+                    quote = 0;
+                } else {
+                    argument.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inArgument = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArgument) {
+                    arguments.add(argument.toString());
+                    argument.setLength(0);
+                    inArgument = false;
+                }
+            } else {
+                argument.append(c);
+                inArgument = true;
+            }
+        }
+        if (quote != 0) {
+            throw new IllegalArgumentException("Command line has an unterminated " + quote + " quote");
+        }
+        if (inArgument) {
+            arguments.add(argument.toString());
+        }
+        return arguments.toArray(String[]::new);
+    }
+
+    private interface Handler {
+        Response handle(HttpExchange exchange) throws IOException;
+    }
+
+    private record Response(int status, String contentType, String body) {
+
+        static Response json(int status, String body) {
+            return new Response(status, "application/json", body);
+        }
+
+        static Response text(int status, String body) {
+            return new Response(status, "text/plain", body);
+        }
+    }
+
+    /**
+     * Creates the commands of a run through the application's factory, handing them the warm services of the server.
+     */
+    private record ServiceProviderFactory(CommandLine.IFactory delegate, ServiceProvider serviceProvider) implements CommandLine.IFactory {
+
+        @Override
+        public <K> K create(Class<K> cls) throws Exception {
+            K instance = delegate.create(cls);
+            if (instance instanceof ServiceConsumer consumer) {
+                consumer.useServiceProvider(serviceProvider);
+            }
+            return instance;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package net.tomjo.pulsarbookieutils.command;
+
+/**
+ * Command running against the Pulsar admin and metadata store services of a {@link ServiceProvider}.
+ */
+interface ServiceConsumer {
+
+    void useServiceProvider(ServiceProvider serviceProvider);
+}
@@ -0,0 +1,53 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import io.vavr.control.Try;
+import net.tomjo.pulsarbookieutils.service.LedgerMetadataService;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
+import net.tomjo.pulsarbookieutils.service.PulsarResourcesService;
+import net.tomjo.pulsarbookieutils.service.RateGovernor;
+import net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Source of the services a command runs against. A single command invocation connects and closes them itself, the
+ * {@code serve} command hands out connections that stay open between runs.
+ */
+interface ServiceProvider {
+
+    Try<PulsarResourcesService> pulsarResourcesService(String pulsarAdminHost, String authPlugin, String authParams, Map<String, Object> pulsarConfig,
+                                                       int adminConcurrency, RateGovernor rateGovernor, OperationMetrics operationMetrics);
+
+    Try<LedgerMetadataService> ledgerMetadataService(String zookeeperHost, int sessionTimeoutMs, int scanConcurrency, int deleteConcurrency, Path snapshotFile,
+                                                     RateGovernor rateGovernor, OperationMetrics operationMetrics);
+
+    /**
+     * Called by the command when it is done with a service, the service may be null if it couldn't be created.
+     */
+    void release(Closeable service);
+
+    static ServiceProvider direct() {
+        return new ServiceProvider() {
+            @Override
+            public Try<PulsarResourcesService> pulsarResourcesService(String pulsarAdminHost, String authPlugin, String authParams, Map<String, Object> pulsarConfig,
+                                                                      int adminConcurrency, RateGovernor rateGovernor, OperationMetrics operationMetrics) {
+                return ServiceFactoryMethods.createPulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig, adminConcurrency, rateGovernor, operationMetrics);
+            }
+
+            @Override
+            public Try<LedgerMetadataService> ledgerMetadataService(String zookeeperHost, int sessionTimeoutMs, int scanConcurrency, int deleteConcurrency, Path snapshotFile,
+                                                                    RateGovernor rateGovernor, OperationMetrics operationMetrics) {
+                return ServiceFactoryMethods.createZookeeperLedgerMetadataService(zookeeperHost, sessionTimeoutMs, scanConcurrency, deleteConcurrency, snapshotFile, rateGovernor, operationMetrics);
+            }
+
+            @Override
+            public void release(Closeable service) {
+                if (service != null) {
+                    Try.run(service::close);
+                }
+            }
+        };
+    }
+}
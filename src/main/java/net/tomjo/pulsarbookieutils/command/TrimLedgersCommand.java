@@ -1,35 +1,50 @@
 package net.tomjo.pulsarbookieutils.command;
 
 import io.quarkus.logging.Log;
-import io.vavr.concurrent.Future;
 import io.vavr.control.Try;
+import net.tomjo.pulsarbookieutils.BookieLoad;
 import net.tomjo.pulsarbookieutils.Ledger;
+import net.tomjo.pulsarbookieutils.OldestLedgers;
+import net.tomjo.pulsarbookieutils.service.BoundedTaskScope;
+import net.tomjo.pulsarbookieutils.service.LedgerDeletionResult;
 import net.tomjo.pulsarbookieutils.service.LedgerMetadataService;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
 import net.tomjo.pulsarbookieutils.service.PulsarResourcesService;
-import org.apache.bookkeeper.client.api.LedgerMetadata;
-import org.apache.pulsar.common.naming.TopicName;
+import net.tomjo.pulsarbookieutils.service.RateGovernor;
+import net.tomjo.pulsarbookieutils.service.RetentionResolver;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
+import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.Spec;
 
+import java.nio.file.Path;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
 
+import static java.util.Comparator.comparingDouble;
 import static java.util.Comparator.comparingLong;
 import static net.tomjo.pulsarbookieutils.service.LedgerMetadataService.METADATASTORE_TIMEOUT_MS;
-import static net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods.createPulsarResourcesService;
-import static net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods.createZookeeperLedgerMetadataService;
 
-@Command(name = "trim-ledgers", description = "Trim the oldest existing ledgers to free up space, either by amount of ledgers or by date. By default only considers expired ledgers.")
-public class TrimLedgersCommand implements Runnable {
+@Command(name = "trim-ledgers", description = "Trim existing ledgers to free up space: the oldest ones by amount of ledgers or by date, or the largest ones until an amount of bytes is freed. By default only considers expired ledgers.")
+public class TrimLedgersCommand implements Runnable, ServiceConsumer {
 
-    private static final long SECONDS_IN_MINUTE = 60L;
-    private static final long MS_IN_SECOND = 1000L;
+    private static final int RETENTION_CHECK_BATCH_SIZE = 1000;
+
+    @Spec
+    CommandSpec spec;
 
     @Option(
             names = {"-p", "--pulsar-admin"},
@@ -68,8 +83,26 @@ public class TrimLedgersCommand implements Runnable {
     )
     int zookeeperTimeout = 30000;
 
+    @Option(
+            names = {"--scan-concurrency"},
+            description = "Maximum number of concurrent ledger metadata reads while scanning. Default 100"
+    )
+    int scanConcurrency = LedgerMetadataService.DEFAULT_SCAN_CONCURRENCY;
+
+    @Option(
+            names = {"--delete-concurrency"},
+            description = "Maximum number of concurrent ledger deletions. Default 50"
+    )
+    int deleteConcurrency = LedgerMetadataService.DEFAULT_DELETE_CONCURRENCY;
+
+    @Option(
+            names = {"--snapshot-file"},
+            description = "Ledger metadata snapshot file. Closed ledgers are read from the snapshot instead of the metadata store, the snapshot is updated after each scan"
+    )
+    Path snapshotFile;
+
     @CommandLine.ArgGroup(
-            multiplicity = "1"
+            multiplicity = "0..1"
     )
     LedgerSelectionOptions ledgerSelectionOptions;
 
@@ -85,106 +118,220 @@ public class TrimLedgersCommand implements Runnable {
     )
     boolean force = false;
 
+    @Option(
+            names = {"--prefer-loaded-bookies"},
+            description = {"With --free-bytes, prefer large ledgers stored on the bookies storing the most data"}
+    )
+    boolean preferLoadedBookies = false;
+
+    @Mixin
+    RateLimitOptions rateLimitOptions;
+
+    @Mixin
+    MetricsOptions metricsOptions;
+
+    @Mixin
+    VirtualThreadOptions virtualThreadOptions;
+
+    @Mixin
+    PlanOptions planOptions;
+
+    private final OperationMetrics operationMetrics = new OperationMetrics();
+
+    private ServiceProvider serviceProvider = ServiceProvider.direct();
+
     private final Clock clock;
 
     private LedgerMetadataService ledgerMetadataService;
     private PulsarResourcesService pulsarResourcesService;
+    private RetentionResolver retentionResolver;
 
 
     public TrimLedgersCommand(Clock clock) {
         this.clock = clock;
     }
 
+    @Override
+    public void useServiceProvider(ServiceProvider serviceProvider) {
+        this.serviceProvider = serviceProvider;
+    }
+
     @Override
     public void run() {
+        planOptions.validate();
+        if (ledgerSelectionOptions == null && !planOptions.appliesPlan()) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "One of --amount, --before-date, --free-bytes or --plan-in is required");
+        }
+        if (preferLoadedBookies && (ledgerSelectionOptions == null || ledgerSelectionOptions.freeBytes == null)) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "--prefer-loaded-bookies requires --free-bytes");
+        }
+        if (preferLoadedBookies && snapshotFile != null) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "--prefer-loaded-bookies can't be used with --snapshot-file, the bookies of snapshotted ledgers can be outdated");
+        }
         Map<String, Object> pulsarConfig = new HashMap<>();
         if (tlsTrustCertsFilePath != null) {
             pulsarConfig.put("tlsTrustCertsFilePath", tlsTrustCertsFilePath);
         }
+        RateGovernor rateGovernor = rateLimitOptions.createRateGovernor();
         try {
-            this.pulsarResourcesService = createPulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig).get();
-            this.ledgerMetadataService = createZookeeperLedgerMetadataService(zookeeperHost, zookeeperTimeout).get();
-            trimLedgersChronologically();
+            this.ledgerMetadataService = serviceProvider.ledgerMetadataService(zookeeperHost, zookeeperTimeout, scanConcurrency, deleteConcurrency, snapshotFile, rateGovernor, operationMetrics).get();
+            if (planOptions.appliesPlan()) {
+                planOptions.applyPlan(ledgerMetadataService, operationMetrics, "", clock.millis(), dryRun, force);
+                return;
+            }
+            this.pulsarResourcesService = serviceProvider.pulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig, PulsarResourcesService.DEFAULT_ADMIN_CONCURRENCY, rateGovernor, operationMetrics).get();
+            this.retentionResolver = new RetentionResolver(pulsarResourcesService);
+            trimLedgers();
         } finally {
-            Try.run(this.pulsarResourcesService::close);
-            Try.run(this.ledgerMetadataService::close);
+            serviceProvider.release(this.pulsarResourcesService);
+            serviceProvider.release(this.ledgerMetadataService);
+            metricsOptions.writeSummary(operationMetrics);
         }
     }
 
-    public void trimLedgersChronologically() {
-        List<Ledger> ledgersToTrim = getLedgersInTrimRange();
-        ledgersToTrim.stream()
-                .filter(ledger -> isLedgerExpired(ledger).map(b -> b || force).get())
-                .peek(this::logLedgerToTrim)
-                .filter(ledger -> !dryRun)
-                .forEach(ledger -> ledgerMetadataService.deleteLedger(ledger.getLedgerId())
-                        .onSuccess(v -> Log.info("Deleted ledger " + ledger.getLedgerId()))
-                        .onFailure(ex -> Log.error("Could not delete ledger " + ledger.getLedgerId() + ": " + ex.getMessage(), ex)));
-    }
-
-    private Try<Boolean> isLedgerExpired(Ledger ledger) {
-        return Try.of(() -> ledger.getLedgerTopic().orElseThrow(() -> new RuntimeException("No topic can be inferred from ledger " + ledger.getLedgerId())))
-                .flatMap(topicName -> isLedgerExpiredByTopicPolicy(topicName, ledger.getCtime())
-                        .flatMap(b -> b
-                                ? Try.success(true)
-                                : isLedgerExpiredByNamespacePolicy(topicName, ledger.getCtime())));
+    public void trimLedgers() {
+        List<Ledger> ledgersInTrimRange = operationMetrics.timePhase("scan-ledgers", this::getLedgersInTrimRange);
+        List<Ledger> ledgersToTrim = operationMetrics.timePhase("check-retention", () -> selectLedgersToTrim(ledgersInTrimRange));
+        if (planOptions.writesPlan()) {
+            planOptions.writePlan("", clock.millis(), ledgersToTrim.stream().mapToLong(Ledger::getLedgerId).toArray(), List.of());
+        } else if (!dryRun) {
+            LedgerDeletionResult result = operationMetrics.timePhase("delete-ledgers", () -> ledgerMetadataService.deleteLedgers(ledgersToTrim.stream().mapToLong(Ledger::getLedgerId)).get());
+            result.deletedLedgers().forEach(ledgerId -> Log.info("Deleted ledger " + ledgerId));
+            result.failedLedgers().forEach((ledgerId, ex) -> Log.error("Could not delete ledger " + ledgerId + ": " + ex.getMessage(), ex));
+        }
     }
 
-    private Try<Boolean> isLedgerExpiredByNamespacePolicy(TopicName ledgerTopic, long ledgerCreationTime) {
-        return Try.of(() -> isLedgerExpiredAccordingToRetentionTime(pulsarResourcesService.namespaces().getRetention(ledgerTopic.getNamespace()).getRetentionTimeInMinutes(), ledgerCreationTime));
+    /**
+     * Selects the eligible ledgers in priority order. When freeing bytes the retention of the candidates is checked in
+     * batches, so only the candidates up to the one reaching the target are checked. A candidate whose retention
+     * can't be resolved is logged and treated as not expired, so it doesn't abort the other checks.
+     */
+    private List<Ledger> selectLedgersToTrim(List<Ledger> candidates) {
+        long targetBytes = ledgerSelectionOptions.freeBytes == null ? Long.MAX_VALUE : ledgerSelectionOptions.freeBytes;
+        List<Ledger> ledgersToTrim = new ArrayList<>();
+        long bytesToTrim = 0L;
+        for (int from = 0; from < candidates.size() && bytesToTrim < targetBytes; from += RETENTION_CHECK_BATCH_SIZE) {
+            List<Ledger> batch = candidates.subList(from, Math.min(from + RETENTION_CHECK_BATCH_SIZE, candidates.size()));
+            try (BoundedTaskScope scope = virtualThreadOptions.createTaskScope()) {
+                List<Future<Boolean>> expiry = batch.stream()
+                        .map(ledger -> scope.fork(() -> isLedgerExpiredLoggingException(ledger)))
+                        .toList();
+                scope.join();
+                for (int i = 0; i < batch.size() && bytesToTrim < targetBytes; i++) {
+                    Ledger ledger = batch.get(i);
+                    boolean expired = expiry.get(i).resultNow();
+                    if (expired || force) {
+                        ledgersToTrim.add(ledger);
+                        bytesToTrim += ledger.getLength();
+                        scope.fork(() -> logLedgerToTrim(ledger, expired));
+                    }
+                }
+                scope.join();
+            }
+        }
+        if (ledgerSelectionOptions.freeBytes != null && bytesToTrim < ledgerSelectionOptions.freeBytes) {
+            Log.warn("Eligible ledgers only add up to " + bytesToTrim + " of the " + ledgerSelectionOptions.freeBytes + " bytes to free");
+        }
+        return ledgersToTrim;
     }
 
-    private Try<Boolean> isLedgerExpiredByTopicPolicy(TopicName ledgerTopic, long ledgerCreationTime) {
-        return Try.of(() -> isLedgerExpiredAccordingToRetentionTime(pulsarResourcesService.topicPolicies().getRetention(ledgerTopic.toString()).getRetentionTimeInMinutes(), ledgerCreationTime));
+    private boolean isLedgerExpiredLoggingException(Ledger ledger) {
+        return isLedgerExpired(ledger)
+                .onFailure(ex -> Log.error("Could not check the retention of ledger " + ledger.getLedgerId() + ", treating it as not expired: " + ex.getMessage(), ex))
+                .getOrElse(false);
     }
 
-    private boolean isLedgerExpiredAccordingToRetentionTime(long retentionTimeInMinutes, long ledgerCreationTime) {
-        return retentionTimeInMinutes != -1 && (retentionTimeInMinutes == 0 || clock.millis() - ledgerCreationTime > (retentionTimeInMinutes * SECONDS_IN_MINUTE * MS_IN_SECOND));
+    private Try<Boolean> isLedgerExpired(Ledger ledger) {
+        return Try.of(() -> ledger.getLedgerTopic().orElseThrow(() -> new RuntimeException("No topic can be inferred from ledger " + ledger.getLedgerId())))
+                .flatMap(topicName -> retentionResolver.isExpired(topicName, ledger.getCtime(), clock.millis()).toTry());
     }
 
-    private void logLedgerToTrim(Ledger ledger) {
-        boolean expired = isLedgerExpired(ledger).get();
+    private boolean logLedgerToTrim(Ledger ledger, boolean expired) {
         boolean inMetaStore = ledgerMetadataService.existsInMetaStore(ledger).await(METADATASTORE_TIMEOUT_MS, TimeUnit.MILLISECONDS).getValue().get().get();
         Log.info("Eligible ledger for trimming: " + ledger + " |  expired: " + expired + " inMetaStore: " + inMetaStore);
+        return inMetaStore;
     }
 
     private List<Ledger> getLedgersInTrimRange() {
-        Map<Long, LedgerMetadata> ledgerMetadata = ledgerMetadataService.listLedgerMetadata()
-                .map(Future::get)
-                .get();
-        List<Long> sortedLedgerIds = ledgerMetadata.entrySet().stream()
-                .sorted(comparingLong(e -> e.getValue().getCtime()))
-                .map(Map.Entry::getKey)
+        if (ledgerSelectionOptions.freeBytes != null) {
+            return getLedgersBySize();
+        } else if (ledgerSelectionOptions.trimBeforeDate == null) {
+            OldestLedgers oldestLedgers = new OldestLedgers(ledgerSelectionOptions.amount);
+            scanPulsarLedgers(oldestLedgers::offer);
+            return oldestLedgers.toList();
+        }
+        Queue<Ledger> ledgers = new ConcurrentLinkedQueue<>();
+        scanPulsarLedgers(ledger -> {
+            if (isCreatedBeforeTrimDate(ledger)) {
+                ledgers.add(ledger);
+            }
+        });
+        return ledgers.stream()
+                .sorted(comparingLong(Ledger::getCtime))
                 .toList();
-        if (ledgerSelectionOptions.trimBeforeDate == null) {
-            return sortedLedgerIds.subList(0, ledgerSelectionOptions.amount).stream()
-                    .map(ledgerMetadata::get)
-                    .map(Ledger::new)
-                    .filter(Ledger::isPulsarLedger)
-                    .toList();
-        } else {
-            return sortedLedgerIds.stream()
-                    .map(ledgerMetadata::get)
-                    .filter(lm -> LocalDateTime.ofInstant(Instant.ofEpochMilli(lm.getCtime()), clock.getZone()).isBefore(ledgerSelectionOptions.trimBeforeDate))
-                    .map(Ledger::new)
-                    .filter(Ledger::isPulsarLedger)
-                    .toList();
+    }
+
+    /**
+     * All Pulsar ledgers, largest first. When preferring loaded bookies the size of a ledger is weighted by the average
+     * load of the bookies storing it, relative to the most loaded bookie.
+     */
+    private List<Ledger> getLedgersBySize() {
+        Queue<Ledger> ledgers = new ConcurrentLinkedQueue<>();
+        BookieLoad bookieLoad = new BookieLoad();
+        ledgerMetadataService.scanLedgers(ledger -> {
+                    bookieLoad.add(ledger);
+                    if (ledger.isPulsarLedger()) {
+                        ledgers.add(ledger);
+                    }
+                })
+                .get()
+                .get();
+        ToDoubleFunction<Ledger> priority = Ledger::getLength;
+        if (preferLoadedBookies) {
+            Map<String, Double> relativeLoad = bookieLoad.toRelativeMap();
+            priority = ledger -> ledger.getLength() * ledger.getBookies().stream()
+                    .mapToDouble(bookie -> relativeLoad.getOrDefault(bookie, 0d))
+                    .average()
+                    .orElse(0d);
         }
+        return ledgers.stream()
+                .sorted(comparingDouble(priority).reversed().thenComparingLong(Ledger::getCtime))
+                .toList();
+    }
+
+    private void scanPulsarLedgers(Consumer<Ledger> consumer) {
+        ledgerMetadataService.scanLedgers(ledger -> {
+                    if (ledger.isPulsarLedger()) {
+                        consumer.accept(ledger);
+                    }
+                })
+                .get()
+                .get();
+    }
+
+    private boolean isCreatedBeforeTrimDate(Ledger ledger) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(ledger.getCtime()), clock.getZone()).isBefore(ledgerSelectionOptions.trimBeforeDate);
     }
 
     private static class LedgerSelectionOptions {
         @Option(
-                names = {"-n, --amount"},
+                names = {"-n", "--amount"},
                 description = {"Amount of ledgers to trim. Default 10"}
         )
         int amount = 10;
 
         @Option(
-                names = {"-b, --before-date"},
+                names = {"-b", "--before-date"},
                 description = {"Amount of ledgers to trim. Default 10"}
         )
         LocalDateTime trimBeforeDate;
 
+        @Option(
+                names = {"--free-bytes"},
+                description = {"Trim the largest eligible ledgers until their lengths add up to this amount of bytes"}
+        )
+        Long freeBytes;
+
         LedgerSelectionOptions() {
         }
 
@@ -0,0 +1,28 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import net.tomjo.pulsarbookieutils.service.LedgerMetadataService;
+import net.tomjo.pulsarbookieutils.service.MetadataStoreUsedLedgersProvider;
+import net.tomjo.pulsarbookieutils.service.PulsarResourcesService;
+import net.tomjo.pulsarbookieutils.service.UsedLedgersProvider;
+import picocli.CommandLine.Option;
+
+public class UsedLedgersOptions {
+
+    enum Source {
+        admin,
+        metadata
+    }
+
+    @Option(
+            names = {"--used-ledgers-source"},
+            description = "Where to read the ledgers used by topics from: ${COMPLETION-CANDIDATES}. admin requests the internal stats of each topic, loading it on a broker, metadata reads the managed ledger, cursor and schema nodes from the metadata store. Default admin"
+    )
+    Source usedLedgersSource = Source.admin;
+
+    UsedLedgersProvider createUsedLedgersProvider(PulsarResourcesService pulsarResourcesService, LedgerMetadataService ledgerMetadataService) {
+        if (usedLedgersSource == Source.metadata) {
+            return new MetadataStoreUsedLedgersProvider(ledgerMetadataService, pulsarResourcesService);
+        }
+        return pulsarResourcesService;
+    }
+}
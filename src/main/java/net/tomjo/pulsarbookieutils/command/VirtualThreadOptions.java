@@ -0,0 +1,17 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import net.tomjo.pulsarbookieutils.service.BoundedTaskScope;
+import picocli.CommandLine.Option;
+
+public class VirtualThreadOptions {
+
+    @Option(
+            names = {"--virtual-threads"},
+            description = "Maximum number of per-topic or per-ledger checks running concurrently on virtual threads. Default 1 (sequential)"
+    )
+    int virtualThreads = 1;
+
+    BoundedTaskScope createTaskScope() {
+        return new BoundedTaskScope(virtualThreads);
+    }
+}
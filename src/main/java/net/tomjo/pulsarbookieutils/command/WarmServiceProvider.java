@@ -0,0 +1,103 @@
+package net.tomjo.pulsarbookieutils.command;
+
+import io.quarkus.logging.Log;
+import io.vavr.control.Try;
+import net.tomjo.pulsarbookieutils.service.LedgerMetadataService;
+import net.tomjo.pulsarbookieutils.service.OperationMetrics;
+import net.tomjo.pulsarbookieutils.service.PulsarResourcesService;
+import net.tomjo.pulsarbookieutils.service.RateGovernor;
+import net.tomjo.pulsarbookieutils.service.ServiceFactoryMethods;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a service per distinct set of connection options open between runs. All services share the rate governor and
+ * operation metrics of the server. Calls are also limited by the rate governor, and recorded into the metrics, of the
+ * command a service was last handed to, until {@link #endRun()}. Caches holding cluster state
+ * are invalidated every time a service is handed out, so a run never acts on what an earlier run saw.
+ */
+class WarmServiceProvider implements ServiceProvider, Closeable {
+
+    private final RateGovernor rateGovernor;
+
+    private final OperationMetrics operationMetrics;
+
+    private final Map<List<Object>, PulsarResourcesService> pulsarResourcesServices = new ConcurrentHashMap<>();
+
+    private final Map<List<Object>, LedgerMetadataService> ledgerMetadataServices = new ConcurrentHashMap<>();
+
+    WarmServiceProvider(RateGovernor rateGovernor, OperationMetrics operationMetrics) {
+        this.rateGovernor = rateGovernor;
+        this.operationMetrics = operationMetrics;
+    }
+
+    @Override
+    public Try<PulsarResourcesService> pulsarResourcesService(String pulsarAdminHost, String authPlugin, String authParams, Map<String, Object> pulsarConfig,
+                                                              int adminConcurrency, RateGovernor rateGovernor, OperationMetrics operationMetrics) {
+        List<Object> key = Arrays.asList(pulsarAdminHost, authPlugin, authParams, pulsarConfig, adminConcurrency);
+        return Try.of(() -> pulsarResourcesServices.computeIfAbsent(key, k -> {
+                    Log.info("Connecting to Pulsar admin " + pulsarAdminHost);
+                    return ServiceFactoryMethods.createPulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig, adminConcurrency, this.rateGovernor, this.operationMetrics).get();
+                }))
+                .andThen(PulsarResourcesService::invalidateCaches)
+                .andThen(() -> attach(rateGovernor, operationMetrics));
+    }
+
+    @Override
+    public Try<LedgerMetadataService> ledgerMetadataService(String zookeeperHost, int sessionTimeoutMs, int scanConcurrency, int deleteConcurrency, Path snapshotFile,
+                                                            RateGovernor rateGovernor, OperationMetrics operationMetrics) {
+        List<Object> key = Arrays.asList(zookeeperHost, sessionTimeoutMs, scanConcurrency, deleteConcurrency, snapshotFile);
+        return Try.of(() -> ledgerMetadataServices.computeIfAbsent(key, k -> {
+                    Log.info("Connecting to zookeeper " + zookeeperHost);
+                    return ServiceFactoryMethods.createZookeeperLedgerMetadataService(zookeeperHost, sessionTimeoutMs, scanConcurrency, deleteConcurrency, snapshotFile, this.rateGovernor, this.operationMetrics).get();
+                }))
+                .andThen(LedgerMetadataService::invalidateCaches)
+                .andThen(() -> attach(rateGovernor, operationMetrics));
+    }
+
+    @Override
+    public void release(Closeable service) {
+        // Stays open for the next run
+    }
+
+    private void attach(RateGovernor rateGovernor, OperationMetrics operationMetrics) {
+        this.rateGovernor.attach(rateGovernor);
+        this.operationMetrics.attach(operationMetrics);
+    }
+
+    /**
+     * Stops limiting and recording operations by the rate governor and metrics of the command that ran last.
+     */
+    void endRun() {
+        rateGovernor.detach();
+        operationMetrics.detach();
+    }
+
+    /**
+     * Closes all connections, the next run connects again. Used after a failed run, which may have been caused by a
+     * broken connection.
+     */
+    void reset() {
+        closeAll(pulsarResourcesServices);
+        closeAll(ledgerMetadataServices);
+    }
+
+    @Override
+    public void close() {
+        reset();
+    }
+
+    private static void closeAll(Map<List<Object>, ? extends Closeable> services) {
+        services.keySet().forEach(key -> {
+            Closeable service = services.remove(key);
+            if (service != null) {
+                Try.run(service::close);
+            }
+        });
+    }
+}
@@ -0,0 +1,94 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs blocking tasks on virtual threads, at most {@code maxConcurrency} at a time, in the spirit of a structured task
+ * scope that shuts down on failure: once a task fails no new tasks are forked, {@link #join()} rethrows the first
+ * failure and closing the scope interrupts the tasks still running and waits for them. With a concurrency of 1 tasks run
+ * one after the other in the order they are forked.
+ */
+public class BoundedTaskScope implements AutoCloseable {
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore permits;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final List<Future<?>> tasks = new ArrayList<>();
+
+    public BoundedTaskScope(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Concurrency should be at least 1, was " + maxConcurrency);
+        }
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    /**
+     * Starts the task as soon as fewer than {@code maxConcurrency} tasks are running, blocking the caller until then.
+     * Should only be called by the thread owning the scope.
+     */
+    public <T> Future<T> fork(Callable<T> task) {
+        permits.acquireUninterruptibly();
+        if (failure.get() != null) {
+            permits.release();
+            throw rethrow(failure.get());
+        }
+        Future<T> future = executor.submit(() -> {
+            try {
+                return task.call();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+                throw e;
+            } finally {
+                permits.release();
+            }
+        });
+        tasks.add(future);
+        return future;
+    }
+
+    /**
+     * Waits for all forked tasks to complete, rethrowing the first failure.
+     */
+    public void join() {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException | CancellationException e) {
+                // Reported through the first failure below
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for tasks");
+            }
+        }
+        if (failure.get() != null) {
+            throw rethrow(failure.get());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (failure.get() != null) {
+            executor.shutdownNow();
+        }
+        executor.close();
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException runtimeException) {
+            return runtimeException;
+        } else if (e instanceof Error error) {
+            throw error;
+        }
+        return new CompletionException(e);
+    }
+}
@@ -0,0 +1,68 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Size-bounded LRU cache of asynchronous results. Concurrent requests for the same key share a single load, failed
+ * loads are only kept when they match {@code cacheableFailure} (e.g. a resource that doesn't exist).
+ */
+public class CoalescingCache<K, V> {
+
+    private final Predicate<Throwable> cacheableFailure;
+    private final Map<K, CompletableFuture<V>> entries;
+
+    public CoalescingCache(int maximumSize, Predicate<Throwable> cacheableFailure) {
+        this.cacheableFailure = cacheableFailure;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CompletableFuture<V>> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    public CompletableFuture<V> get(K key, Function<K, CompletableFuture<V>> loader) {
+        CompletableFuture<V> future;
+        synchronized (entries) {
+            future = entries.get(key);
+            if (future != null) {
+                return future;
+            }
+            future = new CompletableFuture<>();
+            entries.put(key, future);
+        }
+        load(key, loader, future);
+        return future;
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private void load(K key, Function<K, CompletableFuture<V>> loader, CompletableFuture<V> future) {
+        CompletableFuture<V> result;
+        try {
+            result = loader.apply(key);
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((value, e) -> {
+            if (e == null) {
+                future.complete(value);
+            } else {
+                if (!cacheableFailure.test(e)) {
+                    synchronized (entries) {
+                        entries.remove(key, future);
+                    }
+                }
+                future.completeExceptionally(e);
+            }
+        });
+    }
+}
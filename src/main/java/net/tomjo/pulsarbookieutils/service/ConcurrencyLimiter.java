@@ -0,0 +1,91 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs asynchronous tasks with at most {@code maxConcurrency} of them in flight, queueing the others without blocking
+ * the submitting thread. Tasks that complete synchronously, like cache hits or rejections, are drained in a loop rather
+ * than by recursion, so the stack depth doesn't grow with the queue length.
+ */
+public class ConcurrencyLimiter {
+
+    private final int maxConcurrency;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ThreadLocal<Boolean> dispatching = ThreadLocal.withInitial(() -> false);
+
+    public ConcurrencyLimiter(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Concurrency should be at least 1, was " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        pendingTasks.add(() -> start(task, result));
+        dispatch();
+        return result;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    private <T> void start(Supplier<CompletableFuture<T>> task, CompletableFuture<T> result) {
+        CompletableFuture<T> future;
+        try {
+            future = task.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((value, e) -> {
+            inFlight.decrementAndGet();
+            dispatch();
+            if (e == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private void dispatch() {
+        if (dispatching.get()) {
+            // Called from a task completing within an outer dispatch on this thread, which picks up the freed slot
+            return;
+        }
+        dispatching.set(true);
+        try {
+            drain();
+        } finally {
+            dispatching.set(false);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= maxConcurrency) {
+                return;
+            }
+            if (!inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Runnable task = pendingTasks.poll();
+            if (task == null) {
+                inFlight.decrementAndGet();
+                // A task may have been queued while we held the slot, make sure it doesn't get stranded
+                if (pendingTasks.isEmpty()) {
+                    return;
+                }
+            } else {
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only progress journal of a {@link DeletionPlan}, recording plan items by index.
+ * <p>
+ * Layout: a header (magic, version, plan checksum) followed by fixed size records (type, item index). An item is
+ * journaled as started, and synced, before it is deleted and as completed once it is gone. A torn record at the end of
+ * the journal, left behind by a crash, is dropped when the journal is opened.
+ */
+class DeletionJournal implements Closeable {
+
+    private static final int MAGIC = 0x50424A4C;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 9;
+
+    private static final byte STARTED = 1;
+    private static final byte COMPLETED = 2;
+
+    private final FileChannel channel;
+    private final LedgerIdSet startedItems;
+    private final LedgerIdSet completedItems;
+    private final ByteBuffer pending = ByteBuffer.allocate(RECORD_SIZE * 1024);
+
+    private DeletionJournal(FileChannel channel, LedgerIdSet startedItems, LedgerIdSet completedItems) {
+        this.channel = channel;
+        this.startedItems = startedItems;
+        this.completedItems = completedItems;
+    }
+
+    static DeletionJournal open(Path file, long planChecksum) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            LedgerIdSet startedItems = new LedgerIdSet();
+            LedgerIdSet completedItems = new LedgerIdSet();
+            if (channel.size() < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                        .putInt(MAGIC)
+                        .putInt(VERSION)
+                        .putLong(planChecksum)
+                        .flip();
+                channel.truncate(0);
+                channel.write(header, 0);
+                channel.force(true);
+                channel.position(HEADER_SIZE);
+                return new DeletionJournal(channel, startedItems, completedItems);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Unsupported deletion journal " + file);
+            }
+            if (header.getLong() != planChecksum) {
+                throw new IOException("Deletion journal " + file + " belongs to another plan");
+            }
+            long validSize = HEADER_SIZE + (channel.size() - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+            ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, validSize - HEADER_SIZE);
+            while (records.hasRemaining()) {
+                byte type = records.get();
+                long item = records.getLong();
+                if (type == STARTED) {
+                    startedItems.add(item);
+                } else if (type == COMPLETED) {
+                    completedItems.add(item);
+                } else {
+                    throw new IOException("Malformed record in deletion journal " + file);
+                }
+            }
+            channel.truncate(validSize);
+            channel.position(validSize);
+            return new DeletionJournal(channel, startedItems, completedItems);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    synchronized boolean isCompleted(long item) {
+        return completedItems.contains(item);
+    }
+
+    synchronized long completedCount() {
+        return completedItems.size();
+    }
+
+    /**
+     * Number of items that were started but never completed, i.e. in flight when a previous run stopped.
+     */
+    synchronized long interruptedCount() {
+        LedgerIdSet interrupted = startedItems.copy();
+        interrupted.removeAll(completedItems);
+        return interrupted.size();
+    }
+
+    synchronized void started(long item) throws IOException {
+        startedItems.add(item);
+        append(STARTED, item);
+    }
+
+    synchronized void completed(long item) throws IOException {
+        completedItems.add(item);
+        append(COMPLETED, item);
+    }
+
+    /**
+     * Writes the records appended since the last sync and forces them to disk.
+     */
+    synchronized void sync() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    private void append(byte type, long item) throws IOException {
+        if (pending.remaining() < RECORD_SIZE) {
+            flush();
+        }
+        pending.put(type).putLong(item);
+    }
+
+    private void flush() throws IOException {
+        pending.flip();
+        while (pending.hasRemaining()) {
+            channel.write(pending);
+        }
+        pending.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+}
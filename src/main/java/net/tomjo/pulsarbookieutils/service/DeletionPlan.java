@@ -0,0 +1,178 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.zip.CRC32;
+
+/**
+ * Ledgers and metadata paths a command selected for deletion, written with --plan-out and applied with --plan-in.
+ * <p>
+ * Layout: a header (magic, version), the command and resource the plan was made for, its creation time, the ledger ids
+ * in deletion order as zigzag varint deltas, the metadata paths and a CRC32 of everything before it. Ledgers are
+ * allocated with increasing ids, so the deltas of a sorted plan mostly take one or two bytes per ledger. Progress is
+ * journaled per ledger, so a plan lists each ledger at most once.
+ */
+public record DeletionPlan(String command, String resource, long createdMillis, long[] ledgerIds, List<String> metadataPaths) {
+
+    private static final int MAGIC = 0x50424450;
+    private static final int VERSION = 1;
+
+    /**
+     * Number of items in the plan, ledgers first, followed by the metadata paths.
+     */
+    public long size() {
+        return ledgerIds.length + (long) metadataPaths.size();
+    }
+
+    /**
+     * Checksum identifying the content of the plan, used to tie a progress journal to the plan it records.
+     */
+    public long checksum() {
+        return crc(encode());
+    }
+
+    public void write(Path file) throws IOException {
+        OptionalLong duplicateLedgerId = findDuplicateLedgerId(ledgerIds);
+        if (duplicateLedgerId.isPresent()) {
+            throw new IllegalArgumentException("Deletion plan lists ledger " + duplicateLedgerId.getAsLong() + " more than once");
+        }
+        byte[] body = encode();
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            out.write(body);
+            out.writeLong(crc(body));
+        }
+        try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static DeletionPlan read(Path file) throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        if (content.length < Long.BYTES) {
+            throw new IOException("Deletion plan " + file + " is truncated");
+        }
+        int bodyLength = content.length - Long.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, bodyLength);
+        if (crc.getValue() != ByteBuffer.wrap(content, bodyLength, Long.BYTES).getLong()) {
+            throw new IOException("Deletion plan " + file + " is corrupt");
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content, 0, bodyLength))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported deletion plan " + file);
+            }
+            String command = in.readUTF();
+            String resource = in.readUTF();
+            long createdMillis = in.readLong();
+            long[] ledgerIds = new long[Math.toIntExact(readVarLong(in))];
+            long previous = 0;
+            for (int i = 0; i < ledgerIds.length; i++) {
+                previous += zigzagDecode(readVarLong(in));
+                ledgerIds[i] = previous;
+            }
+            OptionalLong duplicateLedgerId = findDuplicateLedgerId(ledgerIds);
+            if (duplicateLedgerId.isPresent()) {
+                throw new IOException("Deletion plan " + file + " lists ledger " + duplicateLedgerId.getAsLong() + " more than once");
+            }
+            int pathCount = Math.toIntExact(readVarLong(in));
+            List<String> metadataPaths = new ArrayList<>(pathCount);
+            for (int i = 0; i < pathCount; i++) {
+                metadataPaths.add(in.readUTF());
+            }
+            return new DeletionPlan(command, resource, createdMillis, ledgerIds, List.copyOf(metadataPaths));
+        }
+    }
+
+    private static OptionalLong findDuplicateLedgerId(long[] ledgerIds) {
+        LedgerIdSet seen = new LedgerIdSet();
+        for (long ledgerId : ledgerIds) {
+            if (seen.contains(ledgerId)) {
+                return OptionalLong.of(ledgerId);
+            }
+            seen.add(ledgerId);
+        }
+        return OptionalLong.empty();
+    }
+
+    private byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(command);
+            out.writeUTF(resource);
+            out.writeLong(createdMillis);
+            writeVarLong(out, ledgerIds.length);
+            long previous = 0;
+            for (long ledgerId : ledgerIds) {
+                writeVarLong(out, zigzagEncode(ledgerId - previous));
+                previous = ledgerId;
+            }
+            writeVarLong(out, metadataPaths.size());
+            for (String metadataPath : metadataPaths) {
+                out.writeUTF(metadataPath);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static long crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static long zigzagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long zigzagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in deletion plan");
+    }
+}
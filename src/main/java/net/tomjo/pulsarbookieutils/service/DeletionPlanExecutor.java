@@ -0,0 +1,131 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import io.quarkus.logging.Log;
+import io.vavr.concurrent.Future;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import org.apache.bookkeeper.client.BKException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static org.apache.bookkeeper.client.api.BKException.Code.NoSuchLedgerExistsException;
+import static org.apache.bookkeeper.client.api.BKException.Code.NoSuchLedgerExistsOnMetadataServerException;
+
+/**
+ * Applies a {@link DeletionPlan}, journaling progress so every item of the plan is deleted exactly once across runs.
+ * <p>
+ * Items are journaled as started in batches, and the batch is synced before any of its deletions is sent. Completed
+ * items are skipped by later runs. An item that was started but not completed may have been deleted just before the
+ * process stopped, so a ledger or metadata path that no longer exists counts as deleted.
+ */
+public class DeletionPlanExecutor {
+
+    private static final int JOURNAL_BATCH_SIZE = 1000;
+
+    private final LedgerMetadataService ledgerMetadataService;
+
+    public DeletionPlanExecutor(LedgerMetadataService ledgerMetadataService) {
+        this.ledgerMetadataService = ledgerMetadataService;
+    }
+
+    public static Path journalFile(Path planFile) {
+        return planFile.resolveSibling(planFile.getFileName() + ".journal");
+    }
+
+    /**
+     * Deletes the ledgers of the plan, followed by its metadata paths. The metadata paths are only deleted when all
+     * ledgers were, unless forced.
+     */
+    public DeletionPlanResult apply(DeletionPlan plan, Path journalFile, boolean force) throws IOException {
+        try (DeletionJournal journal = DeletionJournal.open(journalFile, plan.checksum())) {
+            long skippedItems = journal.completedCount();
+            if (skippedItems > 0 || journal.interruptedCount() > 0) {
+                Log.info("Resuming plan: " + skippedItems + " of " + plan.size() + " items already deleted, " + journal.interruptedCount() + " interrupted deletions are retried");
+            }
+            LedgerIdSet deletedLedgers = new LedgerIdSet();
+            Map<Long, Throwable> failedLedgers = new ConcurrentSkipListMap<>();
+            long[] ledgerIds = plan.ledgerIds();
+            for (int from = 0; from < ledgerIds.length; from += JOURNAL_BATCH_SIZE) {
+                deleteLedgers(journal, ledgerIds, from, Math.min(from + JOURNAL_BATCH_SIZE, ledgerIds.length), deletedLedgers, failedLedgers);
+            }
+            List<String> deletedMetadataPaths = new ArrayList<>();
+            Map<String, Throwable> failedMetadataPaths = new LinkedHashMap<>();
+            if (failedLedgers.isEmpty() || force) {
+                deleteMetadataPaths(journal, plan, deletedMetadataPaths, failedMetadataPaths);
+            } else if (!plan.metadataPaths().isEmpty()) {
+                Log.warn("Not deleting metadata paths, " + failedLedgers.size() + " ledgers could not be deleted");
+            }
+            return new DeletionPlanResult(skippedItems, deletedLedgers, failedLedgers, deletedMetadataPaths, failedMetadataPaths);
+        }
+    }
+
+    private void deleteLedgers(DeletionJournal journal, long[] ledgerIds, int from, int to, LedgerIdSet deletedLedgers, Map<Long, Throwable> failedLedgers) throws IOException {
+        Map<Long, Integer> items = new HashMap<>();
+        for (int item = from; item < to; item++) {
+            if (!journal.isCompleted(item)) {
+                journal.started(item);
+                items.put(ledgerIds[item], item);
+            }
+        }
+        if (items.isEmpty()) {
+            return;
+        }
+        journal.sync();
+        LedgerDeletionResult result = ledgerMetadataService.deleteLedgers(items.keySet().stream().mapToLong(Long::longValue)).get();
+        for (Map.Entry<Long, Integer> item : items.entrySet()) {
+            long ledgerId = item.getKey();
+            Throwable failure = result.failedLedgers().get(ledgerId);
+            if (failure == null || isMissingLedger(failure)) {
+                journal.completed(item.getValue());
+                deletedLedgers.add(ledgerId);
+            } else {
+                failedLedgers.put(ledgerId, failure);
+            }
+        }
+        journal.sync();
+    }
+
+    private void deleteMetadataPaths(DeletionJournal journal, DeletionPlan plan, List<String> deletedMetadataPaths, Map<String, Throwable> failedMetadataPaths) throws IOException {
+        long firstItem = plan.ledgerIds().length;
+        List<Integer> pathIndexes = new ArrayList<>();
+        for (int i = 0; i < plan.metadataPaths().size(); i++) {
+            if (!journal.isCompleted(firstItem + i)) {
+                journal.started(firstItem + i);
+                pathIndexes.add(i);
+            }
+        }
+        if (pathIndexes.isEmpty()) {
+            return;
+        }
+        journal.sync();
+        Map<Integer, Future<Void>> deletions = new LinkedHashMap<>();
+        pathIndexes.forEach(i -> deletions.put(i, deletePathIfExists(plan.metadataPaths().get(i))));
+        for (Map.Entry<Integer, Future<Void>> deletion : deletions.entrySet()) {
+            String path = plan.metadataPaths().get(deletion.getKey());
+            deletion.getValue().await();
+            if (deletion.getValue().isSuccess()) {
+                journal.completed(firstItem + deletion.getKey());
+                deletedMetadataPaths.add(path);
+            } else {
+                failedMetadataPaths.put(path, deletion.getValue().getCause().get());
+            }
+        }
+        journal.sync();
+    }
+
+    private Future<Void> deletePathIfExists(String path) {
+        return ledgerMetadataService.existsPath(path)
+                .flatMap(exists -> exists ? ledgerMetadataService.deletePathRecursive(path) : Future.successful(null));
+    }
+
+    private static boolean isMissingLedger(Throwable e) {
+        int code = BKException.getExceptionCode(e);
+        return code == NoSuchLedgerExistsException || code == NoSuchLedgerExistsOnMetadataServerException;
+    }
+}
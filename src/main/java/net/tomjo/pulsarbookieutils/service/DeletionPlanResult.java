@@ -0,0 +1,10 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+
+import java.util.List;
+import java.util.Map;
+
+public record DeletionPlanResult(long skippedItems, LedgerIdSet deletedLedgers, Map<Long, Throwable> failedLedgers,
+                                 List<String> deletedMetadataPaths, Map<String, Throwable> failedMetadataPaths) {
+}
@@ -0,0 +1,283 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import io.quarkus.logging.Log;
+import io.vavr.concurrent.Future;
+import io.vavr.control.Try;
+import net.tomjo.pulsarbookieutils.Ledger;
+import org.apache.bookkeeper.client.api.DigestType;
+import org.apache.bookkeeper.client.api.LedgerMetadata;
+import org.apache.bookkeeper.meta.LedgerManager;
+import org.apache.bookkeeper.meta.LedgerManagerFactory;
+import org.apache.bookkeeper.meta.LedgerMetadataBuilder;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.LongProperty;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo;
+import org.apache.bookkeeper.net.BookieId;
+import org.apache.pulsar.metadata.api.MetadataStore;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static net.tomjo.pulsarbookieutils.service.LedgerMetadataService.MANAGED_LEDGERS;
+import static net.tomjo.pulsarbookieutils.service.LedgerMetadataService.SCHEMAS;
+import static net.tomjo.pulsarbookieutils.service.MetadataStoreUsedLedgersProvider.COMPACTED_TOPIC_LEDGER_PROPERTY;
+import static net.tomjo.pulsarbookieutils.service.MetadataStoreUsedLedgersProvider.COMPACTION_SUBSCRIPTION;
+
+/**
+ * Populates a metadata store with synthetic Pulsar ledgers and the managed ledger, cursor and schema nodes referencing
+ * them, to reproduce the behaviour of the other commands on large clusters. Every topic gets a schema ledger, a cursor
+ * ledger, a compacted topic ledger and data ledgers for the rest of its ledger ids.
+ */
+public class FixtureGenerator implements Closeable {
+
+    public static final int DEFAULT_CONCURRENCY = 100;
+
+    static final String SUBSCRIPTION = "fixture-subscription";
+
+    private static final long PROGRESS_INTERVAL = 100000;
+    private static final int ENTRY_SIZE = 1024;
+    private static final byte[] PASSWORD = new byte[0];
+
+    private final LedgerManagerFactory ledgerManagerFactory;
+
+    private final LedgerManager ledgerManager;
+
+    private final MetadataStore metadataStore;
+
+    private final int concurrency;
+
+    private final RateGovernor rateGovernor;
+
+    private final OperationMetrics operationMetrics;
+
+    public FixtureGenerator(LedgerManagerFactory ledgerManagerFactory, MetadataStore metadataStore, int concurrency, RateGovernor rateGovernor, OperationMetrics operationMetrics) {
+        this.ledgerManagerFactory = ledgerManagerFactory;
+        this.ledgerManager = ledgerManagerFactory.newLedgerManager();
+        this.metadataStore = metadataStore;
+        this.concurrency = concurrency;
+        this.rateGovernor = rateGovernor;
+        this.operationMetrics = operationMetrics;
+    }
+
+    /**
+     * Generates the fixture, keeping at most {@code concurrency} metadata store writes in flight. The metadata store
+     * groups concurrent node writes into batched requests.
+     */
+    public Future<FixtureSummary> generate(FixtureSpec spec) {
+        return Future.of(() -> {
+            Counters counters = new Counters();
+            Semaphore inFlight = new Semaphore(concurrency);
+            long topics = (spec.ledgerCount() + spec.ledgersPerTopic() - 1) / spec.ledgersPerTopic();
+            for (long topicIndex = 0; topicIndex < topics; topicIndex++) {
+                long firstLedgerId = spec.firstLedgerId() + topicIndex * spec.ledgersPerTopic();
+                long lastLedgerId = Math.min(firstLedgerId + spec.ledgersPerTopic(), spec.firstLedgerId() + spec.ledgerCount());
+                generateTopic(spec, new FixtureTopic(spec, topicIndex), firstLedgerId, lastLedgerId, inFlight, counters);
+                counters.topics.increment();
+            }
+            inFlight.acquireUninterruptibly(concurrency);
+            FixtureSummary summary = counters.toSummary();
+            Log.info("Generated " + summary.topics() + " topics and " + summary.createdLedgers() + " ledgers, of which " + summary.orphanedLedgers()
+                    + " orphaned and " + summary.expiredLedgers() + " expired, with " + summary.missingLedgers() + " missing ledgers and "
+                    + summary.failures() + " failures");
+            return summary;
+        });
+    }
+
+    private void generateTopic(FixtureSpec spec, FixtureTopic topic, long firstLedgerId, long lastLedgerId, Semaphore inFlight, Counters counters) {
+        ManagedLedgerInfo.Builder managedLedgerInfo = ManagedLedgerInfo.newBuilder();
+        List<Runnable> references = new ArrayList<>();
+        for (long ledgerId = firstLedgerId; ledgerId < lastLedgerId; ledgerId++) {
+            long id = ledgerId;
+            long position = ledgerId - firstLedgerId;
+            SplittableRandom random = new SplittableRandom(spec.seed() ^ ledgerId);
+            double role = random.nextDouble();
+            boolean orphaned = role < spec.orphanedRatio();
+            boolean missing = !orphaned && role < spec.orphanedRatio() + spec.missingRatio();
+            boolean expired = random.nextDouble() < spec.expiredRatio();
+            LedgerMetadata metadata = createMetadata(spec, topic, ledgerId, position, expired, random);
+            if (!missing) {
+                submit(inFlight, counters, () -> write("ledger.createMetadata", () -> ledgerManager.createLedgerMetadata(id, metadata)));
+                counters.created.increment();
+                if (orphaned) {
+                    counters.orphaned.increment();
+                }
+                if (expired) {
+                    counters.expired.increment();
+                }
+            } else {
+                counters.missing.increment();
+            }
+            reportProgress(ledgerId - spec.firstLedgerId() + 1, spec.ledgerCount());
+            if (orphaned) {
+                continue;
+            }
+            switch (topic.kindOf(position)) {
+                case SCHEMA -> references.add(() -> put(inFlight, counters, SCHEMAS + topic.schemaId(), SchemaLocators.create(id)));
+                case CURSOR -> references.add(() -> put(inFlight, counters, MANAGED_LEDGERS + topic.managedLedgerName() + "/" + SUBSCRIPTION,
+                        ManagedCursorInfo.newBuilder()
+                                .setCursorsLedgerId(id)
+                                .build()
+                                .toByteArray()));
+                case COMPACTED_TOPIC -> references.add(() -> put(inFlight, counters, MANAGED_LEDGERS + topic.managedLedgerName() + "/" + COMPACTION_SUBSCRIPTION,
+                        ManagedCursorInfo.newBuilder()
+                                .setCursorsLedgerId(-1L)
+                                .addProperties(LongProperty.newBuilder().setName(COMPACTED_TOPIC_LEDGER_PROPERTY).setValue(id))
+                                .build()
+                                .toByteArray()));
+                case DATA -> managedLedgerInfo.addLedgerInfo(ManagedLedgerInfo.LedgerInfo.newBuilder()
+                        .setLedgerId(id)
+                        .setEntries(metadata.getLastEntryId() + 1)
+                        .setSize(metadata.getLength())
+                        .setTimestamp(metadata.getCtime()));
+            }
+        }
+        put(inFlight, counters, MANAGED_LEDGERS + topic.managedLedgerName(), managedLedgerInfo.build().toByteArray());
+        references.forEach(Runnable::run);
+    }
+
+    private LedgerMetadata createMetadata(FixtureSpec spec, FixtureTopic topic, long ledgerId, long position, boolean expired, SplittableRandom random) {
+        long ctime = expired
+                ? spec.nowMillis() - spec.expiredAgeMillis() - random.nextLong(spec.expiredAgeMillis() + 1)
+                : spec.nowMillis() - random.nextLong(Math.max(1, spec.expiredAgeMillis() / 2));
+        long length = Math.max(ENTRY_SIZE, random.nextLong(2 * spec.averageLedgerSize() + 1));
+        int firstBookie = random.nextInt(spec.bookies());
+        List<BookieId> ensemble = List.of(bookie(spec, firstBookie), bookie(spec, firstBookie + 1), bookie(spec, firstBookie + 2));
+        return LedgerMetadataBuilder.create()
+                .withId(ledgerId)
+                .withEnsembleSize(ensemble.size())
+                .withWriteQuorumSize(2)
+                .withAckQuorumSize(2)
+                .newEnsembleEntry(0L, ensemble)
+                .withDigestType(DigestType.CRC32C)
+                .withPassword(PASSWORD)
+                .withCreationTime(ctime)
+                .storingCreationTime(true)
+                .withCustomMetadata(topic.customMetadataOf(position))
+                .withClosedState()
+                .withLastEntryId(length / ENTRY_SIZE - 1)
+                .withLength(length)
+                .build();
+    }
+
+    private static BookieId bookie(FixtureSpec spec, int index) {
+        return BookieId.parse("fixture-bookie-" + index % spec.bookies() + ":3181");
+    }
+
+    private void put(Semaphore inFlight, Counters counters, String path, byte[] value) {
+        submit(inFlight, counters, () -> write("metadata.put", () -> metadataStore.put(path, value, Optional.empty())));
+    }
+
+    private void submit(Semaphore inFlight, Counters counters, Supplier<CompletableFuture<?>> write) {
+        inFlight.acquireUninterruptibly();
+        CompletableFuture<?> future;
+        try {
+            future = write.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((v, e) -> {
+            if (e != null) {
+                counters.failures.increment();
+                Log.error("Could not write fixture metadata: " + e.getMessage());
+            }
+            inFlight.release();
+        });
+    }
+
+    private <T> CompletableFuture<T> write(String operation, Supplier<CompletableFuture<T>> call) {
+        return rateGovernor.throttle(RateGovernor.Operation.METADATA_WRITE, () -> operationMetrics.record(operation, call));
+    }
+
+    private static void reportProgress(long generated, long total) {
+        if (generated % PROGRESS_INTERVAL == 0) {
+            Log.info("Generated " + generated + "/" + total + " ledgers");
+        }
+    }
+
+    @Override
+    public void close() {
+        Try.run(this.ledgerManager::close);
+        Try.run(this.metadataStore::close);
+        Try.run(this.ledgerManagerFactory::close);
+    }
+
+    private enum LedgerKind {
+        SCHEMA,
+        CURSOR,
+        COMPACTED_TOPIC,
+        DATA
+    }
+
+    private record FixtureTopic(long index, String tenant, String namespace, String name) {
+
+        FixtureTopic(FixtureSpec spec, long index) {
+            this(index, "fixture-tenant-" + index % spec.tenants(), "fixture-namespace-" + (index / spec.tenants()) % spec.namespacesPerTenant(), "topic-" + index);
+        }
+
+        String managedLedgerName() {
+            return tenant + "/" + namespace + "/persistent/" + name;
+        }
+
+        String schemaId() {
+            return tenant + "/" + namespace + "/" + name;
+        }
+
+        String topicName() {
+            return "persistent://" + schemaId();
+        }
+
+        LedgerKind kindOf(long position) {
+            return switch ((int) Math.min(position, 3)) {
+                case 0 -> LedgerKind.SCHEMA;
+                case 1 -> LedgerKind.CURSOR;
+                case 2 -> LedgerKind.COMPACTED_TOPIC;
+                default -> LedgerKind.DATA;
+            };
+        }
+
+        Map<String, byte[]> customMetadataOf(long position) {
+            return switch (kindOf(position)) {
+                case SCHEMA -> Map.of(Ledger.APPLICATION, bytes("pulsar"),
+                        "component", bytes("schema"),
+                        Ledger.SCHEMA_ID, bytes(schemaId()));
+                case CURSOR -> Map.of(Ledger.APPLICATION, bytes("pulsar"),
+                        "component", bytes("managed-ledger"),
+                        Ledger.MANAGED_LEDGER, bytes(managedLedgerName()),
+                        Ledger.MANAGED_CURSOR, bytes(SUBSCRIPTION));
+                case COMPACTED_TOPIC -> Map.of(Ledger.APPLICATION, bytes("pulsar"),
+                        "component", bytes("compacted-topic"),
+                        Ledger.COMPACTED_TOPIC, bytes(topicName()));
+                case DATA -> Map.of(Ledger.APPLICATION, bytes("pulsar"),
+                        "component", bytes("managed-ledger"),
+                        Ledger.MANAGED_LEDGER, bytes(managedLedgerName()));
+            };
+        }
+
+        private static byte[] bytes(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class Counters {
+
+        private final LongAdder topics = new LongAdder();
+        private final LongAdder created = new LongAdder();
+        private final LongAdder orphaned = new LongAdder();
+        private final LongAdder missing = new LongAdder();
+        private final LongAdder expired = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        FixtureSummary toSummary() {
+            return new FixtureSummary(topics.sum(), created.sum(), orphaned.sum(), missing.sum(), expired.sum(), failures.sum());
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package net.tomjo.pulsarbookieutils.service;
+
+/**
+ * Shape of a generated fixture. Ledgers are spread over topics in consecutive runs of {@code ledgersPerTopic} ids, the
+ * ratios are the fractions of ledgers that are orphaned (not referenced by their topic), missing (referenced by their
+ * topic but absent from the metadata store) and expired (created more than {@code expiredAgeMillis} ago).
+ */
+public record FixtureSpec(long firstLedgerId, long ledgerCount, int ledgersPerTopic, int tenants, int namespacesPerTenant, int bookies,
+                          long averageLedgerSize, double orphanedRatio, double missingRatio, double expiredRatio, long expiredAgeMillis,
+                          long seed, long nowMillis) {
+}
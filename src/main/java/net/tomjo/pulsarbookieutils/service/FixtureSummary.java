@@ -0,0 +1,4 @@
+package net.tomjo.pulsarbookieutils.service;
+
+public record FixtureSummary(long topics, long createdLedgers, long orphanedLedgers, long missingLedgers, long expiredLedgers, long failures) {
+}
@@ -0,0 +1,8 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+
+import java.util.Map;
+
+public record LedgerDeletionResult(LedgerIdSet deletedLedgers, Map<Long, Throwable> failedLedgers) {
+}
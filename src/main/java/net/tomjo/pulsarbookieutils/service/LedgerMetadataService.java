@@ -4,6 +4,8 @@ import io.quarkus.logging.Log;
 import io.vavr.concurrent.Future;
 import io.vavr.control.Try;
 import net.tomjo.pulsarbookieutils.Ledger;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import net.tomjo.pulsarbookieutils.LedgerNames;
 import org.apache.bookkeeper.client.BKException;
 import org.apache.bookkeeper.client.api.LedgerMetadata;
 import org.apache.bookkeeper.meta.LedgerManager;
@@ -16,12 +18,20 @@ import org.apache.pulsar.metadata.api.MetadataStore;
 import org.apache.pulsar.metadata.api.Stat;
 
 import java.io.Closeable;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Clock;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.LongStream;
 
 import static java.util.Optional.ofNullable;
 import static org.apache.bookkeeper.client.api.BKException.Code.NoSuchLedgerExistsException;
@@ -29,6 +39,14 @@ import static org.apache.bookkeeper.client.api.BKException.Code.NoSuchLedgerExis
 public class LedgerMetadataService implements Closeable {
 
     public static final long METADATASTORE_TIMEOUT_MS = 30000L;
+    public static final int DEFAULT_SCAN_CONCURRENCY = 100;
+    public static final int DEFAULT_DELETE_CONCURRENCY = 50;
+
+    /**
+     * Age after which the metadata of a closed ledger in a snapshot is read again, bounding how long a replaced bookie
+     * or a recreated ledger node goes unnoticed.
+     */
+    public static final long SNAPSHOT_MAX_AGE_MILLIS = 7 * 86400000L;
 
     public static final String MANAGED_LEDGERS = "/managed-ledgers/";
     public static final String SCHEMAS = "/schemas/";
@@ -37,24 +55,89 @@ public class LedgerMetadataService implements Closeable {
 
     private final LedgerManagerFactory ledgerManagerFactory;
 
+    private final LedgerManager ledgerManager;
+
     private final MetadataStore metadataStore;
 
-    public LedgerMetadataService(LedgerManagerFactory ledgerManagerFactory, MetadataStore metadataStore) {
+    private final int scanConcurrency;
+
+    private final int deleteConcurrency;
+
+    private final Path snapshotFile;
+
+    private final RateGovernor rateGovernor;
+
+    private final MetadataTreeDeleter metadataTreeDeleter;
+
+    private final OperationMetrics operationMetrics;
+
+    private final ConcurrencyLimiter metadataReadLimiter;
+
+    private final Clock clock = Clock.systemUTC();
+
+    private volatile MetadataPathIndex pathIndex;
+
+    public LedgerMetadataService(LedgerManagerFactory ledgerManagerFactory, MetadataStore metadataStore, int scanConcurrency, int deleteConcurrency, Path snapshotFile, RateGovernor rateGovernor, MetadataTreeDeleter metadataTreeDeleter, OperationMetrics operationMetrics) {
         this.ledgerManagerFactory = ledgerManagerFactory;
+        this.ledgerManager = ledgerManagerFactory.newLedgerManager();
         this.metadataStore = metadataStore;
+        this.scanConcurrency = scanConcurrency;
+        this.deleteConcurrency = deleteConcurrency;
+        this.snapshotFile = snapshotFile;
+        this.rateGovernor = rateGovernor;
+        this.metadataTreeDeleter = metadataTreeDeleter;
+        this.operationMetrics = operationMetrics;
+        this.metadataReadLimiter = new ConcurrencyLimiter(scanConcurrency);
     }
 
-    public Future<Void> deleteLedger(long ledgerId) {
-        return Try.withResources(ledgerManagerFactory::newLedgerManager)
-                .of(ledgerManager -> Future.fromCompletableFuture(ledgerManager.removeLedgerMetadata(ledgerId, Version.ANY)))
-                .get();
+    /**
+     * Deletes the metadata of the given ledgers, keeping at most {@code deleteConcurrency} removals in flight.
+     */
+    public Future<LedgerDeletionResult> deleteLedgers(LongStream ledgerIds) {
+        return Future.of(() -> {
+            LedgerIdSet deletedLedgers = new LedgerIdSet();
+            Map<Long, Throwable> failedLedgers = new ConcurrentSkipListMap<>();
+            Semaphore inFlight = new Semaphore(deleteConcurrency);
+            ledgerIds.forEach(ledgerId -> {
+                inFlight.acquireUninterruptibly();
+                write("ledger.removeMetadata", () -> ledgerManager.removeLedgerMetadata(ledgerId, Version.ANY))
+                        .whenComplete((v, e) -> {
+                            if (e == null) {
+                                synchronized (deletedLedgers) {
+                                    deletedLedgers.add(ledgerId);
+                                }
+                            } else {
+                                failedLedgers.put(ledgerId, e);
+                            }
+                            inFlight.release();
+                        });
+            });
+            inFlight.acquireUninterruptibly(deleteConcurrency);
+            return new LedgerDeletionResult(deletedLedgers, failedLedgers);
+        });
     }
 
     public Future<Optional<Stat>> getLedgerStats(String ledgerMetadataPath) {
-        return Future.fromCompletableFuture(metadataStore.get(ledgerMetadataPath))
+        return Future.fromCompletableFuture(read("metadata.get", () -> metadataStore.get(ledgerMetadataPath)))
                 .map(r -> r.map(GetResult::getStat));
     }
 
+    /**
+     * Loads the paths below the managed ledger and schema roots into memory down to the topic level, after which
+     * existence checks of those paths are answered from the index instead of the metadata store. Cursors below the
+     * managed ledgers are not loaded. Paths created or deleted afterward are not seen.
+     */
+    public Future<Void> indexMetadataPaths() {
+        ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter(scanConcurrency);
+        // tenant/namespace/domain/topic below the managed ledgers, tenant/namespace/topic below the schemas
+        Map<String, Integer> roots = Map.of(MANAGED_LEDGERS, 4, SCHEMAS, 3);
+        return Future.fromCompletableFuture(MetadataPathIndex.load(roots, path -> concurrencyLimiter.submit(() -> read("metadata.getChildren", () -> metadataStore.getChildren(path))))
+                .thenAccept(index -> {
+                    Log.info("Indexed " + index.size() + " metadata store paths below " + roots.keySet());
+                    this.pathIndex = index;
+                }));
+    }
+
     public Future<Boolean> existsInMetaStore(Ledger ledger) {
         return existsAsManagedLedger(ledger)
                 .zipWith(existsAsCompactedTopic(ledger), Boolean::logicalOr)
@@ -62,97 +145,162 @@ public class LedgerMetadataService implements Closeable {
     }
 
     public Future<Void> deletePathRecursive(String path) {
-        return Future.fromCompletableFuture(metadataStore.deleteRecursive(path));
+        if (metadataTreeDeleter != null) {
+            return Future.fromCompletableFuture(metadataTreeDeleter.deleteRecursive(path).thenApply(deleted -> null));
+        }
+        return Future.fromCompletableFuture(write("metadata.deleteRecursive", () -> metadataStore.deleteRecursive(path)));
+    }
+
+    /**
+     * Data of the node at the path, empty when it doesn't exist. At most {@code scanConcurrency} of these reads are in
+     * flight.
+     */
+    CompletableFuture<Optional<byte[]>> readData(String path) {
+        return metadataReadLimiter.submit(() -> read("metadata.get", () -> metadataStore.get(path)))
+                .thenApply(result -> result.map(GetResult::getValue));
+    }
+
+    /**
+     * Names of the children of the node at the path. At most {@code scanConcurrency} of these reads are in flight.
+     */
+    CompletableFuture<List<String>> readChildren(String path) {
+        return metadataReadLimiter.submit(() -> read("metadata.getChildren", () -> metadataStore.getChildren(path)));
     }
 
     public Future<Boolean> existsPath(String path) {
         return ofNullable(path)
-                .map(managedLedgerName -> metadataStore.exists(path))
-                .map(Future::fromCompletableFuture)
+                .map(this::exists)
                 .orElse(Future.successful(false));
     }
 
     private Future<Boolean> existsAsCompactedTopic(Ledger ledger) {
         return ofNullable(ledger)
-                .flatMap(info -> info.getPulsarMetadata(Ledger.COMPACTED_TOPIC))
-                .map(compactedTopic -> metadataStore.exists(MANAGED_LEDGERS + TopicName.get(compactedTopic).getPersistenceNamingEncoding()))
-                .map(Future::fromCompletableFuture)
+                .flatMap(info -> info.getCompactedTopic())
+                .map(compactedTopic -> exists(MANAGED_LEDGERS + TopicName.get(compactedTopic).getPersistenceNamingEncoding()))
                 .orElse(Future.successful(false));
     }
 
     private Future<Boolean> existsAsSchema(Ledger ledger) {
         return ofNullable(ledger)
-                .flatMap(info -> info.getPulsarMetadata(Ledger.SCHEMA_ID))
-                .map(schemaId -> metadataStore.exists(SCHEMAS + schemaId))
-                .map(Future::fromCompletableFuture)
+                .flatMap(info -> info.getSchemaId())
+                .map(schemaId -> exists(SCHEMAS + schemaId))
                 .orElse(Future.successful(false));
     }
 
     private Future<Boolean> existsAsManagedLedger(Ledger ledger) {
         return ofNullable(ledger)
-                .flatMap(info -> info.getPulsarMetadata(Ledger.MANAGED_LEDGER))
-                .map(managedLedgerName -> metadataStore.exists(MANAGED_LEDGERS + managedLedgerName))
-                .map(Future::fromCompletableFuture)
+                .flatMap(info -> info.getManagedLedgerName())
+                .map(managedLedgerName -> exists(MANAGED_LEDGERS + managedLedgerName))
                 .orElse(Future.successful(false));
     }
 
-    public Try<Future<Map<Long, LedgerMetadata>>> listLedgerMetadata() {
-        return Try.withResources(ledgerManagerFactory::newLedgerManager)
-                .of(this::listLedgerMetadata);
+    private Future<Boolean> exists(String path) {
+        MetadataPathIndex index = pathIndex;
+        if (index != null && index.covers(path)) {
+            return Future.successful(index.contains(path));
+        }
+        return Future.fromCompletableFuture(read("metadata.exists", () -> metadataStore.exists(path)));
     }
 
-    private Future<Map<Long, LedgerMetadata>> listLedgerMetadata(LedgerManager ledgerManager) {
-        ConcurrentHashMap<Long, LedgerMetadata> ledgerMeta = new ConcurrentHashMap<>();
-        CompletableFuture<Map<Long, LedgerMetadata>> future = new CompletableFuture<>();
-        ledgerManager.asyncProcessLedgers((ledgerId, cb) -> readLedgerMetadataIgnoringExceptionsProcessor(ledgerManager, ledgerId, ledgerMeta), (rc, s, obj) -> future.complete(ledgerMeta), null, 0, -1);
-        return Future.fromCompletableFuture(future);
+    public Try<Future<Void>> scanLedgers(Consumer<Ledger> consumer) {
+        if (snapshotFile != null) {
+            return Try.success(Future.of(() -> scanLedgersUsingSnapshot(consumer)));
+        }
+        LedgerNames names = new LedgerNames();
+        return Try.of(() -> scanLedgerMetadata((ledgerId, metadata) -> consumer.accept(new Ledger(metadata, names)), LedgerMetadataService::logLedgerMetadataReadFailure));
     }
 
-    public Try<Future<Map<Long, LedgerMetadata>>> listLedgerMetadataIncludingMissing() {
-        return Try.withResources(ledgerManagerFactory::newLedgerManager)
-                .of(this::listLedgerMetadataIncludingMissing);
+    private Void scanLedgersUsingSnapshot(Consumer<Ledger> consumer) throws IOException {
+        LedgerIdSet ledgerIds = listLedgers().get().get();
+        String clusterId = readData(Ledger.LEDGER_ROOT + "/INSTANCEID").join()
+                .map(instanceId -> new String(instanceId, StandardCharsets.UTF_8))
+                .orElse("");
+        LedgerMetadataSnapshot snapshot;
+        try {
+            snapshot = LedgerMetadataSnapshot.open(snapshotFile, clusterId);
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Not using ledger metadata snapshot " + snapshotFile + ", scanning all ledgers: " + e.getMessage());
+            snapshot = LedgerMetadataSnapshot.empty();
+        }
+        LedgerIdSet staleLedgerIds = new LedgerIdSet();
+        long nowMillis = clock.millis();
+        snapshot.forEachReusable(ledgerIds, nowMillis - SNAPSHOT_MAX_AGE_MILLIS, consumer, staleLedgerIds::add);
+        Log.info("Reusing " + (ledgerIds.size() - staleLedgerIds.size()) + " ledgers from snapshot " + snapshotFile + ", refreshing " + staleLedgerIds.size() + " ledgers");
+
+        LedgerNames names = new LedgerNames();
+        try (LedgerMetadataSnapshot.Update update = snapshot.update(snapshotFile, clusterId, staleLedgerIds, nowMillis)) {
+            PipelinedLedgerMetadataProcessor processor = new PipelinedLedgerMetadataProcessor(this::readLedgerMetadata, scanConcurrency, (ledgerId, metadata) -> {
+                Ledger ledger = new Ledger(metadata, names);
+                update.add(ledger);
+                consumer.accept(ledger);
+            }, LedgerMetadataService::logLedgerMetadataReadFailure);
+            processor.processAll(staleLedgerIds.iterator()).join();
+            update.commit(ledgerIds);
+        }
+        return null;
     }
 
-    private Future<Map<Long, LedgerMetadata>> listLedgerMetadataIncludingMissing(LedgerManager ledgerManager) {
-        ConcurrentHashMap<Long, LedgerMetadata> ledgerMeta = new ConcurrentHashMap<>();
-        CompletableFuture<Map<Long, LedgerMetadata>> future = new CompletableFuture<>();
-        ledgerManager.asyncProcessLedgers((ledgerId, cb) -> readLedgerMetadataMappingExceptionsToNullProcessor(ledgerManager, ledgerId, ledgerMeta), (rc, s, obj) -> future.complete(ledgerMeta), null, 0, -1);
-        return Future.fromCompletableFuture(future);
+    public Try<Future<LedgerIdSet>> listLedgers() {
+        return Try.of(this::listLedgerIds);
     }
 
-    public Try<Future<List<Long>>> listLedgers() {
-        return Try.withResources(ledgerManagerFactory::newLedgerManager)
-                .of(this::listLedgers);
+    private Future<LedgerIdSet> listLedgerIds() {
+        LedgerIdSet ledgers = new LedgerIdSet();
+        CompletableFuture<LedgerIdSet> future = new CompletableFuture<>();
+        ledgerManager.asyncProcessLedgers((ledgerId, cb) -> {
+            synchronized (ledgers) {
+                ledgers.add(ledgerId);
+            }
+            cb.processResult(BKException.Code.OK, null, null);
+        }, (rc, s, obj) -> completeScan(future, rc, ledgers), null, BKException.Code.OK, BKException.Code.ReadException);
+        return Future.fromCompletableFuture(future);
     }
 
-    private Future<List<Long>> listLedgers(LedgerManager ledgerManager) {
-        List<Long> ledgers = new ArrayList<>();
-        CompletableFuture<List<Long>> future = new CompletableFuture<>();
-        ledgerManager.asyncProcessLedgers((ledgerId, cb) -> ledgers.add(ledgerId), (rc, s, obj) -> future.complete(ledgers), null, 0, -1);
+    private Future<Void> scanLedgerMetadata(BiConsumer<Long, LedgerMetadata> onSuccess, BiConsumer<Long, Throwable> onFailure) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        PipelinedLedgerMetadataProcessor processor = new PipelinedLedgerMetadataProcessor(this::readLedgerMetadata, scanConcurrency, onSuccess, onFailure);
+        ledgerManager.asyncProcessLedgers(processor, (rc, s, obj) -> completeScan(future, rc, null), null, BKException.Code.OK, BKException.Code.ReadException);
         return Future.fromCompletableFuture(future);
     }
 
-    private void readLedgerMetadataMappingExceptionsToNullProcessor(LedgerManager ledgerManager, Long ledgerId, Map<Long, LedgerMetadata> ledgerMetadata) {
-        Future.fromCompletableFuture(ledgerManager.readLedgerMetadata(ledgerId))
-                .map(Versioned::getValue)
-                .recover(e -> null)
-                .forEach(metadata -> ledgerMetadata.put(ledgerId, metadata));
+    private CompletableFuture<Versioned<LedgerMetadata>> readLedgerMetadata(long ledgerId) {
+        return read("ledger.readMetadata", () -> ledgerManager.readLedgerMetadata(ledgerId));
+    }
+
+    private <T> CompletableFuture<T> read(String operation, Supplier<CompletableFuture<T>> call) {
+        return rateGovernor.throttle(RateGovernor.Operation.METADATA_READ, () -> operationMetrics.record(operation, call));
+    }
+
+    private <T> CompletableFuture<T> write(String operation, Supplier<CompletableFuture<T>> call) {
+        return rateGovernor.throttle(RateGovernor.Operation.METADATA_WRITE, () -> operationMetrics.record(operation, call));
+    }
+
+    private static <T> void completeScan(CompletableFuture<T> future, int rc, T result) {
+        if (rc == BKException.Code.OK) {
+            future.complete(result);
+        } else {
+            future.completeExceptionally(BKException.create(rc));
+        }
+    }
+
+    private static void logLedgerMetadataReadFailure(long ledgerId, Throwable e) {
+        if (BKException.getExceptionCode(e) == NoSuchLedgerExistsException) {
+            Log.warn("Ledger " + ledgerId + " doesn't exist.");
+        } else {
+            Log.error("Could not read ledger metadata for ledger " + ledgerId + ": " + e.getMessage(), e);
+        }
     }
 
-    private void readLedgerMetadataIgnoringExceptionsProcessor(LedgerManager ledgerManager, Long ledgerId, Map<Long, LedgerMetadata> ledgerMetadata) {
-        Future.fromCompletableFuture(ledgerManager.readLedgerMetadata(ledgerId))
-                .onSuccess(versionedLegerMetadata -> ledgerMetadata.put(ledgerId, versionedLegerMetadata.getValue()))
-                .onFailure(e -> {
-                    if (BKException.getExceptionCode(e) == NoSuchLedgerExistsException) {
-                        Log.warn(String.format("Ledger " + ledgerId + " doesn't exist."));
-                    } else {
-                        Log.error("Could not read ledger metadata for ledger " + ledgerId + ": " + e.getMessage(), e);
-                    }
-                }).get();
+    /**
+     * Drops the metadata path index, so the service can be reused for a new run against a changed cluster.
+     */
+    public void invalidateCaches() {
+        this.pathIndex = null;
     }
 
     @Override
     public void close() {
+        Try.run(this.ledgerManager::close);
         Try.run(this.metadataStore::close);
         Try.run(this.ledgerManagerFactory::close);
     }
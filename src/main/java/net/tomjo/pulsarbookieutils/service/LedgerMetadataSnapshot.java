@@ -0,0 +1,325 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import net.tomjo.pulsarbookieutils.Ledger;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Memory-mapped snapshot of scanned ledgers, sorted by ledger id.
+ * <p>
+ * Layout: a header (magic, version, record count, string table offset, cluster id), the ledger records and a string
+ * table holding the cluster id and every distinct managed ledger, compacted topic, schema and bookie name once,
+ * referenced by index from the header and the records. Each record holds the time its metadata was read.
+ * <p>
+ * Autorecovery still replaces bookies in the ensembles of closed ledgers, and a ledger node can be deleted and
+ * recreated, so a closed ledger is only reused until its record reaches a maximum age and is read again. Commands that
+ * depend on the bookies of a ledger don't use snapshots.
+ */
+class LedgerMetadataSnapshot {
+
+    private static final int MAGIC = 0x50424C53;
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 28;
+
+    private static final int PULSAR_LEDGER = 1;
+    private static final int CLOSED = 1 << 1;
+
+    private static final int BOOKIE_COUNT_OFFSET = 51;
+    private static final int FIXED_RECORD_SIZE = BOOKIE_COUNT_OFFSET + Short.BYTES;
+
+    private final MappedByteBuffer buffer;
+    private final long recordCount;
+    private final String[] strings;
+
+    private LedgerMetadataSnapshot(MappedByteBuffer buffer, long recordCount, String[] strings) {
+        this.buffer = buffer;
+        this.recordCount = recordCount;
+        this.strings = strings;
+    }
+
+    /**
+     * A snapshot without any ledgers, so every ledger is reported as stale.
+     */
+    static LedgerMetadataSnapshot empty() {
+        return new LedgerMetadataSnapshot(null, 0, new String[0]);
+    }
+
+    /**
+     * Opens the snapshot in the file, failing when it can't be used for the cluster with the given id. A missing file is
+     * an empty snapshot.
+     */
+    static LedgerMetadataSnapshot open(Path file, String clusterId) throws IOException {
+        if (!Files.exists(file)) {
+            return empty();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Ledger metadata snapshot " + file + " is too large to map");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unsupported ledger metadata snapshot " + file);
+            }
+            long recordCount = buffer.getLong();
+            int stringTableOffset = (int) buffer.getLong();
+            int clusterIdRef = buffer.getInt();
+            ByteBuffer stringTable = buffer.duplicate().position(stringTableOffset);
+            String[] strings = new String[stringTable.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[stringTable.getInt()];
+                stringTable.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            if (!clusterId.equals(strings[clusterIdRef])) {
+                throw new IOException("Ledger metadata snapshot " + file + " was made for cluster " + strings[clusterIdRef] + ", not " + clusterId);
+            }
+            return new LedgerMetadataSnapshot(buffer, recordCount, strings);
+        }
+    }
+
+    long size() {
+        return recordCount;
+    }
+
+    /**
+     * Merges the snapshot with the ledgers currently in the metadata store. Closed ledgers can no longer change length
+     * and are served from the snapshot as long as their metadata was read at or after {@code readSinceMillis}. New,
+     * still open and outdated ledgers are reported as stale. The bookies of served ledgers are the ones at the time
+     * their metadata was read.
+     */
+    void forEachReusable(LedgerIdSet ledgerIds, long readSinceMillis, Consumer<Ledger> reusable, LongConsumer stale) {
+        Cursor cursor = new Cursor();
+        ledgerIds.forEach(ledgerId -> {
+            Ledger ledger = cursor.seek(ledgerId);
+            if (ledger != null && ledger.isClosed() && cursor.readMillis >= readSinceMillis) {
+                reusable.accept(ledger);
+            } else {
+                stale.accept(ledgerId);
+            }
+        });
+    }
+
+    /**
+     * Starts writing a new snapshot to the file, made of the stale ledgers added to the update and the records of this
+     * snapshot for all other ledgers.
+     */
+    Update update(Path file, String clusterId, LedgerIdSet staleLedgerIds, long readMillis) throws IOException {
+        return new Update(file, clusterId, staleLedgerIds, readMillis);
+    }
+
+    /**
+     * New snapshot being written. Refreshed ledgers are appended to a side file in the order they arrive, keeping only
+     * their offset in memory, and are merged with the records of the current snapshot on commit.
+     * <p>
+     * Ledgers can be added concurrently.
+     */
+    class Update implements Closeable {
+
+        private final Path file;
+        private final Path refreshedFile;
+        private final long readMillis;
+        private final long[] staleLedgerIds;
+        private final int[] refreshedOffsets;
+        private final Map<String, Integer> stringIndex = new HashMap<>();
+        private final int clusterIdRef;
+        private final DataOutputStream refreshed;
+        private IOException failure;
+
+        private Update(Path file, String clusterId, LedgerIdSet staleLedgerIds, long readMillis) throws IOException {
+            this.file = file;
+            this.refreshedFile = file.resolveSibling(file.getFileName() + ".refreshed");
+            this.readMillis = readMillis;
+            this.staleLedgerIds = staleLedgerIds.stream().toArray();
+            this.refreshedOffsets = new int[this.staleLedgerIds.length];
+            Arrays.fill(refreshedOffsets, -1);
+            this.clusterIdRef = stringRef(clusterId, stringIndex);
+            this.refreshed = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(refreshedFile)));
+        }
+
+        /**
+         * Adds the refreshed metadata of a stale ledger. A failure to write it fails the commit.
+         */
+        synchronized void add(Ledger ledger) {
+            int index = Arrays.binarySearch(staleLedgerIds, ledger.getLedgerId());
+            if (index < 0) {
+                throw new IllegalArgumentException("Ledger " + ledger.getLedgerId() + " is not stale");
+            }
+            if (failure != null) {
+                return;
+            }
+            try {
+                int offset = refreshed.size();
+                if (offset == Integer.MAX_VALUE) {
+                    throw new IOException("Refreshed ledgers don't fit in a snapshot");
+                }
+                writeRecord(refreshed, ledger, readMillis, stringIndex);
+                refreshedOffsets[index] = offset;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Writes the new snapshot of the given ledgers, taking refreshed ledgers over the ones in the current snapshot,
+         * and replaces the file with it.
+         */
+        synchronized void commit(LedgerIdSet ledgerIds) throws IOException {
+            refreshed.close();
+            if (failure != null) {
+                throw failure;
+            }
+            ByteBuffer refreshedRecords;
+            try (FileChannel channel = FileChannel.open(refreshedFile, StandardOpenOption.READ)) {
+                refreshedRecords = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+            Cursor cursor = new Cursor();
+            long recordCount = 0;
+            long stringTableOffset;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                out.write(new byte[HEADER_SIZE]);
+                int staleIndex = 0;
+                PrimitiveIterator.OfLong iterator = ledgerIds.iterator();
+                while (iterator.hasNext()) {
+                    long ledgerId = iterator.nextLong();
+                    int refreshedOffset = -1;
+                    if (staleIndex < staleLedgerIds.length && staleLedgerIds[staleIndex] == ledgerId) {
+                        refreshedOffset = refreshedOffsets[staleIndex++];
+                    }
+                    if (refreshedOffset >= 0) {
+                        // Refreshed records already reference the string table of the new snapshot
+                        int length = FIXED_RECORD_SIZE + Integer.BYTES * Short.toUnsignedInt(refreshedRecords.getShort(refreshedOffset + BOOKIE_COUNT_OFFSET));
+                        byte[] record = new byte[length];
+                        refreshedRecords.get(refreshedOffset, record);
+                        out.write(record);
+                        recordCount++;
+                    } else {
+                        Ledger ledger = cursor.seek(ledgerId);
+                        if (ledger != null) {
+                            writeRecord(out, ledger, cursor.readMillis, stringIndex);
+                            recordCount++;
+                        }
+                    }
+                }
+                stringTableOffset = out.size();
+                if (stringTableOffset == Integer.MAX_VALUE) {
+                    throw new IOException("Ledger metadata snapshot " + file + " is too large");
+                }
+                String[] stringTable = new String[stringIndex.size()];
+                stringIndex.forEach((string, index) -> stringTable[index] = string);
+                out.writeInt(stringTable.length);
+                for (String string : stringTable) {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                        .putInt(MAGIC)
+                        .putInt(VERSION)
+                        .putLong(recordCount)
+                        .putLong(stringTableOffset)
+                        .putInt(clusterIdRef)
+                        .flip();
+                channel.write(header, 0);
+                channel.force(true);
+            }
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                refreshed.close();
+            } finally {
+                Files.deleteIfExists(refreshedFile);
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, Ledger ledger, long readMillis, Map<String, Integer> stringIndex) throws IOException {
+        out.writeLong(ledger.getLedgerId());
+        out.writeLong(ledger.getCtime());
+        out.writeLong(ledger.getLength());
+        out.writeLong(readMillis);
+        out.writeByte((ledger.isPulsarLedger() ? PULSAR_LEDGER : 0) | (ledger.isClosed() ? CLOSED : 0));
+        out.writeShort(ledger.getEnsembleSize());
+        out.writeShort(ledger.getWriteQuorumSize());
+        out.writeShort(ledger.getAckQuorumSize());
+        out.writeInt(stringRef(ledger.getManagedLedgerName().orElse(null), stringIndex));
+        out.writeInt(stringRef(ledger.getCompactedTopic().orElse(null), stringIndex));
+        out.writeInt(stringRef(ledger.getSchemaId().orElse(null), stringIndex));
+        List<String> bookies = ledger.getBookies();
+        out.writeShort(bookies.size());
+        for (String bookie : bookies) {
+            out.writeInt(stringRef(bookie, stringIndex));
+        }
+    }
+
+    private static int stringRef(String string, Map<String, Integer> stringIndex) {
+        return string == null ? -1 : stringIndex.computeIfAbsent(string, s -> stringIndex.size());
+    }
+
+    private String string(int ref) {
+        return ref < 0 ? null : strings[ref];
+    }
+
+    /**
+     * Forward-only reader over the records, which are sorted by ledger id.
+     */
+    private class Cursor {
+
+        private final ByteBuffer records = buffer == null ? null : buffer.duplicate().position(HEADER_SIZE);
+        private long remaining = recordCount;
+        private Ledger current;
+        private long readMillis;
+
+        Ledger seek(long ledgerId) {
+            while ((current == null || current.getLedgerId() < ledgerId) && remaining > 0) {
+                current = readRecord();
+                remaining--;
+            }
+            return current != null && current.getLedgerId() == ledgerId ? current : null;
+        }
+
+        private Ledger readRecord() {
+            long ledgerId = records.getLong();
+            long ctime = records.getLong();
+            long length = records.getLong();
+            readMillis = records.getLong();
+            int flags = Byte.toUnsignedInt(records.get());
+            int ensembleSize = Short.toUnsignedInt(records.getShort());
+            int writeQuorumSize = Short.toUnsignedInt(records.getShort());
+            int ackQuorumSize = Short.toUnsignedInt(records.getShort());
+            String managedLedgerName = string(records.getInt());
+            String compactedTopic = string(records.getInt());
+            String schemaId = string(records.getInt());
+            String[] bookies = new String[Short.toUnsignedInt(records.getShort())];
+            for (int i = 0; i < bookies.length; i++) {
+                bookies[i] = string(records.getInt());
+            }
+            return new Ledger(ledgerId, ctime, length, (flags & CLOSED) != 0, ensembleSize, writeQuorumSize, ackQuorumSize, bookies,
+                    (flags & PULSAR_LEDGER) != 0, managedLedgerName, compactedTopic, schemaId);
+        }
+    }
+}
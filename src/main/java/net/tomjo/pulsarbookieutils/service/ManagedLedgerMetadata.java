@@ -0,0 +1,77 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.CompressionType;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfoMetadata;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfoMetadata;
+import org.apache.pulsar.common.compression.CompressionCodecProvider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the ManagedLedgerInfo and ManagedCursorInfo nodes below the managed ledger root, the way the broker's MetaStoreImpl
+ * does. Brokers configured with {@code managedLedgerInfoCompressionType} or {@code managedCursorInfoCompressionType}
+ * store these compressed behind a header: a two byte magic number, the four byte length of a ManagedLedgerInfoMetadata
+ * or ManagedCursorInfoMetadata holding the compression type and uncompressed size, then the compressed protobuf. The
+ * magic numbers can't start a plain protobuf, their first byte has the invalid wire type 7.
+ */
+final class ManagedLedgerMetadata {
+
+    static final short MAGIC_MANAGED_LEDGER_INFO_METADATA = 0x4778;
+    static final short MAGIC_MANAGED_CURSOR_INFO_METADATA = 0x4779;
+
+    private static final int HEADER_SIZE = Short.BYTES + Integer.BYTES;
+
+    private ManagedLedgerMetadata() {
+    }
+
+    static ManagedLedgerInfo parseManagedLedgerInfo(byte[] data) throws IOException {
+        if (!hasMagic(data, MAGIC_MANAGED_LEDGER_INFO_METADATA)) {
+            return ManagedLedgerInfo.parseFrom(data);
+        }
+        ManagedLedgerInfoMetadata metadata = ManagedLedgerInfoMetadata.parseFrom(metadata(data));
+        return ManagedLedgerInfo.parseFrom(decompress(data, metadata.getCompressionType(), metadata.getUncompressedSize()));
+    }
+
+    static ManagedCursorInfo parseManagedCursorInfo(byte[] data) throws IOException {
+        if (!hasMagic(data, MAGIC_MANAGED_CURSOR_INFO_METADATA)) {
+            return ManagedCursorInfo.parseFrom(data);
+        }
+        ManagedCursorInfoMetadata metadata = ManagedCursorInfoMetadata.parseFrom(metadata(data));
+        return ManagedCursorInfo.parseFrom(decompress(data, metadata.getCompressionType(), metadata.getUncompressedSize()));
+    }
+
+    private static boolean hasMagic(byte[] data, short magic) {
+        return data.length >= Short.BYTES && ByteBuffer.wrap(data).getShort() == magic;
+    }
+
+    private static ByteBuffer metadata(byte[] data) throws IOException {
+        int metadataSize = data.length >= HEADER_SIZE ? ByteBuffer.wrap(data).getInt(Short.BYTES) : -1;
+        if (metadataSize < 0 || metadataSize > data.length - HEADER_SIZE) {
+            throw new IOException("Truncated compressed managed ledger metadata header of " + data.length + " bytes");
+        }
+        return ByteBuffer.wrap(data, HEADER_SIZE, metadataSize);
+    }
+
+    private static byte[] decompress(byte[] data, CompressionType compressionType, int uncompressedSize) throws IOException {
+        int payloadOffset = HEADER_SIZE + ByteBuffer.wrap(data).getInt(Short.BYTES);
+        ByteBuf compressed = Unpooled.wrappedBuffer(data, payloadOffset, data.length - payloadOffset);
+        try {
+            ByteBuf decompressed = CompressionCodecProvider.getCompressionCodec(org.apache.pulsar.common.api.proto.CompressionType.valueOf(compressionType.name()))
+                    .decode(compressed, uncompressedSize);
+            try {
+                byte[] bytes = new byte[decompressed.readableBytes()];
+                decompressed.readBytes(bytes);
+                return bytes;
+            } finally {
+                decompressed.release();
+            }
+        } finally {
+            compressed.release();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Trie of the metadata store paths below a set of roots, each indexed down to its own depth, answering existence checks
+ * for those paths without a round trip to the metadata store. Paths outside the indexed roots or deeper than their
+ * depth are not covered and should be checked against the store.
+ */
+class MetadataPathIndex {
+
+    private final Node root = new Node();
+    private final AtomicLong size = new AtomicLong();
+
+    private MetadataPathIndex() {
+    }
+
+    /**
+     * Walks the trees below the given roots down to their depth, listing the children of every node above that depth
+     * using {@code childrenReader}. Children of a node are listed concurrently, so the reader should limit the amount of
+     * requests in flight.
+     */
+    static CompletableFuture<MetadataPathIndex> load(Map<String, Integer> rootDepths, Function<String, CompletableFuture<List<String>>> childrenReader) {
+        MetadataPathIndex index = new MetadataPathIndex();
+        return CompletableFuture.allOf(rootDepths.entrySet().stream()
+                        .map(root -> {
+                            String path = root.getKey().replaceAll("/+$", "");
+                            Node node = index.add(path);
+                            node.indexedDepth = root.getValue();
+                            return index.walk(path, node, root.getValue(), childrenReader);
+                        })
+                        .toArray(CompletableFuture[]::new))
+                .thenApply(v -> index);
+    }
+
+    private CompletableFuture<Void> walk(String path, Node node, int remainingDepth, Function<String, CompletableFuture<List<String>>> childrenReader) {
+        if (remainingDepth == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return childrenReader.apply(path)
+                .thenCompose(children -> CompletableFuture.allOf(children.stream()
+                        .map(child -> walk(path + "/" + child, node.child(child), remainingDepth - 1, childrenReader))
+                        .toArray(CompletableFuture[]::new)));
+    }
+
+    private Node add(String path) {
+        Node node = root;
+        for (String segment : segments(path)) {
+            node = node.child(segment);
+        }
+        return node;
+    }
+
+    private static Node lookup(Node node, String segment) {
+        return node.children.get(segment);
+    }
+
+    boolean covers(String path) {
+        Node node = root;
+        String[] segments = segments(path);
+        for (int i = 0; i < segments.length; i++) {
+            node = lookup(node, segments[i]);
+            if (node == null) {
+                return false;
+            } else if (node.indexedDepth >= 0) {
+                return segments.length - 1 - i <= node.indexedDepth;
+            }
+        }
+        return false;
+    }
+
+    boolean contains(String path) {
+        Node node = root;
+        for (String segment : segments(path)) {
+            node = lookup(node, segment);
+            if (node == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long size() {
+        return size.get();
+    }
+
+    private static String[] segments(String path) {
+        return path.replaceAll("^/+|/+$", "").split("/+");
+    }
+
+    private class Node {
+
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+        private volatile int indexedDepth = -1;
+
+        Node child(String segment) {
+            return children.computeIfAbsent(segment, s -> {
+                size.incrementAndGet();
+                return new Node();
+            });
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import io.quarkus.logging.Log;
+import io.vavr.concurrent.Future;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.LongProperty;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo;
+import org.apache.pulsar.common.naming.TopicName;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static net.tomjo.pulsarbookieutils.service.LedgerMetadataService.MANAGED_LEDGERS;
+import static net.tomjo.pulsarbookieutils.service.LedgerMetadataService.SCHEMAS;
+
+/**
+ * Ledgers used by topics according to the ManagedLedgerInfo, ManagedCursorInfo and SchemaLocator nodes in the metadata
+ * store, so topics don't have to be loaded on a broker. The node of a topic, its cursors and its schema are read
+ * concurrently. Managed ledger and cursor nodes compressed by the broker are decompressed.
+ * <p>
+ * The compacted topic ledger is only stored in the metadata store while the compaction cursor has no cursor ledger,
+ * otherwise it's the latest mark delete property in the cursor ledger. Topics in that state are resolved through the
+ * fallback instead.
+ */
+public class MetadataStoreUsedLedgersProvider implements UsedLedgersProvider {
+
+    static final String COMPACTION_SUBSCRIPTION = "__compaction";
+    static final String COMPACTED_TOPIC_LEDGER_PROPERTY = "CompactedTopicLedger";
+
+    private final LedgerMetadataService ledgerMetadataService;
+
+    private final UsedLedgersProvider fallback;
+
+    private final CoalescingCache<String, LedgerIdSet> ledgersUsedByTopicCache;
+
+    public MetadataStoreUsedLedgersProvider(LedgerMetadataService ledgerMetadataService, UsedLedgersProvider fallback) {
+        this(ledgerMetadataService, fallback, PulsarResourcesService.DEFAULT_TOPIC_CACHE_SIZE);
+    }
+
+    public MetadataStoreUsedLedgersProvider(LedgerMetadataService ledgerMetadataService, UsedLedgersProvider fallback, int topicCacheSize) {
+        this.ledgerMetadataService = ledgerMetadataService;
+        this.fallback = fallback;
+        this.ledgersUsedByTopicCache = new CoalescingCache<>(topicCacheSize, UsedLedgersProvider::isTopicNotFound);
+    }
+
+    @Override
+    public Future<LedgerIdSet> getLedgersUsedByTopic(String topic) {
+        return Future.fromCompletableFuture(ledgersUsedByTopicCache.get(topic, this::loadLedgersUsedByTopic));
+    }
+
+    private CompletableFuture<LedgerIdSet> loadLedgersUsedByTopic(String topic) {
+        TopicName topicName = TopicName.get(topic);
+        String managedLedgerPath = MANAGED_LEDGERS + topicName.getPersistenceNamingEncoding();
+        CompletableFuture<LedgerIdSet> schemaLedgers = ledgerMetadataService.readData(SCHEMAS + topicName.getSchemaName())
+                .thenApply(data -> data.map(MetadataStoreUsedLedgersProvider::parseSchemaLedgers).orElseGet(LedgerIdSet::new));
+        CompletableFuture<List<String>> cursors = ledgerMetadataService.readChildren(managedLedgerPath);
+        return ledgerMetadataService.readData(managedLedgerPath)
+                .thenCompose(data -> data
+                        .map(managedLedgerInfo -> cursors.thenCompose(cursorNames -> readCursorLedgers(managedLedgerPath, cursorNames))
+                                .thenApply(cursorLedgers -> cursorLedgers.map(ledgers -> {
+                                    ledgers.addAll(parseManagedLedgers(managedLedgerInfo));
+                                    return ledgers;
+                                })))
+                        .orElseGet(() -> CompletableFuture.failedFuture(new TopicNotFoundException(topic))))
+                .thenCompose(ledgers -> ledgers
+                        .map(CompletableFuture::completedFuture)
+                        .orElseGet(() -> {
+                            Log.debug("Compacted topic ledger of " + topic + " is stored in the compaction cursor ledger, falling back");
+                            return fallback.getLedgersUsedByTopic(topic).map(LedgerIdSet::copy).toCompletableFuture();
+                        }))
+                .thenCombine(schemaLedgers, (ledgers, schema) -> {
+                    ledgers.addAll(schema);
+                    return ledgers;
+                });
+    }
+
+    /**
+     * Cursor and compacted topic ledgers, empty when the compacted topic ledger can't be resolved from the metadata store.
+     */
+    private CompletableFuture<Optional<LedgerIdSet>> readCursorLedgers(String managedLedgerPath, List<String> cursorNames) {
+        List<CompletableFuture<Optional<LedgerIdSet>>> cursors = cursorNames.stream()
+                .map(cursorName -> ledgerMetadataService.readData(managedLedgerPath + "/" + cursorName)
+                        .thenApply(data -> data.map(cursorInfo -> parseCursorLedgers(cursorName, cursorInfo)).orElseGet(() -> Optional.of(new LedgerIdSet()))))
+                .toList();
+        return CompletableFuture.allOf(cursors.toArray(CompletableFuture[]::new))
+                .thenApply(v -> {
+                    LedgerIdSet ledgers = new LedgerIdSet();
+                    for (CompletableFuture<Optional<LedgerIdSet>> cursor : cursors) {
+                        Optional<LedgerIdSet> cursorLedgers = cursor.join();
+                        if (cursorLedgers.isEmpty()) {
+                            return Optional.empty();
+                        }
+                        ledgers.addAll(cursorLedgers.get());
+                    }
+                    return Optional.of(ledgers);
+                });
+    }
+
+    static LedgerIdSet parseManagedLedgers(byte[] managedLedgerInfo) {
+        LedgerIdSet ledgers = new LedgerIdSet();
+        parse(() -> ManagedLedgerMetadata.parseManagedLedgerInfo(managedLedgerInfo)).getLedgerInfoList().stream()
+                .mapToLong(ManagedLedgerInfo.LedgerInfo::getLedgerId)
+                .filter(ledgerId -> ledgerId > -1)
+                .forEach(ledgers::add);
+        return ledgers;
+    }
+
+    /**
+     * Cursor ledger and, for the compaction cursor, compacted topic ledger of the cursor. Empty when the compacted topic
+     * ledger is stored in the cursor ledger.
+     */
+    static Optional<LedgerIdSet> parseCursorLedgers(String cursorName, byte[] cursorInfo) {
+        ManagedCursorInfo cursor = parse(() -> ManagedLedgerMetadata.parseManagedCursorInfo(cursorInfo));
+        LedgerIdSet ledgers = new LedgerIdSet();
+        if (cursor.getCursorsLedgerId() > -1) {
+            ledgers.add(cursor.getCursorsLedgerId());
+        }
+        if (COMPACTION_SUBSCRIPTION.equals(cursorName)) {
+            if (cursor.getCursorsLedgerId() > -1) {
+                return Optional.empty();
+            }
+            cursor.getPropertiesList().stream()
+                    .filter(property -> COMPACTED_TOPIC_LEDGER_PROPERTY.equals(property.getName()))
+                    .mapToLong(LongProperty::getValue)
+                    .filter(ledgerId -> ledgerId > -1)
+                    .forEach(ledgers::add);
+        }
+        return Optional.of(ledgers);
+    }
+
+    private static LedgerIdSet parseSchemaLedgers(byte[] schemaLocator) {
+        return parse(() -> SchemaLocators.getLedgers(schemaLocator));
+    }
+
+    private static <T> T parse(Parser<T> parser) {
+        try {
+            return parser.parse();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private interface Parser<T> {
+        T parse() throws IOException;
+    }
+}
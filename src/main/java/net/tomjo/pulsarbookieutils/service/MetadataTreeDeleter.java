@@ -0,0 +1,185 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import io.quarkus.logging.Log;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes metadata store trees bottom-up. The tree is listed with concurrent getChildren calls, after which every depth
+ * level, starting at the leaves, is deleted in ZooKeeper multi batches staying below {@code jute.maxbuffer}. A batch
+ * that fails is retried one node at a time, with at most {@code concurrency} single deletes in flight across all failed
+ * batches.
+ */
+public class MetadataTreeDeleter {
+
+    private static final int DEFAULT_JUTE_MAX_BUFFER = 0xfffff;
+    private static final int DELETE_OP_OVERHEAD_BYTES = 32;
+    private static final long PROGRESS_INTERVAL = 10000;
+
+    private final ZooKeeper zooKeeper;
+
+    private final ConcurrencyLimiter concurrencyLimiter;
+
+    private final ConcurrencyLimiter singleDeleteLimiter;
+
+    private final RateGovernor rateGovernor;
+
+    private final OperationMetrics operationMetrics;
+
+    private final int maxBatchBytes;
+
+    public MetadataTreeDeleter(ZooKeeper zooKeeper, int concurrency, RateGovernor rateGovernor, OperationMetrics operationMetrics) {
+        // Keep half of the buffer as headroom for the request and response envelopes
+        this(zooKeeper, concurrency, rateGovernor, operationMetrics, Integer.getInteger("jute.maxbuffer", DEFAULT_JUTE_MAX_BUFFER) / 2);
+    }
+
+    public MetadataTreeDeleter(ZooKeeper zooKeeper, int concurrency, RateGovernor rateGovernor, OperationMetrics operationMetrics, int maxBatchBytes) {
+        this.zooKeeper = zooKeeper;
+        this.concurrencyLimiter = new ConcurrencyLimiter(concurrency);
+        // Failed batches keep their permit until their nodes are deleted, so the single deletes get their own limiter
+        this.singleDeleteLimiter = new ConcurrencyLimiter(concurrency);
+        this.rateGovernor = rateGovernor;
+        this.operationMetrics = operationMetrics;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Deletes the path and everything below it, completing with the amount of deleted nodes.
+     */
+    public CompletableFuture<Long> deleteRecursive(String path) {
+        Map<Integer, Queue<String>> pathsByDepth = new ConcurrentHashMap<>();
+        return listTree(path, 0, pathsByDepth)
+                .thenCompose(v -> {
+                    long total = pathsByDepth.values().stream().mapToLong(Queue::size).sum();
+                    Log.info("Deleting " + total + " metadata nodes below " + path);
+                    AtomicLong deleted = new AtomicLong();
+                    CompletableFuture<Void> levels = CompletableFuture.completedFuture(null);
+                    for (int depth : pathsByDepth.keySet().stream().sorted(Comparator.reverseOrder()).toList()) {
+                        List<String> level = List.copyOf(pathsByDepth.get(depth));
+                        levels = levels.thenCompose(x -> deleteLevel(path, level, deleted, total));
+                    }
+                    return levels.thenApply(x -> deleted.get());
+                });
+    }
+
+    private CompletableFuture<Void> listTree(String path, int depth, Map<Integer, Queue<String>> pathsByDepth) {
+        pathsByDepth.computeIfAbsent(depth, d -> new ConcurrentLinkedQueue<>()).add(path);
+        return concurrencyLimiter.submit(() -> rateGovernor.throttle(RateGovernor.Operation.METADATA_READ, () -> operationMetrics.record("zk.getChildren", () -> getChildren(path))))
+                .thenCompose(children -> CompletableFuture.allOf(children.stream()
+                        .map(child -> listTree(childPath(path, child), depth + 1, pathsByDepth))
+                        .toArray(CompletableFuture[]::new)));
+    }
+
+    private CompletableFuture<Void> deleteLevel(String root, List<String> level, AtomicLong deleted, long total) {
+        return CompletableFuture.allOf(toBatches(level).stream()
+                .map(batch -> concurrencyLimiter.submit(() -> rateGovernor.throttle(RateGovernor.Operation.METADATA_WRITE, () -> deleteBatch(batch)))
+                        .thenAccept(count -> reportProgress(root, deleted, count, total)))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    private List<List<String>> toBatches(List<String> paths) {
+        List<List<String>> batches = new ArrayList<>();
+        List<String> batch = new ArrayList<>();
+        int batchBytes = 0;
+        for (String path : paths) {
+            int pathBytes = path.getBytes(StandardCharsets.UTF_8).length + DELETE_OP_OVERHEAD_BYTES;
+            if (!batch.isEmpty() && batchBytes + pathBytes > maxBatchBytes) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+            batch.add(path);
+            batchBytes += pathBytes;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private CompletableFuture<Integer> deleteBatch(List<String> batch) {
+        if (batch.size() == 1) {
+            return operationMetrics.record("zk.delete", () -> delete(batch.get(0))).thenApply(v -> 1);
+        }
+        return operationMetrics.record("zk.multi", () -> multiDelete(batch))
+                .thenApply(v -> batch.size())
+                .exceptionallyCompose(e -> {
+                    Log.warn("Could not delete batch of " + batch.size() + " metadata nodes (" + e.getMessage() + "), deleting them one by one");
+                    return deleteSingles(batch);
+                });
+    }
+
+    private CompletableFuture<Void> multiDelete(List<String> batch) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        List<Op> ops = batch.stream()
+                .map(path -> Op.delete(path, -1))
+                .toList();
+        zooKeeper.multi(ops, (rc, p, ctx, opResults) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc)));
+            }
+        }, null);
+        return future;
+    }
+
+    private CompletableFuture<Integer> deleteSingles(List<String> paths) {
+        List<CompletableFuture<Void>> deletions = paths.stream()
+                .map(path -> singleDeleteLimiter.submit(() -> rateGovernor.throttle(RateGovernor.Operation.METADATA_WRITE, () -> operationMetrics.record("zk.delete", () -> delete(path)))))
+                .toList();
+        return CompletableFuture.allOf(deletions.toArray(CompletableFuture[]::new))
+                .thenApply(v -> paths.size());
+    }
+
+    private CompletableFuture<List<String>> getChildren(String path) {
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        zooKeeper.getChildren(path, false, (AsyncCallback.ChildrenCallback) (rc, p, ctx, children) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                future.complete(children);
+            } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                future.complete(List.of());
+            } else {
+                future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), p));
+            }
+        }, null);
+        return future;
+    }
+
+    private CompletableFuture<Void> delete(String path) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        zooKeeper.delete(path, -1, (rc, p, ctx) -> {
+            if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NONODE.intValue()) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), p));
+            }
+        }, null);
+        return future;
+    }
+
+    private static void reportProgress(String root, AtomicLong deleted, int count, long total) {
+        long before = deleted.getAndAdd(count);
+        long after = before + count;
+        if (before / PROGRESS_INTERVAL != after / PROGRESS_INTERVAL || after == total) {
+            Log.info("Deleted " + after + "/" + total + " metadata nodes below " + root);
+        }
+    }
+
+    private static String childPath(String path, String child) {
+        return path.endsWith("/") ? path + child : path + "/" + child;
+    }
+}
@@ -0,0 +1,207 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import io.quarkus.logging.Log;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters and latency histograms per metadata store and admin operation, and durations of command phases.
+ */
+public class OperationMetrics {
+
+    private static final long[] BUCKET_BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+    private final Map<String, OperationStats> operations = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> phaseDurationsMs = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private volatile OperationMetrics attached;
+
+    public <T> CompletableFuture<T> record(String operation, Supplier<CompletableFuture<T>> call) {
+        OperationStats stats = operations.computeIfAbsent(operation, o -> new OperationStats());
+        OperationMetrics attachedMetrics = attached;
+        OperationStats attachedStats = attachedMetrics == null ? null : attachedMetrics.operations.computeIfAbsent(operation, o -> new OperationStats());
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            record(stats, attachedStats, System.nanoTime() - start, false);
+            throw e;
+        }
+        return future.whenComplete((value, e) -> record(stats, attachedStats, System.nanoTime() - start, e == null));
+    }
+
+    /**
+     * Also records the operations started from now on into the given metrics, until detached. Services shared by the
+     * runs of the serve command record into the server's metrics, the attached metrics are those of the current run.
+     */
+    public void attach(OperationMetrics metrics) {
+        this.attached = metrics == this ? null : metrics;
+    }
+
+    public void detach() {
+        this.attached = null;
+    }
+
+    private static void record(OperationStats stats, OperationStats attachedStats, long durationNanos, boolean success) {
+        stats.record(durationNanos, success);
+        if (attachedStats != null) {
+            attachedStats.record(durationNanos, success);
+        }
+    }
+
+    /**
+     * Runs a phase of a command, recording how long it took. Phases with the same name add up.
+     */
+    public <T> T timePhase(String name, Supplier<T> phase) {
+        try (Phase ignored = new Phase(name, System.nanoTime())) {
+            return phase.get();
+        }
+    }
+
+    public void runPhase(String name, Runnable phase) {
+        try (Phase ignored = new Phase(name, System.nanoTime())) {
+            phase.run();
+        }
+    }
+
+    public void writeJson(Writer writer, String command) throws IOException {
+        writer.write("{\n  \"command\": \"" + command + "\",\n  \"phases\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Long> phase : phaseDurations().entrySet()) {
+            writer.write(separator + "    \"" + phase.getKey() + "\": {\"durationMs\": " + phase.getValue() + "}");
+            separator = ",\n";
+        }
+        writer.write("\n  },\n  \"operations\": {");
+        separator = "\n";
+        for (Map.Entry<String, OperationStats> operation : new TreeMap<>(operations).entrySet()) {
+            OperationStats stats = operation.getValue();
+            writer.write(separator + "    \"" + operation.getKey() + "\": {"
+                    + "\"count\": " + stats.count.sum()
+                    + ", \"failures\": " + stats.failures.sum()
+                    + ", \"totalMs\": " + TimeUnit.NANOSECONDS.toMillis(stats.totalNanos.sum())
+                    + ", \"maxMs\": " + TimeUnit.NANOSECONDS.toMillis(stats.maxNanos.get())
+                    + ", \"p50Ms\": " + stats.percentileUpperBoundMs(0.5)
+                    + ", \"p99Ms\": " + stats.percentileUpperBoundMs(0.99)
+                    + "}");
+            separator = ",\n";
+        }
+        writer.write("\n  }\n}\n");
+    }
+
+    public void writePrometheus(Writer writer, String command) throws IOException {
+        writer.write("# TYPE pulsar_bookie_utils_phase_duration_seconds gauge\n");
+        for (Map.Entry<String, Long> phase : phaseDurations().entrySet()) {
+            writer.write("pulsar_bookie_utils_phase_duration_seconds{command=\"" + command + "\",phase=\"" + phase.getKey() + "\"} " + seconds(phase.getValue()) + "\n");
+        }
+        Map<String, OperationStats> sortedOperations = new TreeMap<>(operations);
+        writer.write("# TYPE pulsar_bookie_utils_operation_failures_total counter\n");
+        for (Map.Entry<String, OperationStats> operation : sortedOperations.entrySet()) {
+            writer.write("pulsar_bookie_utils_operation_failures_total" + labels(command, operation.getKey()) + " " + operation.getValue().failures.sum() + "\n");
+        }
+        writer.write("# TYPE pulsar_bookie_utils_operation_duration_seconds histogram\n");
+        for (Map.Entry<String, OperationStats> operation : sortedOperations.entrySet()) {
+            OperationStats stats = operation.getValue();
+            String labelPrefix = "{command=\"" + command + "\",operation=\"" + operation.getKey() + "\",le=\"";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+                cumulative += stats.buckets.get(i);
+                writer.write("pulsar_bookie_utils_operation_duration_seconds_bucket" + labelPrefix + seconds(BUCKET_BOUNDS_MS[i]) + "\"} " + cumulative + "\n");
+            }
+            writer.write("pulsar_bookie_utils_operation_duration_seconds_bucket" + labelPrefix + "+Inf\"} " + stats.count.sum() + "\n");
+            writer.write("pulsar_bookie_utils_operation_duration_seconds_sum" + labels(command, operation.getKey()) + " " + stats.totalNanos.sum() / 1e9 + "\n");
+            writer.write("pulsar_bookie_utils_operation_duration_seconds_count" + labels(command, operation.getKey()) + " " + stats.count.sum() + "\n");
+        }
+    }
+
+    private Map<String, Long> phaseDurations() {
+        synchronized (phaseDurationsMs) {
+            return new LinkedHashMap<>(phaseDurationsMs);
+        }
+    }
+
+    private static String labels(String command, String operation) {
+        return "{command=\"" + command + "\",operation=\"" + operation + "\"}";
+    }
+
+    private static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000d);
+    }
+
+    private class Phase implements AutoCloseable {
+
+        private final String name;
+        private final long start;
+
+        private Phase(String name, long start) {
+            this.name = name;
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            phaseDurationsMs.merge(name, durationMs, Long::sum);
+            Log.info("Phase " + name + " took " + Duration.ofMillis(durationMs));
+        }
+    }
+
+    private static class OperationStats {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+
+        void record(long durationNanos, boolean success) {
+            count.increment();
+            if (!success) {
+                failures.increment();
+            }
+            totalNanos.add(durationNanos);
+            maxNanos.accumulate(durationNanos);
+            buckets.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMillis(durationNanos)));
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile, or the maximum if it falls in the overflow bucket.
+         */
+        long percentileUpperBoundMs(double percentile) {
+            long total = count.sum();
+            long rank = (long) Math.ceil(percentile * total);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+                cumulative += buckets.get(i);
+                if (cumulative >= rank) {
+                    return BUCKET_BOUNDS_MS[i];
+                }
+            }
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+        }
+
+        private static int bucket(long durationMs) {
+            for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+                if (durationMs <= BUCKET_BOUNDS_MS[i]) {
+                    return i;
+                }
+            }
+            return BUCKET_BOUNDS_MS.length;
+        }
+    }
+}
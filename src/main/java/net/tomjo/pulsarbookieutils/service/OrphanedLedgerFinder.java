@@ -0,0 +1,180 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import io.quarkus.logging.Log;
+import io.vavr.control.Try;
+import net.tomjo.pulsarbookieutils.Ledger;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import org.apache.pulsar.common.naming.TopicName;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Orphan classification of Pulsar ledgers shared by clean-orphan-ledgers and the audit. A ledger is orphaned when it is
+ * old enough and no topic uses it, because its topic doesn't exist anymore, it can't be linked to a topic, its topic
+ * moved on or its managed ledger, compacted topic or schema is missing in the metadata store.
+ */
+public class OrphanedLedgerFinder {
+
+    public static final String TOPIC_NOT_FOUND = "topic not found";
+    public static final String NOT_LINKED_TO_A_TOPIC = "not linked to a topic";
+    public static final String NOT_USED_BY_ITS_TOPIC = "not used by its topic";
+    public static final String MISSING_IN_METADATA_STORE = "missing in metadata store";
+
+    private final UsedLedgersProvider usedLedgersProvider;
+    private final LedgerMetadataService ledgerMetadataService;
+
+    public OrphanedLedgerFinder(UsedLedgersProvider usedLedgersProvider, LedgerMetadataService ledgerMetadataService) {
+        this.usedLedgersProvider = usedLedgersProvider;
+        this.ledgerMetadataService = ledgerMetadataService;
+    }
+
+    /**
+     * Filter keeping the Pulsar ledgers old enough to be orphaned, plus one younger ledger per distinct managed ledger,
+     * compacted topic and schema. The younger ledgers can't be orphaned themselves, a single one still requests the
+     * ledgers used by its topic, so memory scales with the orphan candidates and the topics rather than with every
+     * Pulsar ledger. The returned filter is stateful and safe for concurrent use.
+     */
+    public static Predicate<Ledger> orphanCandidates(Predicate<Ledger> isOldEnough) {
+        Set<List<String>> representedResources = ConcurrentHashMap.newKeySet();
+        return ledger -> isOldEnough.test(ledger) || representedResources.add(resourceKey(ledger));
+    }
+
+    private static List<String> resourceKey(Ledger ledger) {
+        return Arrays.asList(ledger.getManagedLedgerName().orElse(null), ledger.getCompactedTopic().orElse(null), ledger.getSchemaId().orElse(null));
+    }
+
+    /**
+     * Ledgers used by the topic of each Pulsar ledger that exists in the metadata store, empty when the topic can't be
+     * resolved or doesn't exist. Ledgers whose topic's ledgers can't be requested are left out, so they are never
+     * selected as orphans.
+     */
+    public Map<Long, LedgerIdSet> findUsedLedgers(Map<Long, Ledger> pulsarLedgers) {
+        Map<Long, LedgerIdSet> usedLedgers = new HashMap<>();
+        pulsarLedgers.values()
+                .stream()
+                .filter(ledger -> ledger.isSchemaLedger() || ledger.isManagedLedger() || ledger.isCompactedTopic())
+                .filter(l -> ledgerMetadataService.existsInMetaStore(l).get())
+                .forEach(ledger -> findLedgersUsedByTopic(ledger)
+                        .onFailure(ex -> Log.error("Could not read ledgers used by the topic of ledger " + ledger.getLedgerId() + ", not considering it an orphan: " + ex.getMessage(), ex))
+                        .forEach(ledgers -> usedLedgers.put(ledger.getLedgerId(), ledgers)));
+        return usedLedgers;
+    }
+
+    private Try<LedgerIdSet> findLedgersUsedByTopic(Ledger ledger) {
+        return ledger.getLedgerTopic()
+                .map(topicName -> usedLedgersProvider.getLedgersUsedByTopic(topicName.getPartition(0).toString())
+                        .toTry()
+                        .recoverWith(e -> UsedLedgersProvider.isTopicNotFound(e) ? Try.success(new LedgerIdSet()) : Try.failure(e)))
+                .orElseGet(() -> Try.success(new LedgerIdSet()));
+    }
+
+    /**
+     * Orphaned ledgers among the Pulsar ledgers, in order of selection, with the reason they are orphaned. A ledger
+     * orphaned for more than one reason gets the first one of topic not found, not linked to a topic, not used by its
+     * topic and missing in metadata store.
+     */
+    public Map<Ledger, String> findOrphanedLedgers(Map<Long, Ledger> pulsarLedgers, Map<Long, LedgerIdSet> usedLedgers, Predicate<Ledger> isOldEnough) {
+        Map<String, List<Ledger>> orphanCandidates = new LinkedHashMap<>();
+        orphanCandidates.put(TOPIC_NOT_FOUND, findOrphanedLedgersDueToMissingTopic(usedLedgers, pulsarLedgers));
+        orphanCandidates.put(NOT_LINKED_TO_A_TOPIC, findOrphanedLedgersNotLinkedToATopic(pulsarLedgers));
+        orphanCandidates.put(NOT_USED_BY_ITS_TOPIC, findOrphanedLedgersLinkedToATopic(usedLedgers, pulsarLedgers));
+        orphanCandidates.put(MISSING_IN_METADATA_STORE, findOrphanedLedgersDueToMissingInMetadataStore(pulsarLedgers));
+        return selectOrphanedLedgers(getNonOrphanedLedgers(usedLedgers), isOldEnough, orphanCandidates);
+    }
+
+    static Map<Ledger, String> selectOrphanedLedgers(LedgerIdSet nonOrphanedLedgers, Predicate<Ledger> isOldEnough, Map<String, List<Ledger>> orphanCandidates) {
+        Map<Ledger, String> orphanedLedgers = new LinkedHashMap<>();
+        orphanCandidates.forEach((reason, candidates) -> candidates.stream()
+                .filter(l -> !nonOrphanedLedgers.contains(l.getLedgerId()))
+                .filter(isOldEnough)
+                .forEach(ledger -> orphanedLedgers.putIfAbsent(ledger, reason)));
+        return orphanedLedgers;
+    }
+
+    static List<Ledger> findOrphanedLedgersLinkedToATopic(Map<Long, LedgerIdSet> pulsarLedgerAssociatedLedgersMapping, Map<Long, Ledger> pulsarLedgers) {
+        return pulsarLedgerAssociatedLedgersMapping.entrySet().stream()
+                .filter(e -> !e.getValue().contains(e.getKey()))
+                .map(Map.Entry::getKey)
+                .map(pulsarLedgers::get)
+                .toList();
+    }
+
+    private List<Ledger> findOrphanedLedgersDueToMissingTopic(Map<Long, LedgerIdSet> pulsarLedgerAssociatedLedgersMapping, Map<Long, Ledger> pulsarLedgers) {
+        return pulsarLedgerAssociatedLedgersMapping.entrySet()
+                .stream()
+                .filter(e -> e.getValue().isEmpty())
+                .map(Map.Entry::getKey)
+                .map(pulsarLedgers::get)
+                .filter(this::isLedgerTopicNotFound)
+                .filter(this::isOrphanedLedgerWithTopicMissing)
+                .toList();
+    }
+
+    private List<Ledger> findOrphanedLedgersDueToMissingInMetadataStore(Map<Long, Ledger> pulsarLedgers) {
+        return pulsarLedgers.values()
+                .stream()
+                .filter(ledger -> ledger.isSchemaLedger() || ledger.isManagedLedger() || ledger.isCompactedTopic())
+                .filter(ledger -> !ledgerMetadataService.existsInMetaStore(ledger).get())
+                .toList();
+    }
+
+    static List<Ledger> findOrphanedLedgersNotLinkedToATopic(Map<Long, Ledger> pulsarLedgers) {
+        return pulsarLedgers.values()
+                .stream()
+                .filter(ledger -> !(ledger.isSchemaLedger() || ledger.isManagedLedger() || ledger.isCompactedTopic()))
+                .toList();
+    }
+
+    private boolean isLedgerTopicNotFound(Ledger ledger) {
+        return ledger.getLedgerTopic()
+                .map(topic -> usedLedgersProvider.getLedgersUsedByTopic(topic.toString())
+                        .map(l -> false)
+                        .recover(UsedLedgersProvider::isTopicNotFound)
+                        .getOrElse(false))
+                .orElse(false);
+    }
+
+    static LedgerIdSet getNonOrphanedLedgers(Map<Long, LedgerIdSet> pulsarLedgerAssociatedLedgersMapping) {
+        LedgerIdSet nonOrphanedLedgers = new LedgerIdSet();
+        pulsarLedgerAssociatedLedgersMapping.values().forEach(nonOrphanedLedgers::addAll);
+        return nonOrphanedLedgers;
+    }
+
+    private boolean isOrphanedLedgerWithTopicMissing(Ledger ledger) {
+        return !ledger.isSchemaLedger() || isOrphanedSchemaLedgerLoggingException(ledger);
+    }
+
+    private boolean isOrphanedSchemaLedgerLoggingException(Ledger ledger) {
+        return isOrphanedSchemaLedger(ledger)
+                .recover(ex -> {
+                    Log.error("Could not read ledgers used by topic " + ledger.getSchemaLedgerTopic().orElseThrow() + " related to ledger " + ledger.getLedgerId() + ": " + ex.getMessage(), ex);
+                    return false;
+                })
+                .get();
+    }
+
+    private Try<Boolean> isOrphanedSchemaLedger(Ledger ledger) {
+        if (ledger.isSchemaLedger()) {
+            TopicName schemaLedgerTopic = ledger.getSchemaLedgerTopic().orElseThrow();
+            return usedLedgersProvider.getLedgersUsedByTopic(schemaLedgerTopic.getPartition(0).toString())
+                    .toTry()
+                    .map(ledgers -> !ledgers.contains(ledger.getLedgerId()))
+                    .recoverWith(e -> {
+                        if (UsedLedgersProvider.isTopicNotFound(e)) {
+                            return Try.of(() -> true);
+                        } else {
+                            return Try.failure(e);
+                        }
+                    });
+        }
+        return Try.of(() -> false);
+
+    }
+}
@@ -0,0 +1,92 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import org.apache.bookkeeper.client.api.BKException;
+import org.apache.bookkeeper.client.api.LedgerMetadata;
+import org.apache.bookkeeper.meta.LedgerManager;
+import org.apache.bookkeeper.proto.BookkeeperInternalCallbacks.Processor;
+import org.apache.bookkeeper.versioning.Versioned;
+import org.apache.zookeeper.AsyncCallback;
+
+import java.util.PrimitiveIterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Reads ledger metadata with at most {@code concurrency} reads in flight.
+ * <p>
+ * As a processor for {@link LedgerManager#asyncProcessLedgers}, BookKeeper hands over every ledger of a leaf node
+ * without waiting, so the ledgers of one leaf (up to 10,000) queue in the limiter. The callback of a ledger only
+ * completes once its read finished and BookKeeper only moves on to the next leaf node once every callback of the current
+ * one completed, which bounds the queue to a single leaf. {@link #processAll} pulls ledger ids from an iterator instead,
+ * taking the next id only when a read finished.
+ */
+class PipelinedLedgerMetadataProcessor implements Processor<Long> {
+
+    private final Function<Long, CompletableFuture<Versioned<LedgerMetadata>>> metadataReader;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final BiConsumer<Long, Throwable> onFailure;
+    private final BiConsumer<Long, LedgerMetadata> onSuccess;
+
+    PipelinedLedgerMetadataProcessor(Function<Long, CompletableFuture<Versioned<LedgerMetadata>>> metadataReader, int concurrency, BiConsumer<Long, LedgerMetadata> onSuccess, BiConsumer<Long, Throwable> onFailure) {
+        this.metadataReader = metadataReader;
+        this.concurrencyLimiter = new ConcurrencyLimiter(concurrency);
+        this.onSuccess = onSuccess;
+        this.onFailure = onFailure;
+    }
+
+    @Override
+    public void process(Long ledgerId, AsyncCallback.VoidCallback cb) {
+        processLedger(ledgerId).whenComplete((v, e) -> cb.processResult(BKException.Code.OK, null, null));
+    }
+
+    /**
+     * Reads the metadata of every ledger of the iterator, completing once all reads finished. Each of the
+     * {@code concurrency} lanes takes the next ledger id when its previous read finished, so ledger ids are never
+     * taken from the iterator ahead of the reads.
+     */
+    CompletableFuture<Void> processAll(PrimitiveIterator.OfLong ledgerIds) {
+        CompletableFuture<?>[] lanes = new CompletableFuture<?>[concurrencyLimiter.getMaxConcurrency()];
+        for (int i = 0; i < lanes.length; i++) {
+            CompletableFuture<Void> lane = new CompletableFuture<>();
+            processNext(ledgerIds, lane);
+            lanes[i] = lane;
+        }
+        return CompletableFuture.allOf(lanes);
+    }
+
+    private void processNext(PrimitiveIterator.OfLong ledgerIds, CompletableFuture<Void> lane) {
+        // Reads that complete synchronously are handled in this loop rather than by recursing from their callback
+        while (true) {
+            long ledgerId;
+            synchronized (ledgerIds) {
+                if (!ledgerIds.hasNext()) {
+                    lane.complete(null);
+                    return;
+                }
+                ledgerId = ledgerIds.nextLong();
+            }
+            CompletableFuture<Void> read = processLedger(ledgerId);
+            if (!read.isDone()) {
+                read.whenComplete((v, e) -> processNext(ledgerIds, lane));
+                return;
+            }
+        }
+    }
+
+    private CompletableFuture<Void> processLedger(long ledgerId) {
+        return concurrencyLimiter.submit(() -> metadataReader.apply(ledgerId))
+                .handle((versionedMetadata, e) -> {
+                    try {
+                        if (e == null) {
+                            onSuccess.accept(ledgerId, versionedMetadata.getValue());
+                        } else {
+                            onFailure.accept(ledgerId, e);
+                        }
+                    } catch (RuntimeException ex) {
+                        onFailure.accept(ledgerId, ex);
+                    }
+                    return null;
+                });
+    }
+}
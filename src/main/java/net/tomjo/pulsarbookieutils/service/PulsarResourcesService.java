@@ -3,91 +3,180 @@ package net.tomjo.pulsarbookieutils.service;
 import io.quarkus.logging.Log;
 import io.vavr.concurrent.Future;
 import io.vavr.control.Try;
-import org.apache.pulsar.client.admin.Namespaces;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
 import org.apache.pulsar.client.admin.PulsarAdmin;
-import org.apache.pulsar.client.admin.TopicPolicies;
-import org.apache.pulsar.client.admin.Topics;
+import org.apache.pulsar.client.admin.PulsarAdminException;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.common.policies.data.ManagedLedgerInternalStats;
+import org.apache.pulsar.common.policies.data.PersistentTopicInternalStats;
+import org.apache.pulsar.common.policies.data.RetentionPolicies;
+import org.apache.pulsar.common.policies.data.TopicStats;
 
 import java.io.Closeable;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static net.tomjo.pulsarbookieutils.Util.isNamespace;
 import static net.tomjo.pulsarbookieutils.Util.isTopic;
 
-public class PulsarResourcesService implements Closeable {
+public class PulsarResourcesService implements Closeable, UsedLedgersProvider {
+
+    public static final int DEFAULT_ADMIN_CONCURRENCY = 16;
+    public static final int DEFAULT_TOPIC_CACHE_SIZE = 10000;
 
     private final PulsarAdmin pulsarAdmin;
 
+    private final ConcurrencyLimiter adminConcurrencyLimiter;
+
+    private final CoalescingCache<String, LedgerIdSet> ledgersUsedByTopicCache;
+
+    private final RateGovernor rateGovernor;
+
+    private final OperationMetrics operationMetrics;
+
     public PulsarResourcesService(PulsarAdmin pulsarAdmin) {
+        this(pulsarAdmin, DEFAULT_ADMIN_CONCURRENCY, DEFAULT_TOPIC_CACHE_SIZE, RateGovernor.unlimited(), new OperationMetrics());
+    }
+
+    public PulsarResourcesService(PulsarAdmin pulsarAdmin, int adminConcurrency, int topicCacheSize, RateGovernor rateGovernor, OperationMetrics operationMetrics) {
         this.pulsarAdmin = pulsarAdmin;
+        this.adminConcurrencyLimiter = new ConcurrencyLimiter(adminConcurrency);
+        this.ledgersUsedByTopicCache = new CoalescingCache<>(topicCacheSize, PulsarResourcesService::isNotFound);
+        this.rateGovernor = rateGovernor;
+        this.operationMetrics = operationMetrics;
     }
 
-    public Topics topics() {
-        return pulsarAdmin.topics();
+    public Future<RetentionPolicies> getNamespaceRetention(String namespace) {
+        return Future.fromCompletableFuture(adminCall("admin.getNamespaceRetention", () -> pulsarAdmin.namespaces().getRetentionAsync(namespace)));
     }
 
-    public TopicPolicies topicPolicies() {
-        return pulsarAdmin.topicPolicies();
+    public Future<RetentionPolicies> getTopicRetention(String topic) {
+        return Future.fromCompletableFuture(adminCall("admin.getTopicRetention", () -> pulsarAdmin.topicPolicies().getRetentionAsync(topic)));
     }
 
-    public Namespaces namespaces() {
-        return pulsarAdmin.namespaces();
+    /**
+     * Loads the topic on its broker by requesting its last message id.
+     */
+    public Future<MessageId> loadTopic(String topic) {
+        return Future.fromCompletableFuture(adminCall("admin.getLastMessageId", () -> pulsarAdmin.topics().getLastMessageIdAsync(topic)));
     }
 
     public List<String> listTopics(String pulsarResourceIdentifier) {
-        List<String> topics = new LinkedList<>();
+        List<String> topics = Collections.synchronizedList(new ArrayList<>());
+        streamTopics(pulsarResourceIdentifier, topics::addAll).await();
+        return topics;
+    }
+
+    /**
+     * Lists the topics of a topic, namespace or tenant, passing them to the consumer per namespace as soon as they are
+     * known. Namespaces of a tenant are listed concurrently, so the consumer should be thread-safe.
+     */
+    public Future<Void> streamTopics(String pulsarResourceIdentifier, Consumer<List<String>> consumer) {
         if (isTopic(pulsarResourceIdentifier)) {
-            topics.add(pulsarResourceIdentifier);
+            consumer.accept(List.of(pulsarResourceIdentifier));
+            return Future.successful(null);
         } else if (isNamespace(pulsarResourceIdentifier)) {
-            Try.of(() -> pulsarAdmin.namespaces().getTopics(pulsarResourceIdentifier))
-                    .recover(e -> {
-                        Log.error("Could not derive topics from namespace " + pulsarResourceIdentifier + ": " + e.getMessage(), e);
-                        return List.of();
-                    })
-                    .andThen(topics::addAll);
-        } else {
-            Try.of(() -> pulsarAdmin.namespaces().getNamespaces(pulsarResourceIdentifier))
-                    .recover(e -> {
-                        Log.error("Could not derive topics from tenant " + pulsarResourceIdentifier + ": " + e.getMessage(), e);
-                        return List.of();
-                    })
-                    .forEach(namespaces -> namespaces.stream()
-                            .map(namespace -> Try.of(() -> pulsarAdmin.namespaces().getTopics(namespace))
-                                    .recover(e -> {
-                                        Log.error("Could not derive topics from namespace " + namespace + ": " + e.getMessage(), e);
-                                        return List.of();
-                                    })
-                                    .get())
-                            .forEach(topics::addAll));
+            return Future.fromCompletableFuture(listNamespaceTopics(pulsarResourceIdentifier).thenAccept(consumer));
         }
-        return topics;
+        return Future.fromCompletableFuture(adminCall("admin.getNamespaces", () -> pulsarAdmin.namespaces().getNamespacesAsync(pulsarResourceIdentifier))
+                .exceptionally(e -> {
+                    Log.error("Could not derive topics from tenant " + pulsarResourceIdentifier + ": " + e.getMessage(), e);
+                    return List.of();
+                })
+                .thenCompose(namespaces -> CompletableFuture.allOf(namespaces.stream()
+                        .map(namespace -> listNamespaceTopics(namespace).thenAccept(consumer))
+                        .toArray(CompletableFuture[]::new))));
+    }
+
+    private CompletableFuture<List<String>> listNamespaceTopics(String namespace) {
+        return adminCall("admin.getTopics", () -> pulsarAdmin.namespaces().getTopicsAsync(namespace))
+                .exceptionally(e -> {
+                    Log.error("Could not derive topics from namespace " + namespace + ": " + e.getMessage(), e);
+                    return List.of();
+                });
+    }
+
+    public Future<TopicStats> getTopicStats(String topic, int retries, long timeoutMs) {
+        return Future.fromCompletableFuture(withRetries("admin.getStats", () -> pulsarAdmin.topics().getStatsAsync(topic), "get stats of topic " + topic, retries, timeoutMs));
     }
 
-    public Future<Set<Long>> getLedgersUsedByTopic(String topic) {
-        return Future.fromCompletableFuture(topics()
-                .getInternalStatsAsync(topic)
-                .thenApply(stats -> {
-                    Set<Long> ledgers = new TreeSet<>(getLedgerIds(stats.ledgers));
-                    ledgers.addAll(getLedgerIds(stats.schemaLedgers));
-                    ledgers.addAll(getLedgerIds(List.of(stats.compactedLedger)));
-                    ledgers.addAll(getCursorLedgerIds(stats.cursors.values()));
-                    return ledgers;
-                }));
+    private <T> CompletableFuture<T> withRetries(String operation, Supplier<CompletableFuture<T>> request, String description, int retries, long timeoutMs) {
+        return adminCall(operation, () -> request.get().orTimeout(timeoutMs, TimeUnit.MILLISECONDS))
+                .handle((value, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(value);
+                    } else if (retries > 0 && !isNotFound(e)) {
+                        Log.warn("Failed to " + description + ", retrying: " + e.getMessage());
+                        return withRetries(operation, request, description, retries - 1, timeoutMs);
+                    }
+                    return CompletableFuture.<T>failedFuture(e);
+                })
+                .thenCompose(Function.identity());
     }
 
-    private List<Long> getCursorLedgerIds(Collection<ManagedLedgerInternalStats.CursorStats> cursors) {
-        return cursors.stream()
-                .map(cursor -> cursor.cursorLedger)
+    /**
+     * Ledgers used by the topic according to its internal stats. Results, including topics not being found, are cached
+     * and shared between callers, so the returned set must not be modified.
+     */
+    @Override
+    public Future<LedgerIdSet> getLedgersUsedByTopic(String topic) {
+        return Future.fromCompletableFuture(ledgersUsedByTopicCache.get(topic, this::loadLedgersUsedByTopic));
+    }
+
+    private CompletableFuture<LedgerIdSet> loadLedgersUsedByTopic(String topic) {
+        return adminCall("admin.getInternalStats", () -> pulsarAdmin.topics().getInternalStatsAsync(topic))
+                .thenApply(PulsarResourcesService::getUsedLedgers);
+    }
+
+    /**
+     * Internal stats of the topic, uncached, for callers that need more than the ledgers used by the topic.
+     */
+    public Future<PersistentTopicInternalStats> getInternalStats(String topic) {
+        return Future.fromCompletableFuture(adminCall("admin.getInternalStats", () -> pulsarAdmin.topics().getInternalStatsAsync(topic)));
+    }
+
+    public static LedgerIdSet getUsedLedgers(PersistentTopicInternalStats stats) {
+        LedgerIdSet ledgers = new LedgerIdSet();
+        addLedgerIds(ledgers, stats.ledgers);
+        addLedgerIds(ledgers, stats.schemaLedgers);
+        addLedgerIds(ledgers, List.of(stats.compactedLedger));
+        addCursorLedgerIds(ledgers, stats.cursors.values());
+        return ledgers;
+    }
+
+    private <T> CompletableFuture<T> adminCall(String operation, Supplier<CompletableFuture<T>> call) {
+        return adminConcurrencyLimiter.submit(() -> rateGovernor.throttle(RateGovernor.Operation.ADMIN, () -> operationMetrics.record(operation, call)));
+    }
+
+    public static boolean isNotFound(Throwable e) {
+        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+        return cause instanceof PulsarAdminException.NotFoundException;
+    }
+
+    private static void addCursorLedgerIds(LedgerIdSet ledgerIds, Collection<ManagedLedgerInternalStats.CursorStats> cursors) {
+        cursors.stream()
+                .mapToLong(cursor -> cursor.cursorLedger)
                 .filter(ledgerId -> ledgerId > -1)
-                .toList();
+                .forEach(ledgerIds::add);
     }
 
-    private List<Long> getLedgerIds(Collection<ManagedLedgerInternalStats.LedgerInfo> ledgers) {
-        return ledgers.stream()
-                .map(ledger -> ledger.ledgerId)
+    private static void addLedgerIds(LedgerIdSet ledgerIds, Collection<ManagedLedgerInternalStats.LedgerInfo> ledgers) {
+        ledgers.stream()
+                .mapToLong(ledger -> ledger.ledgerId)
                 .filter(ledgerId -> ledgerId > -1)
-                .toList();
+                .forEach(ledgerIds::add);
+    }
+
+    /**
+     * Forgets the ledgers used by topics, so the service can be reused for a new run against a changed cluster.
+     */
+    public void invalidateCaches() {
+        ledgersUsedByTopicCache.invalidateAll();
     }
 
     @Override
@@ -0,0 +1,103 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Token buckets limiting the rate of metadata store reads, metadata store writes and Pulsar admin calls, shared by all
+ * services of a run. Calls over budget are delayed without blocking the calling thread.
+ */
+public class RateGovernor {
+
+    public enum Operation {
+        METADATA_READ,
+        METADATA_WRITE,
+        ADMIN
+    }
+
+    private final Map<Operation, TokenBucket> buckets = new EnumMap<>(Operation.class);
+
+    private volatile RateGovernor attached;
+
+    /**
+     * @param metadataReadsPerSecond  maximum metadata store reads per second, 0 or less for unlimited
+     * @param metadataWritesPerSecond maximum metadata store writes per second, 0 or less for unlimited
+     * @param adminCallsPerSecond     maximum Pulsar admin calls per second, 0 or less for unlimited
+     */
+    public RateGovernor(double metadataReadsPerSecond, double metadataWritesPerSecond, double adminCallsPerSecond) {
+        buckets.put(Operation.METADATA_READ, new TokenBucket(metadataReadsPerSecond));
+        buckets.put(Operation.METADATA_WRITE, new TokenBucket(metadataWritesPerSecond));
+        buckets.put(Operation.ADMIN, new TokenBucket(adminCallsPerSecond));
+    }
+
+    public static RateGovernor unlimited() {
+        return new RateGovernor(0, 0, 0);
+    }
+
+    /**
+     * Also limits the calls started from now on by the given governor, until detached. Services shared by the runs of
+     * the serve command are limited by the server's governor, the attached governor holds the limits of the current
+     * run, so calls are held to the lower of both rates.
+     */
+    public void attach(RateGovernor governor) {
+        this.attached = governor == this ? null : governor;
+    }
+
+    public void detach() {
+        this.attached = null;
+    }
+
+    public <T> CompletableFuture<T> throttle(Operation operation, Supplier<CompletableFuture<T>> call) {
+        long delayNanos = reserve(operation);
+        if (delayNanos <= 0) {
+            return call.get();
+        }
+        return CompletableFuture.runAsync(() -> {
+                }, CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS))
+                .thenCompose(v -> call.get());
+    }
+
+    private long reserve(Operation operation) {
+        long delayNanos = buckets.get(operation).reserve();
+        RateGovernor attachedGovernor = attached;
+        return attachedGovernor == null ? delayNanos : Math.max(delayNanos, attachedGovernor.reserve(operation));
+    }
+
+    /**
+     * Token bucket holding up to one second worth of permits, handing out reservations for future permits when empty.
+     */
+    private static class TokenBucket {
+
+        private final boolean unlimited;
+        private final double maxStoredPermits;
+        private final double intervalNanos;
+        private double storedPermits;
+        private long nextFreeNanos = System.nanoTime();
+
+        TokenBucket(double permitsPerSecond) {
+            this.unlimited = permitsPerSecond <= 0;
+            this.maxStoredPermits = Math.max(1, permitsPerSecond);
+            this.intervalNanos = unlimited ? 0 : TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+            this.storedPermits = maxStoredPermits;
+        }
+
+        synchronized long reserve() {
+            if (unlimited) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            if (now > nextFreeNanos) {
+                storedPermits = Math.min(maxStoredPermits, storedPermits + (now - nextFreeNanos) / intervalNanos);
+                nextFreeNanos = now;
+            }
+            long waitNanos = nextFreeNanos - now;
+            double permitsFromStore = Math.min(1, storedPermits);
+            storedPermits -= permitsFromStore;
+            nextFreeNanos += (long) ((1 - permitsFromStore) * intervalNanos);
+            return waitNanos;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import io.vavr.concurrent.Future;
+import org.apache.pulsar.common.naming.TopicName;
+import org.apache.pulsar.common.policies.data.RetentionPolicies;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the retention policies of topics and their namespaces once, sharing concurrent requests for the same topic
+ * or namespace, so expiry of any amount of ledgers can be evaluated with one topic and one namespace policy request per
+ * topic.
+ */
+public class RetentionResolver {
+
+    private final PulsarResourcesService pulsarResourcesService;
+    private final CoalescingCache<String, Optional<RetentionPolicies>> topicRetentionCache;
+    private final CoalescingCache<String, Optional<RetentionPolicies>> namespaceRetentionCache;
+
+    public RetentionResolver(PulsarResourcesService pulsarResourcesService) {
+        this(pulsarResourcesService, PulsarResourcesService.DEFAULT_TOPIC_CACHE_SIZE);
+    }
+
+    public RetentionResolver(PulsarResourcesService pulsarResourcesService, int cacheSize) {
+        this.pulsarResourcesService = pulsarResourcesService;
+        this.topicRetentionCache = new CoalescingCache<>(cacheSize, PulsarResourcesService::isNotFound);
+        this.namespaceRetentionCache = new CoalescingCache<>(cacheSize, PulsarResourcesService::isNotFound);
+    }
+
+    /**
+     * Whether a ledger of the topic created at {@code creationTime} is expired at {@code now} according to either the
+     * retention policy of the topic or the one of its namespace. The namespace policy is only resolved when the topic
+     * policy doesn't already expire the ledger.
+     */
+    public Future<Boolean> isExpired(TopicName topic, long creationTime, long now) {
+        return Future.fromCompletableFuture(getTopicRetention(topic)
+                .thenCompose(topicRetention -> isExpired(topicRetention, creationTime, now)
+                        ? CompletableFuture.completedFuture(true)
+                        : getNamespaceRetention(topic).thenApply(namespaceRetention -> isExpired(namespaceRetention, creationTime, now))));
+    }
+
+    private CompletableFuture<Optional<RetentionPolicies>> getTopicRetention(TopicName topic) {
+        return topicRetentionCache.get(topic.toString(), t -> pulsarResourcesService.getTopicRetention(t)
+                .map(Optional::ofNullable)
+                .toCompletableFuture());
+    }
+
+    private CompletableFuture<Optional<RetentionPolicies>> getNamespaceRetention(TopicName topic) {
+        return namespaceRetentionCache.get(topic.getNamespace(), namespace -> pulsarResourcesService.getNamespaceRetention(namespace)
+                .map(Optional::ofNullable)
+                .toCompletableFuture());
+    }
+
+    /**
+     * A retention time of -1 retains forever, 0 doesn't retain at all. Without a policy nothing is expired.
+     */
+    static boolean isExpired(Optional<RetentionPolicies> retention, long creationTime, long now) {
+        return retention.map(RetentionPolicies::getRetentionTimeInMinutes)
+                .filter(retentionTimeInMinutes -> retentionTimeInMinutes != -1)
+                .map(retentionTimeInMinutes -> retentionTimeInMinutes == 0 || now - creationTime > TimeUnit.MINUTES.toMillis(retentionTimeInMinutes))
+                .orElse(false);
+    }
+}
@@ -0,0 +1,103 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Reads the ledgers referenced by the broker's SchemaLocator protobuf stored below the schema root. The generated class
+ * lives in the broker artifact, so the few fields needed are decoded directly:
+ * {@code SchemaLocator { IndexEntry info = 1; repeated IndexEntry index = 2; }},
+ * {@code IndexEntry { int64 version = 1; PositionInfo position = 2; bytes hash = 3; }} and
+ * {@code PositionInfo { int64 ledgerId = 1; int64 entryId = 2; }}.
+ */
+final class SchemaLocators {
+
+    private static final int INFO = 1;
+    private static final int INDEX = 2;
+    private static final int INDEX_ENTRY_VERSION = 1;
+    private static final int INDEX_ENTRY_POSITION = 2;
+    private static final int INDEX_ENTRY_HASH = 3;
+    private static final int POSITION_LEDGER_ID = 1;
+    private static final int POSITION_ENTRY_ID = 2;
+
+    private SchemaLocators() {
+    }
+
+    static LedgerIdSet getLedgers(byte[] schemaLocator) throws IOException {
+        LedgerIdSet ledgers = new LedgerIdSet();
+        CodedInputStream input = CodedInputStream.newInstance(schemaLocator);
+        for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+            int field = WireFormat.getTagFieldNumber(tag);
+            if ((field == INFO || field == INDEX) && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                readIndexEntry(input.readBytes().newCodedInput(), ledgers);
+            } else {
+                input.skipField(tag);
+            }
+        }
+        return ledgers;
+    }
+
+    private static void readIndexEntry(CodedInputStream input, LedgerIdSet ledgers) throws IOException {
+        for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+            if (WireFormat.getTagFieldNumber(tag) == INDEX_ENTRY_POSITION && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                readPosition(input.readBytes().newCodedInput(), ledgers);
+            } else {
+                input.skipField(tag);
+            }
+        }
+    }
+
+    private static void readPosition(CodedInputStream input, LedgerIdSet ledgers) throws IOException {
+        for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+            if (WireFormat.getTagFieldNumber(tag) == POSITION_LEDGER_ID && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT) {
+                long ledgerId = input.readInt64();
+                if (ledgerId > -1) {
+                    ledgers.add(ledgerId);
+                }
+            } else {
+                input.skipField(tag);
+            }
+        }
+    }
+
+    /**
+     * A locator of a single schema version stored at the start of the given ledger.
+     */
+    static byte[] create(long ledgerId) {
+        ByteString position = write(output -> {
+            output.writeInt64(POSITION_LEDGER_ID, ledgerId);
+            output.writeInt64(POSITION_ENTRY_ID, 0L);
+        });
+        ByteString indexEntry = write(output -> {
+            output.writeInt64(INDEX_ENTRY_VERSION, 0L);
+            output.writeBytes(INDEX_ENTRY_POSITION, position);
+            output.writeBytes(INDEX_ENTRY_HASH, ByteString.EMPTY);
+        });
+        return write(output -> {
+            output.writeBytes(INFO, indexEntry);
+            output.writeBytes(INDEX, indexEntry);
+        }).toByteArray();
+    }
+
+    private static ByteString write(MessageWriter writer) {
+        ByteString.Output bytes = ByteString.newOutput();
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        try {
+            writer.write(output);
+            output.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteString();
+    }
+
+    private interface MessageWriter {
+        void write(CodedOutputStream output) throws IOException;
+    }
+}
@@ -10,32 +10,49 @@ import org.apache.bookkeeper.meta.MetadataBookieDriver;
 import org.apache.bookkeeper.meta.MetadataDrivers;
 import org.apache.bookkeeper.stats.NullStatsLogger;
 import org.apache.pulsar.client.admin.PulsarAdmin;
-import org.apache.pulsar.metadata.api.MetadataStore;
 import org.apache.pulsar.metadata.impl.ZKMetadataStore;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 
 import java.net.URI;
+import java.nio.file.Path;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 public class ServiceFactoryMethods {
     public static Try<PulsarResourcesService> createPulsarResourcesService(String pulsarAdminHost, String authPlugin, String authParams, Map<String, Object> pulsarConfig) {
+        return createPulsarResourcesService(pulsarAdminHost, authPlugin, authParams, pulsarConfig, PulsarResourcesService.DEFAULT_ADMIN_CONCURRENCY, RateGovernor.unlimited(), new OperationMetrics());
+    }
+
+    public static Try<PulsarResourcesService> createPulsarResourcesService(String pulsarAdminHost, String authPlugin, String authParams, Map<String, Object> pulsarConfig, int adminConcurrency, RateGovernor rateGovernor, OperationMetrics operationMetrics) {
         return Try.of(() -> PulsarAdmin.builder()
                         .loadConf(pulsarConfig)
                         .serviceHttpUrl(pulsarAdminHost)
                         .authentication(authPlugin, authParams)
                         .build())
-                .map(PulsarResourcesService::new);
+                .map(pulsarAdmin -> new PulsarResourcesService(pulsarAdmin, adminConcurrency, PulsarResourcesService.DEFAULT_TOPIC_CACHE_SIZE, rateGovernor, operationMetrics));
     }
 
     public static Try<LedgerMetadataService> createZookeeperLedgerMetadataService(String zookeeperHost, int sessionTimeoutMs) {
+        return createZookeeperLedgerMetadataService(zookeeperHost, sessionTimeoutMs, LedgerMetadataService.DEFAULT_SCAN_CONCURRENCY, LedgerMetadataService.DEFAULT_DELETE_CONCURRENCY, null, RateGovernor.unlimited(), new OperationMetrics());
+    }
+
+    public static Try<LedgerMetadataService> createZookeeperLedgerMetadataService(String zookeeperHost, int sessionTimeoutMs, int scanConcurrency, int deleteConcurrency, Path snapshotFile, RateGovernor rateGovernor, OperationMetrics operationMetrics) {
+        Try<LedgerManagerFactory> ledgerManagerFactory = createZookeeperLedgerManagerFactory(zookeeperHost, sessionTimeoutMs);
+        Try<ZooKeeper> zookeeper = connectZookeeper(zookeeperHost, sessionTimeoutMs);
+        return ledgerManagerFactory
+                .flatMap(lmf -> zookeeper
+                        .map(z -> new LedgerMetadataService(lmf, new ZKMetadataStore(z), scanConcurrency, deleteConcurrency, snapshotFile, rateGovernor,
+                                new MetadataTreeDeleter(z, deleteConcurrency, rateGovernor, operationMetrics), operationMetrics)));
+    }
+
+    public static Try<FixtureGenerator> createZookeeperFixtureGenerator(String zookeeperHost, int sessionTimeoutMs, int concurrency, RateGovernor rateGovernor, OperationMetrics operationMetrics) {
         Try<LedgerManagerFactory> ledgerManagerFactory = createZookeeperLedgerManagerFactory(zookeeperHost, sessionTimeoutMs);
-        Try<MetadataStore> zookeeperMetadataStore = createZookeeperMetadataStore(zookeeperHost, sessionTimeoutMs);
+        Try<ZooKeeper> zookeeper = connectZookeeper(zookeeperHost, sessionTimeoutMs);
         return ledgerManagerFactory
-                .flatMap(lmf -> zookeeperMetadataStore
-                        .map(ms -> new LedgerMetadataService(lmf, ms)));
+                .flatMap(lmf -> zookeeper
+                        .map(z -> new FixtureGenerator(lmf, new ZKMetadataStore(z), concurrency, rateGovernor, operationMetrics)));
     }
 
     private static Try<LedgerManagerFactory> createZookeeperLedgerManagerFactory(String zookeeperHost, int sessionTimeoutMs) {
@@ -49,7 +66,7 @@ public class ServiceFactoryMethods {
                 .mapTry(MetadataBookieDriver::getLedgerManagerFactory);
     }
 
-    private static Try<MetadataStore> createZookeeperMetadataStore(String zookeeperHost, int sessionTimeoutMs) {
+    private static Try<ZooKeeper> connectZookeeper(String zookeeperHost, int sessionTimeoutMs) {
         CompletableFuture<Void> zookeeperFuture = new CompletableFuture<>();
         return Try.of(() -> new ZooKeeper(zookeeperHost, sessionTimeoutMs, (watchedEvent1) -> {
                     if (watchedEvent1.getState() == Watcher.Event.KeeperState.SyncConnected) {
@@ -60,7 +77,7 @@ public class ServiceFactoryMethods {
                 .flatMap(z -> Future.fromCompletableFuture(zookeeperFuture)
                         .await(sessionTimeoutMs, TimeUnit.MILLISECONDS)
                         .toTry()
-                        .map(v -> (MetadataStore) new ZKMetadataStore(z))
+                        .map(v -> z)
                 )
                 .onFailure(ex -> Log.error("Could not connect to zookeeper " + zookeeperHost + ": " + ex.getMessage(), ex));
     }
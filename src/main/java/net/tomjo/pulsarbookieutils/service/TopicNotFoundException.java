@@ -0,0 +1,8 @@
+package net.tomjo.pulsarbookieutils.service;
+
+public class TopicNotFoundException extends RuntimeException {
+
+    public TopicNotFoundException(String topic) {
+        super("Topic " + topic + " not found");
+    }
+}
@@ -0,0 +1,29 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import io.vavr.concurrent.Future;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import org.apache.pulsar.client.admin.PulsarAdminException;
+
+/**
+ * Source of the ledgers a topic uses: its managed ledger, cursor, compacted topic and schema ledgers.
+ */
+public interface UsedLedgersProvider {
+
+    /**
+     * Fails with an exception matching {@link #isTopicNotFound(Throwable)} when the topic doesn't exist. The returned
+     * set may be shared between callers and must not be modified.
+     */
+    Future<LedgerIdSet> getLedgersUsedByTopic(String topic);
+
+    /**
+     * Whether the exception, or one of its causes, signals a topic that doesn't exist.
+     */
+    static boolean isTopicNotFound(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof PulsarAdminException.NotFoundException || cause instanceof TopicNotFoundException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
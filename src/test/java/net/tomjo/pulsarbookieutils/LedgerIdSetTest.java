@@ -0,0 +1,160 @@
+package net.tomjo.pulsarbookieutils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LedgerIdSetTest {
+
+    private static final int ARRAY_CONTAINER_MAX_SIZE = 4096;
+
+    @ParameterizedTest
+    @ValueSource(ints = {ARRAY_CONTAINER_MAX_SIZE - 1, ARRAY_CONTAINER_MAX_SIZE, ARRAY_CONTAINER_MAX_SIZE + 1, 65536})
+    void keepsAllIdsAroundTheBitmapConversion(int count) {
+        long[] ids = LongStream.range(0, count).map(i -> i * 3).toArray();
+
+        LedgerIdSet ledgerIds = LedgerIdSet.of(ids);
+
+        assertEquals(count, ledgerIds.size());
+        assertArrayEquals(ids, ledgerIds.stream().toArray());
+        assertTrue(ledgerIds.contains(ids[count - 1]));
+        assertFalse(ledgerIds.contains(ids[count - 1] - 1));
+    }
+
+    @Test
+    void ignoresDuplicateAddsAfterTheBitmapConversion() {
+        LedgerIdSet ledgerIds = LedgerIdSet.of(LongStream.range(0, ARRAY_CONTAINER_MAX_SIZE + 1));
+
+        ledgerIds.add(0);
+        ledgerIds.add(ARRAY_CONTAINER_MAX_SIZE);
+
+        assertEquals(ARRAY_CONTAINER_MAX_SIZE + 1, ledgerIds.size());
+        assertTrue(ledgerIds.contains(ARRAY_CONTAINER_MAX_SIZE));
+        assertFalse(ledgerIds.contains(ARRAY_CONTAINER_MAX_SIZE + 1));
+    }
+
+    @Test
+    void convertsBackToAnArrayWhenRemovingFromABitmap() {
+        LedgerIdSet ledgerIds = LedgerIdSet.of(LongStream.range(0, ARRAY_CONTAINER_MAX_SIZE + 10));
+
+        ledgerIds.removeAll(LedgerIdSet.of(LongStream.range(0, 20)));
+
+        assertEquals(ARRAY_CONTAINER_MAX_SIZE - 10, ledgerIds.size());
+        assertFalse(ledgerIds.contains(19));
+        assertTrue(ledgerIds.contains(20));
+
+        // Growing the converted array again crosses the threshold a second time
+        ledgerIds.addAll(LedgerIdSet.of(LongStream.range(0, 20)));
+
+        assertEquals(LedgerIdSet.of(LongStream.range(0, ARRAY_CONTAINER_MAX_SIZE + 10)), ledgerIds);
+    }
+
+    @Test
+    void addsAllAcrossContainerTypes() {
+        LedgerIdSet array = LedgerIdSet.of(1, 5, 70000);
+        LedgerIdSet bitmap = LedgerIdSet.of(LongStream.range(3, ARRAY_CONTAINER_MAX_SIZE + 3));
+
+        LedgerIdSet arrayIntoBitmap = bitmap.copy();
+        arrayIntoBitmap.addAll(array);
+        LedgerIdSet bitmapIntoArray = array.copy();
+        bitmapIntoArray.addAll(bitmap);
+
+        LedgerIdSet expected = LedgerIdSet.of(LongStream.concat(LongStream.of(1, 70000), LongStream.range(3, ARRAY_CONTAINER_MAX_SIZE + 3)));
+        assertEquals(expected, arrayIntoBitmap);
+        assertEquals(expected, bitmapIntoArray);
+        assertEquals(ARRAY_CONTAINER_MAX_SIZE + 2, expected.size());
+    }
+
+    @Test
+    void mergesTwoArraysIntoABitmap() {
+        LedgerIdSet even = LedgerIdSet.of(LongStream.range(0, ARRAY_CONTAINER_MAX_SIZE).map(i -> i * 2));
+        LedgerIdSet odd = LedgerIdSet.of(LongStream.range(0, ARRAY_CONTAINER_MAX_SIZE).map(i -> i * 2 + 1));
+
+        even.addAll(odd);
+
+        assertEquals(LedgerIdSet.of(LongStream.range(0, 2 * ARRAY_CONTAINER_MAX_SIZE)), even);
+    }
+
+    @Test
+    void removesAllAcrossContainerTypes() {
+        LedgerIdSet bitmap = LedgerIdSet.of(LongStream.range(0, 2 * ARRAY_CONTAINER_MAX_SIZE));
+        LedgerIdSet array = LedgerIdSet.of(0, 7, 2 * ARRAY_CONTAINER_MAX_SIZE + 1, 70000);
+
+        LedgerIdSet arrayFromBitmap = bitmap.copy();
+        arrayFromBitmap.removeAll(array);
+        LedgerIdSet bitmapFromArray = array.copy();
+        bitmapFromArray.removeAll(bitmap);
+
+        assertEquals(2 * ARRAY_CONTAINER_MAX_SIZE - 2, arrayFromBitmap.size());
+        assertFalse(arrayFromBitmap.contains(7));
+        assertEquals(LedgerIdSet.of(2 * ARRAY_CONTAINER_MAX_SIZE + 1, 70000), bitmapFromArray);
+    }
+
+    @Test
+    void dropsContainersThatBecomeEmpty() {
+        LedgerIdSet ledgerIds = LedgerIdSet.of(LongStream.range(0, ARRAY_CONTAINER_MAX_SIZE + 1));
+
+        ledgerIds.removeAll(ledgerIds.copy());
+
+        assertTrue(ledgerIds.isEmpty());
+        assertEquals(0, ledgerIds.size());
+        assertEquals(new LedgerIdSet(), ledgerIds);
+    }
+
+    @Test
+    void keepsNegativeAndLargeIds() {
+        long[] ids = {0, 65535, 65536, Integer.MAX_VALUE + 1L, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        LedgerIdSet ledgerIds = LedgerIdSet.of(ids);
+
+        for (long id : ids) {
+            assertTrue(ledgerIds.contains(id), "contains " + id);
+        }
+        assertFalse(ledgerIds.contains(-2));
+        assertFalse(ledgerIds.contains(Long.MAX_VALUE - 1));
+        assertEquals(ids.length, ledgerIds.size());
+        // Ids are ordered as unsigned values, so negative ids come last
+        assertArrayEquals(new long[]{0, 65535, 65536, Integer.MAX_VALUE + 1L, Long.MAX_VALUE, Long.MIN_VALUE, -1}, ledgerIds.stream().toArray());
+    }
+
+    @Test
+    void removesNegativeIds() {
+        LedgerIdSet ledgerIds = LedgerIdSet.of(-1, -2, 1);
+
+        ledgerIds.removeAll(LedgerIdSet.of(-1));
+
+        assertEquals(LedgerIdSet.of(-2, 1), ledgerIds);
+    }
+
+    @Test
+    void iteratesInTheSameOrderAsStreamAndForEach() {
+        LedgerIdSet ledgerIds = LedgerIdSet.of(LongStream.concat(LongStream.range(100000, 100000 + ARRAY_CONTAINER_MAX_SIZE + 1), LongStream.of(3, 1, -5)));
+
+        LongStream.Builder iterated = LongStream.builder();
+        ledgerIds.iterator().forEachRemaining((long id) -> iterated.add(id));
+        LongStream.Builder visited = LongStream.builder();
+        ledgerIds.forEach(visited);
+
+        assertArrayEquals(ledgerIds.stream().toArray(), iterated.build().toArray());
+        assertArrayEquals(ledgerIds.stream().toArray(), visited.build().toArray());
+    }
+
+    @Test
+    void copiesAreIndependent() {
+        LedgerIdSet original = LedgerIdSet.of(LongStream.range(0, ARRAY_CONTAINER_MAX_SIZE + 1));
+        LedgerIdSet copy = original.copy();
+
+        copy.add(-1);
+        copy.removeAll(LedgerIdSet.of(0));
+
+        assertTrue(original.contains(0));
+        assertFalse(original.contains(-1));
+        assertEquals(ARRAY_CONTAINER_MAX_SIZE + 1, original.size());
+    }
+}
@@ -0,0 +1,48 @@
+package net.tomjo.pulsarbookieutils.audit;
+
+import net.tomjo.pulsarbookieutils.Ledger;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OldestLedgersTest {
+
+    @Test
+    void keepsTheOldestLedgersUpToTheCapacity() {
+        OldestLedgers oldestLedgers = new OldestLedgers(3);
+        for (long ctime : new long[]{50, 10, 40, 30, 20, 60}) {
+            oldestLedgers.offer(ledger(ctime * 10, ctime));
+        }
+
+        assertEquals(List.of(100L, 200L, 300L), oldestLedgers.oldestFirst().stream().map(Ledger::getLedgerId).toList());
+        assertTrue(oldestLedgers.isTruncated());
+    }
+
+    @Test
+    void ordersLedgersCreatedAtTheSameTimeByLedgerId() {
+        OldestLedgers oldestLedgers = new OldestLedgers(2);
+        oldestLedgers.offer(ledger(3, 10));
+        oldestLedgers.offer(ledger(1, 10));
+        oldestLedgers.offer(ledger(2, 10));
+
+        assertEquals(List.of(1L, 2L), oldestLedgers.oldestFirst().stream().map(Ledger::getLedgerId).toList());
+    }
+
+    @Test
+    void isNotTruncatedWhileWithinCapacity() {
+        OldestLedgers oldestLedgers = new OldestLedgers(2);
+        oldestLedgers.offer(ledger(1, 10));
+        oldestLedgers.offer(ledger(2, 20));
+
+        assertEquals(2, oldestLedgers.oldestFirst().size());
+        assertFalse(oldestLedgers.isTruncated());
+    }
+
+    private static Ledger ledger(long ledgerId, long ctime) {
+        return new Ledger(ledgerId, ctime, 100, true, 2, 2, 1, new String[]{"bookie-1:3181"}, true, "tenant/ns/persistent/topic", null, null);
+    }
+}
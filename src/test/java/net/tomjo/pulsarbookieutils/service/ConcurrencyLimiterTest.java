@@ -0,0 +1,57 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConcurrencyLimiterTest {
+
+    @Test
+    void drainsALongQueueOfSynchronouslyCompletingTasks() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1);
+        CompletableFuture<Integer> blocker = new CompletableFuture<>();
+        limiter.submit(() -> blocker);
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            int value = i;
+            results.add(limiter.submit(() -> value % 2 == 0 ? CompletableFuture.completedFuture(value) : CompletableFuture.failedFuture(new IllegalStateException())));
+        }
+
+        // Completing the blocker releases the queued tasks on this thread, one deep recursion per task would overflow
+        blocker.complete(-1);
+
+        assertTrue(results.stream().allMatch(CompletableFuture::isDone));
+        assertEquals(99998, (int) results.get(99998).join());
+    }
+
+    @Test
+    void neverRunsMoreThanTheMaximumConcurrency() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(3);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            results.add(limiter.submit(() -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                pending.add(future);
+                return future;
+            }));
+        }
+
+        while (!pending.isEmpty()) {
+            inFlight.decrementAndGet();
+            pending.remove(0).complete(null);
+        }
+
+        assertEquals(3, maxInFlight.get());
+        assertTrue(results.stream().allMatch(CompletableFuture::isDone));
+    }
+}
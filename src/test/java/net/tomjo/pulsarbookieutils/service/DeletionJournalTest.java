@@ -0,0 +1,114 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeletionJournalTest {
+
+    private static final long PLAN_CHECKSUM = 0x1234L;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 9;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void resumesCompletedAndInterruptedItems() throws IOException {
+        Path file = directory.resolve("journal");
+        try (DeletionJournal journal = DeletionJournal.open(file, PLAN_CHECKSUM)) {
+            journal.started(0);
+            journal.started(1);
+            journal.started(2);
+            journal.sync();
+            journal.completed(0);
+            journal.completed(2);
+        }
+
+        try (DeletionJournal journal = DeletionJournal.open(file, PLAN_CHECKSUM)) {
+            assertEquals(2, journal.completedCount());
+            assertEquals(1, journal.interruptedCount());
+            assertTrue(journal.isCompleted(0));
+            assertFalse(journal.isCompleted(1));
+            assertTrue(journal.isCompleted(2));
+        }
+    }
+
+    @Test
+    void dropsATornRecord() throws IOException {
+        Path file = directory.resolve("journal");
+        try (DeletionJournal journal = DeletionJournal.open(file, PLAN_CHECKSUM)) {
+            journal.started(0);
+            journal.started(1);
+            journal.sync();
+            journal.completed(0);
+            journal.completed(1);
+        }
+        // A crash while appending the last completion leaves part of its record behind
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(HEADER_SIZE + 3 * RECORD_SIZE + 4);
+        }
+
+        try (DeletionJournal journal = DeletionJournal.open(file, PLAN_CHECKSUM)) {
+            assertEquals(HEADER_SIZE + 3 * RECORD_SIZE, Files.size(file));
+            assertTrue(journal.isCompleted(0));
+            assertFalse(journal.isCompleted(1));
+            assertEquals(1, journal.interruptedCount());
+            // Records appended after the truncation line up with the complete ones
+            journal.completed(1);
+        }
+
+        try (DeletionJournal journal = DeletionJournal.open(file, PLAN_CHECKSUM)) {
+            assertEquals(HEADER_SIZE + 4 * RECORD_SIZE, Files.size(file));
+            assertEquals(2, journal.completedCount());
+            assertEquals(0, journal.interruptedCount());
+        }
+    }
+
+    @Test
+    void rewritesATornHeader() throws IOException {
+        Path file = directory.resolve("journal");
+        Files.write(file, new byte[HEADER_SIZE - 1]);
+
+        try (DeletionJournal journal = DeletionJournal.open(file, PLAN_CHECKSUM)) {
+            assertEquals(0, journal.completedCount());
+        }
+
+        try (DeletionJournal journal = DeletionJournal.open(file, PLAN_CHECKSUM)) {
+            assertEquals(HEADER_SIZE, Files.size(file));
+            assertEquals(0, journal.completedCount());
+        }
+    }
+
+    @Test
+    void rejectsTheJournalOfAnotherPlan() throws IOException {
+        Path file = directory.resolve("journal");
+        DeletionJournal.open(file, PLAN_CHECKSUM).close();
+
+        IOException e = assertThrows(IOException.class, () -> DeletionJournal.open(file, PLAN_CHECKSUM + 1));
+
+        assertTrue(e.getMessage().contains("another plan"));
+    }
+
+    @Test
+    void rejectsAMalformedRecord() throws IOException {
+        Path file = directory.resolve("journal");
+        DeletionJournal.open(file, PLAN_CHECKSUM).close();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(RECORD_SIZE).put((byte) 3).putLong(0).flip());
+        }
+
+        assertThrows(IOException.class, () -> DeletionJournal.open(file, PLAN_CHECKSUM));
+    }
+}
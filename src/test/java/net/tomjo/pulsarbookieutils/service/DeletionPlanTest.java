@@ -0,0 +1,114 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.LongStream;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeletionPlanTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTripsSortedLedgerIds() throws IOException {
+        DeletionPlan plan = new DeletionPlan("deep-clean", "tenant/namespace", 1700000000000L,
+                LongStream.range(1000, 3000).toArray(), List.of("/managed-ledgers/tenant/namespace", "/schemas/tenant/namespace"));
+        Path file = directory.resolve("plan");
+
+        plan.write(file);
+        DeletionPlan read = DeletionPlan.read(file);
+
+        assertEquals(plan.command(), read.command());
+        assertEquals(plan.resource(), read.resource());
+        assertEquals(plan.createdMillis(), read.createdMillis());
+        assertArrayEquals(plan.ledgerIds(), read.ledgerIds());
+        assertEquals(plan.metadataPaths(), read.metadataPaths());
+        assertEquals(plan.checksum(), read.checksum());
+        assertFalse(Files.exists(directory.resolve("plan.tmp")));
+    }
+
+    @Test
+    void roundTripsUnsortedAndExtremeLedgerIds() throws IOException {
+        // Negative deltas are zigzag encoded, the largest ones take the full ten varint bytes
+        long[] ledgerIds = {Long.MAX_VALUE, 0, 42, 7, Long.MAX_VALUE - 1, 1L << 35, (1L << 35) - 1, 128, 127};
+        DeletionPlan plan = new DeletionPlan("clean-orphan-ledgers", "", 0, ledgerIds, List.of());
+        Path file = directory.resolve("plan");
+
+        plan.write(file);
+
+        assertArrayEquals(ledgerIds, DeletionPlan.read(file).ledgerIds());
+    }
+
+    @Test
+    void mostlySequentialLedgerIdsTakeOneBytePerLedger() throws IOException {
+        long[] ledgerIds = LongStream.range(0, 10000).map(i -> 5000000000L + i * 2).toArray();
+        Path file = directory.resolve("plan");
+
+        new DeletionPlan("trim-ledgers", "tenant", 0, ledgerIds, List.of()).write(file);
+
+        assertTrue(Files.size(file) < ledgerIds.length + 64);
+    }
+
+    @Test
+    void rejectsACorruptPlan() throws IOException {
+        Path file = directory.resolve("plan");
+        new DeletionPlan("deep-clean", "tenant", 0, new long[]{1, 2, 3}, List.of()).write(file);
+        byte[] content = Files.readAllBytes(file);
+        content[content.length - Long.BYTES - 2] ^= 1;
+        Files.write(file, content);
+
+        IOException e = assertThrows(IOException.class, () -> DeletionPlan.read(file));
+
+        assertTrue(e.getMessage().contains("corrupt"));
+    }
+
+    @Test
+    void rejectsAPlanListingALedgerTwice() throws IOException {
+        Path file = directory.resolve("plan");
+        new DeletionPlan("deep-clean", "tenant", 0, new long[]{1, 2, 3}, List.of()).write(file);
+        // Turn the last delta of 1 into 0, listing ledger 2 twice, and fix up the checksum
+        byte[] content = Files.readAllBytes(file);
+        int bodyLength = content.length - Long.BYTES;
+        content[bodyLength - 2] = 0;
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, bodyLength);
+        ByteBuffer.wrap(content, bodyLength, Long.BYTES).putLong(crc.getValue());
+        Files.write(file, content);
+
+        IOException e = assertThrows(IOException.class, () -> DeletionPlan.read(file));
+
+        assertTrue(e.getMessage().contains("ledger 2 more than once"));
+    }
+
+    @Test
+    void rejectsATruncatedPlan() throws IOException {
+        Path file = directory.resolve("plan");
+        Files.write(file, new byte[Long.BYTES - 1]);
+
+        IOException e = assertThrows(IOException.class, () -> DeletionPlan.read(file));
+
+        assertTrue(e.getMessage().contains("truncated"));
+    }
+
+    @Test
+    void refusesToWriteDuplicateLedgerIds() {
+        Path file = directory.resolve("plan");
+        DeletionPlan plan = new DeletionPlan("deep-clean", "tenant", 0, new long[]{1, 2, 1}, List.of());
+
+        assertThrows(IllegalArgumentException.class, () -> plan.write(file));
+        assertFalse(Files.exists(file));
+    }
+}
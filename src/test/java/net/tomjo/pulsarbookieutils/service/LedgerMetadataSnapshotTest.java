@@ -0,0 +1,152 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import net.tomjo.pulsarbookieutils.Ledger;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LedgerMetadataSnapshotTest {
+
+    private static final String CLUSTER_ID = "cluster-1";
+    private static final long NOW = 1700000000000L;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTripsRefreshedLedgersAddedInAnyOrder() throws IOException {
+        Path file = directory.resolve("snapshot");
+        LedgerIdSet ledgerIds = LedgerIdSet.of(1, 2, 70000, 5000000000L);
+        List<Ledger> ledgers = List.of(closedLedger(70000, "tenant/ns/persistent/topic"), openLedger(2), closedLedger(5000000000L, null), closedLedger(1, "tenant/ns/persistent/topic"));
+
+        write(LedgerMetadataSnapshot.empty(), file, ledgerIds, ledgerIds, ledgers);
+        LedgerMetadataSnapshot snapshot = LedgerMetadataSnapshot.open(file, CLUSTER_ID);
+
+        assertEquals(4, snapshot.size());
+        List<Ledger> reused = new ArrayList<>();
+        LedgerIdSet stale = new LedgerIdSet();
+        snapshot.forEachReusable(ledgerIds, NOW, reused::add, stale::add);
+        assertEquals(List.of(1L, 70000L, 5000000000L), reused.stream().map(Ledger::getLedgerId).toList());
+        assertEquals(LedgerIdSet.of(2), stale);
+        for (Ledger ledger : reused) {
+            assertSameLedger(ledgers.stream().filter(l -> l.getLedgerId() == ledger.getLedgerId()).findFirst().orElseThrow(), ledger);
+        }
+        assertFalse(Files.exists(directory.resolve("snapshot.refreshed")));
+        assertFalse(Files.exists(directory.resolve("snapshot.tmp")));
+    }
+
+    @Test
+    void keepsRecordsOfLedgersThatWereNotRefreshed() throws IOException {
+        Path file = directory.resolve("snapshot");
+        write(LedgerMetadataSnapshot.empty(), file, LedgerIdSet.of(1, 2, 3), LedgerIdSet.of(1, 2, 3),
+                List.of(closedLedger(1, "a"), openLedger(2), closedLedger(3, "b")));
+
+        // Ledger 2 closed since, ledger 3 was deleted and ledger 4 is new, the read of ledger 4 failed
+        LedgerMetadataSnapshot snapshot = LedgerMetadataSnapshot.open(file, CLUSTER_ID);
+        write(snapshot, file, LedgerIdSet.of(1, 2, 4), LedgerIdSet.of(2, 4), List.of(closedLedger(2, "c")));
+
+        List<Ledger> reused = new ArrayList<>();
+        LedgerIdSet stale = new LedgerIdSet();
+        LedgerMetadataSnapshot updated = LedgerMetadataSnapshot.open(file, CLUSTER_ID);
+        updated.forEachReusable(LedgerIdSet.of(1, 2, 4), NOW, reused::add, stale::add);
+        assertEquals(2, updated.size());
+        assertEquals(List.of(1L, 2L), reused.stream().map(Ledger::getLedgerId).toList());
+        assertEquals("c", reused.get(1).getManagedLedgerName().orElseThrow());
+        assertEquals(LedgerIdSet.of(4), stale);
+    }
+
+    @Test
+    void reportsRecordsReadBeforeTheGivenTimeAsStale() throws IOException {
+        Path file = directory.resolve("snapshot");
+        write(LedgerMetadataSnapshot.empty(), file, LedgerIdSet.of(1), LedgerIdSet.of(1), List.of(closedLedger(1, "a")));
+
+        LedgerIdSet stale = new LedgerIdSet();
+        LedgerMetadataSnapshot.open(file, CLUSTER_ID).forEachReusable(LedgerIdSet.of(1), NOW + 1, ledger -> {
+        }, stale::add);
+
+        assertEquals(LedgerIdSet.of(1), stale);
+    }
+
+    @Test
+    void rejectsTheSnapshotOfAnotherCluster() throws IOException {
+        Path file = directory.resolve("snapshot");
+        write(LedgerMetadataSnapshot.empty(), file, LedgerIdSet.of(1), LedgerIdSet.of(1), List.of(closedLedger(1, "a")));
+
+        IOException e = assertThrows(IOException.class, () -> LedgerMetadataSnapshot.open(file, "cluster-2"));
+
+        assertTrue(e.getMessage().contains("cluster-1"));
+    }
+
+    @Test
+    void rejectsAnUnsupportedSnapshot() throws IOException {
+        Path file = directory.resolve("snapshot");
+        write(LedgerMetadataSnapshot.empty(), file, LedgerIdSet.of(1), LedgerIdSet.of(1), List.of(closedLedger(1, "a")));
+        byte[] content = Files.readAllBytes(file);
+        content[7] = 2;
+        Files.write(file, content);
+
+        IOException e = assertThrows(IOException.class, () -> LedgerMetadataSnapshot.open(file, CLUSTER_ID));
+
+        assertTrue(e.getMessage().contains("Unsupported"));
+    }
+
+    @Test
+    void treatsAMissingFileAsAnEmptySnapshot() throws IOException {
+        LedgerIdSet stale = new LedgerIdSet();
+
+        LedgerMetadataSnapshot.open(directory.resolve("missing"), CLUSTER_ID).forEachReusable(LedgerIdSet.of(1, 2), 0, ledger -> {
+        }, stale::add);
+
+        assertEquals(LedgerIdSet.of(1, 2), stale);
+    }
+
+    @Test
+    void rejectsRefreshingALedgerThatIsNotStale() throws IOException {
+        Path file = directory.resolve("snapshot");
+        try (LedgerMetadataSnapshot.Update update = LedgerMetadataSnapshot.empty().update(file, CLUSTER_ID, LedgerIdSet.of(1), NOW)) {
+            assertThrows(IllegalArgumentException.class, () -> update.add(closedLedger(2, "a")));
+        }
+    }
+
+    private static void write(LedgerMetadataSnapshot snapshot, Path file, LedgerIdSet ledgerIds, LedgerIdSet staleLedgerIds, List<Ledger> refreshed) throws IOException {
+        try (LedgerMetadataSnapshot.Update update = snapshot.update(file, CLUSTER_ID, staleLedgerIds, NOW)) {
+            refreshed.forEach(update::add);
+            update.commit(ledgerIds);
+        }
+    }
+
+    private static Ledger closedLedger(long ledgerId, String managedLedgerName) {
+        return new Ledger(ledgerId, ledgerId * 10, ledgerId * 100, true, 3, 2, 2, new String[]{"bookie-1:3181", "bookie-2:3181", "bookie-3:3181"},
+                managedLedgerName != null, managedLedgerName, null, null);
+    }
+
+    private static Ledger openLedger(long ledgerId) {
+        return new Ledger(ledgerId, ledgerId * 10, 0, false, 2, 2, 1, new String[]{"bookie-1:3181"}, true, null, "persistent://tenant/ns/topic", null);
+    }
+
+    private static void assertSameLedger(Ledger expected, Ledger actual) {
+        assertEquals(expected.getLedgerId(), actual.getLedgerId());
+        assertEquals(expected.getCtime(), actual.getCtime());
+        assertEquals(expected.getLength(), actual.getLength());
+        assertEquals(expected.isClosed(), actual.isClosed());
+        assertEquals(expected.getEnsembleSize(), actual.getEnsembleSize());
+        assertEquals(expected.getWriteQuorumSize(), actual.getWriteQuorumSize());
+        assertEquals(expected.getAckQuorumSize(), actual.getAckQuorumSize());
+        assertEquals(expected.getBookies(), actual.getBookies());
+        assertEquals(expected.isPulsarLedger(), actual.isPulsarLedger());
+        assertEquals(expected.getManagedLedgerName(), actual.getManagedLedgerName());
+        assertEquals(expected.getCompactedTopic(), actual.getCompactedTopic());
+        assertEquals(expected.getSchemaId(), actual.getSchemaId());
+    }
+}
@@ -0,0 +1,138 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.CompressionType;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.LongProperty;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedCursorInfoMetadata;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfoMetadata;
+import org.apache.pulsar.common.compression.CompressionCodecProvider;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static net.tomjo.pulsarbookieutils.service.ManagedLedgerMetadata.MAGIC_MANAGED_CURSOR_INFO_METADATA;
+import static net.tomjo.pulsarbookieutils.service.ManagedLedgerMetadata.MAGIC_MANAGED_LEDGER_INFO_METADATA;
+import static net.tomjo.pulsarbookieutils.service.MetadataStoreUsedLedgersProvider.COMPACTED_TOPIC_LEDGER_PROPERTY;
+import static net.tomjo.pulsarbookieutils.service.MetadataStoreUsedLedgersProvider.COMPACTION_SUBSCRIPTION;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MetadataStoreUsedLedgersProviderTest {
+
+    @Test
+    void readsTheLedgersOfAPlainManagedLedger() {
+        byte[] managedLedgerInfo = managedLedgerInfo(1, 2, 5000000000L).toByteArray();
+
+        assertEquals(LedgerIdSet.of(1, 2, 5000000000L), MetadataStoreUsedLedgersProvider.parseManagedLedgers(managedLedgerInfo));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"NONE", "LZ4", "ZLIB", "ZSTD", "SNAPPY"})
+    void readsTheLedgersOfACompressedManagedLedger(String compressionType) {
+        byte[] raw = managedLedgerInfo(1, 2, 5000000000L).toByteArray();
+        byte[] metadata = ManagedLedgerInfoMetadata.newBuilder()
+                .setCompressionType(CompressionType.valueOf(compressionType))
+                .setUncompressedSize(raw.length)
+                .build()
+                .toByteArray();
+
+        byte[] managedLedgerInfo = compress(MAGIC_MANAGED_LEDGER_INFO_METADATA, metadata, CompressionType.valueOf(compressionType), raw);
+
+        assertEquals(LedgerIdSet.of(1, 2, 5000000000L), MetadataStoreUsedLedgersProvider.parseManagedLedgers(managedLedgerInfo));
+    }
+
+    @Test
+    void readsTheLedgerOfAPlainCursor() {
+        byte[] cursorInfo = ManagedCursorInfo.newBuilder().setCursorsLedgerId(7).build().toByteArray();
+
+        assertEquals(Optional.of(LedgerIdSet.of(7)), MetadataStoreUsedLedgersProvider.parseCursorLedgers("subscription", cursorInfo));
+    }
+
+    @Test
+    void readsTheLedgerOfACompressedCursor() {
+        byte[] raw = ManagedCursorInfo.newBuilder().setCursorsLedgerId(7).build().toByteArray();
+        byte[] metadata = ManagedCursorInfoMetadata.newBuilder()
+                .setCompressionType(CompressionType.ZSTD)
+                .setUncompressedSize(raw.length)
+                .build()
+                .toByteArray();
+
+        byte[] cursorInfo = compress(MAGIC_MANAGED_CURSOR_INFO_METADATA, metadata, CompressionType.ZSTD, raw);
+
+        assertEquals(Optional.of(LedgerIdSet.of(7)), MetadataStoreUsedLedgersProvider.parseCursorLedgers("subscription", cursorInfo));
+    }
+
+    @Test
+    void readsTheCompactedTopicLedgerOfACompactionCursorWithoutCursorLedger() {
+        byte[] cursorInfo = ManagedCursorInfo.newBuilder()
+                .setCursorsLedgerId(-1)
+                .addProperties(LongProperty.newBuilder().setName(COMPACTED_TOPIC_LEDGER_PROPERTY).setValue(9))
+                .build()
+                .toByteArray();
+
+        assertEquals(Optional.of(LedgerIdSet.of(9)), MetadataStoreUsedLedgersProvider.parseCursorLedgers(COMPACTION_SUBSCRIPTION, cursorInfo));
+    }
+
+    @Test
+    void doesNotResolveTheCompactedTopicLedgerOfACompactionCursorWithCursorLedger() {
+        byte[] cursorInfo = ManagedCursorInfo.newBuilder()
+                .setCursorsLedgerId(7)
+                .addProperties(LongProperty.newBuilder().setName(COMPACTED_TOPIC_LEDGER_PROPERTY).setValue(9))
+                .build()
+                .toByteArray();
+
+        assertEquals(Optional.empty(), MetadataStoreUsedLedgersProvider.parseCursorLedgers(COMPACTION_SUBSCRIPTION, cursorInfo));
+    }
+
+    @Test
+    void ignoresTheCompactedTopicLedgerPropertyOfOtherCursors() {
+        byte[] cursorInfo = ManagedCursorInfo.newBuilder()
+                .setCursorsLedgerId(-1)
+                .addProperties(LongProperty.newBuilder().setName(COMPACTED_TOPIC_LEDGER_PROPERTY).setValue(9))
+                .build()
+                .toByteArray();
+
+        assertEquals(Optional.of(new LedgerIdSet()), MetadataStoreUsedLedgersProvider.parseCursorLedgers("subscription", cursorInfo));
+    }
+
+    @Test
+    void rejectsATruncatedCompressionHeader() {
+        byte[] managedLedgerInfo = ByteBuffer.allocate(6).putShort(MAGIC_MANAGED_LEDGER_INFO_METADATA).putInt(100).array();
+
+        assertThrows(UncheckedIOException.class, () -> MetadataStoreUsedLedgersProvider.parseManagedLedgers(managedLedgerInfo));
+        assertThrows(UncheckedIOException.class, () -> MetadataStoreUsedLedgersProvider.parseManagedLedgers(Arrays.copyOf(managedLedgerInfo, 3)));
+    }
+
+    private static ManagedLedgerInfo managedLedgerInfo(long... ledgerIds) {
+        ManagedLedgerInfo.Builder builder = ManagedLedgerInfo.newBuilder();
+        Arrays.stream(ledgerIds).forEach(ledgerId -> builder.addLedgerInfo(ManagedLedgerInfo.LedgerInfo.newBuilder().setLedgerId(ledgerId).setEntries(10).setSize(1000)));
+        return builder.build();
+    }
+
+    /**
+     * The layout MetaStoreImpl writes: magic number, metadata length, metadata and the compressed protobuf.
+     */
+    private static byte[] compress(short magic, byte[] metadata, CompressionType compressionType, byte[] raw) {
+        ByteBuf compressed = CompressionCodecProvider.getCompressionCodec(org.apache.pulsar.common.api.proto.CompressionType.valueOf(compressionType.name()))
+                .encode(Unpooled.wrappedBuffer(raw));
+        try {
+            ByteBuffer data = ByteBuffer.allocate(Short.BYTES + Integer.BYTES + metadata.length + compressed.readableBytes())
+                    .putShort(magic)
+                    .putInt(metadata.length)
+                    .put(metadata);
+            compressed.readBytes(data);
+            return data.array();
+        } finally {
+            compressed.release();
+        }
+    }
+}
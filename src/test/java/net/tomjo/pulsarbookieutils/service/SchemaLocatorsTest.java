@@ -0,0 +1,85 @@
+package net.tomjo.pulsarbookieutils.service;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import net.tomjo.pulsarbookieutils.LedgerIdSet;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SchemaLocatorsTest {
+
+    @Test
+    void readsTheLedgerOfACreatedLocator() throws IOException {
+        assertEquals(LedgerIdSet.of(42), SchemaLocators.getLedgers(SchemaLocators.create(42)));
+    }
+
+    @Test
+    void readsTheLedgersOfTheInfoAndEveryIndexEntry() throws IOException {
+        byte[] schemaLocator = message(output -> {
+            output.writeBytes(1, indexEntry(5, 3));
+            output.writeBytes(2, indexEntry(1, 0));
+            output.writeBytes(2, indexEntry(3, 1));
+            output.writeBytes(2, indexEntry(5, 3));
+        }).toByteArray();
+
+        assertEquals(LedgerIdSet.of(1, 3, 5), SchemaLocators.getLedgers(schemaLocator));
+    }
+
+    @Test
+    void skipsUnknownFieldsAndUnsetLedgers() throws IOException {
+        ByteString position = message(output -> {
+            output.writeString(7, "unknown");
+            output.writeInt64(1, 9);
+        });
+        byte[] schemaLocator = message(output -> {
+            output.writeInt64(3, 100);
+            output.writeBytes(2, message(entry -> {
+                entry.writeFixed64(4, 100);
+                entry.writeBytes(2, position);
+            }));
+            output.writeBytes(2, indexEntry(-1, 0));
+        }).toByteArray();
+
+        assertEquals(LedgerIdSet.of(9), SchemaLocators.getLedgers(schemaLocator));
+    }
+
+    @Test
+    void readsNoLedgersFromAnEmptyLocator() throws IOException {
+        assertEquals(new LedgerIdSet(), SchemaLocators.getLedgers(new byte[0]));
+    }
+
+    @Test
+    void rejectsATruncatedLocator() {
+        byte[] schemaLocator = SchemaLocators.create(42);
+
+        assertThrows(IOException.class, () -> SchemaLocators.getLedgers(Arrays.copyOf(schemaLocator, schemaLocator.length - 1)));
+    }
+
+    private static ByteString indexEntry(long ledgerId, long version) throws IOException {
+        return message(output -> {
+            output.writeInt64(1, version);
+            output.writeBytes(2, message(position -> {
+                position.writeInt64(1, ledgerId);
+                position.writeInt64(2, 0);
+            }));
+            output.writeBytes(3, ByteString.EMPTY);
+        });
+    }
+
+    private static ByteString message(MessageWriter writer) throws IOException {
+        ByteString.Output bytes = ByteString.newOutput();
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        writer.write(output);
+        output.flush();
+        return bytes.toByteString();
+    }
+
+    private interface MessageWriter {
+        void write(CodedOutputStream output) throws IOException;
+    }
+}